@@ -0,0 +1,618 @@
+package org.apache.lucene.index;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.MergePolicy.MergeAbortedException;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+/**
+ * Runs the merges of an index writer in background threads, so a flush only registers its merges
+ * and never waits for them. At most {@link #getMaxThreadCount()} merges run at once and pending
+ * merges are started smallest first, so small merges are not held back behind a large one.
+ * Merge threads write at most {@link #getMaxMBPerSec()} through the directory returned by
+ * {@link #throttle(Directory)}, which must be the directory the writer is opened on.
+ * <p>
+ * The scheduler outlives the writers it is set on, its threads exit when there is nothing left to merge.
+ * It is in the lucene package to take the merges registered by the writer.
+ */
+public class ZoieMergeScheduler extends MergeScheduler
+{
+  private static final Logger log = Logger.getLogger(ZoieMergeScheduler.class);
+
+  public static final int DEFAULT_MAX_THREAD_COUNT = 2;
+
+  private final PriorityQueue<PendingMerge> _pending;
+  private final RateLimiter _rateLimiter;
+  private int _maxThreadCount;
+  private int _threadCount;       // live merge threads
+  private int _runningCount;      // merges in progress
+  private long _seq;
+  private int _threadSeq;
+
+  private long _completedCount;
+  private long _mergedBytes;
+  private long _mergeTime;
+
+  /**
+   * A merge taken from a writer, waiting for a thread.
+   */
+  private static final class PendingMerge implements Comparable<PendingMerge>
+  {
+    private final IndexWriter _writer;
+    private final OneMerge _merge;
+    private final long _size;
+    private final long _seq;
+
+    PendingMerge(IndexWriter writer, OneMerge merge, long size, long seq)
+    {
+      _writer = writer;
+      _merge = merge;
+      _size = size;
+      _seq = seq;
+    }
+
+    public int compareTo(PendingMerge o)
+    {
+      if (_size != o._size) return _size < o._size ? -1 : 1;
+      return _seq < o._seq ? -1 : (_seq == o._seq ? 0 : 1);
+    }
+  }
+
+  public ZoieMergeScheduler()
+  {
+    _pending = new PriorityQueue<PendingMerge>();
+    _rateLimiter = new RateLimiter();
+    _maxThreadCount = DEFAULT_MAX_THREAD_COUNT;
+    _threadCount = 0;
+    _runningCount = 0;
+    _seq = 0L;
+    _threadSeq = 0;
+    _completedCount = 0L;
+    _mergedBytes = 0L;
+    _mergeTime = 0L;
+  }
+
+  /**
+   * @param maxThreadCount largest number of merges running at once, 0 to merge in the flushing thread
+   */
+  public synchronized void setMaxThreadCount(int maxThreadCount)
+  {
+    if (maxThreadCount < 0) throw new IllegalArgumentException("invalid thread count: " + maxThreadCount);
+    _maxThreadCount = maxThreadCount;
+    startThreads();
+  }
+
+  public synchronized int getMaxThreadCount()
+  {
+    return _maxThreadCount;
+  }
+
+  /**
+   * @param mbPerSec largest rate merge threads write at in MB per second, 0 or less for no limit
+   */
+  public void setMaxMBPerSec(double mbPerSec)
+  {
+    _rateLimiter.setMBPerSec(mbPerSec);
+  }
+
+  public double getMaxMBPerSec()
+  {
+    return _rateLimiter.getMBPerSec();
+  }
+
+  /**
+   * Wraps the directory an index writer is opened on, so that merge threads are throttled.
+   * @param dir directory of the index
+   * @return the directory to open the writer on
+   */
+  public Directory throttle(Directory dir)
+  {
+    return new ThrottledDirectory(dir, _rateLimiter);
+  }
+
+  /**
+   * @return merges waiting for a thread
+   */
+  public synchronized int getPendingMergeCount()
+  {
+    return _pending.size();
+  }
+
+  /**
+   * @return merges in progress
+   */
+  public synchronized int getRunningMergeCount()
+  {
+    return _runningCount;
+  }
+
+  public synchronized long getCompletedMergeCount()
+  {
+    return _completedCount;
+  }
+
+  /**
+   * @return size of the segments merged so far in bytes
+   */
+  public synchronized long getMergedBytes()
+  {
+    return _mergedBytes;
+  }
+
+  /**
+   * @return time spent merging in milliseconds, summed over the merge threads
+   */
+  public synchronized long getMergeTime()
+  {
+    return _mergeTime;
+  }
+
+  /**
+   * @return merged MB per second of merge time, 0 before the first merge
+   */
+  public synchronized double getMergeThroughput()
+  {
+    if (_mergeTime == 0L) return 0.0;
+    return (_mergedBytes / (1024.0 * 1024.0)) / (_mergeTime / 1000.0);
+  }
+
+  /**
+   * @return time merge threads were held back by the rate limit in milliseconds
+   */
+  public long getThrottleTime()
+  {
+    return _rateLimiter.getThrottleTime();
+  }
+
+  @Override
+  public void merge(IndexWriter writer) throws CorruptIndexException, IOException
+  {
+    if (getMaxThreadCount() == 0)
+    {
+      // no background threads, merge in the calling thread
+      OneMerge merge;
+      while ((merge = writer.getNextMerge()) != null)
+      {
+        doMerge(writer, merge, size(merge));
+      }
+      return;
+    }
+
+    // the writer is not called while holding the scheduler lock
+    List<PendingMerge> merges = takeMerges(writer);
+    synchronized(this)
+    {
+      _pending.addAll(merges);
+      startThreads();
+    }
+  }
+
+  /**
+   * Waits for the pending and running merges.
+   */
+  public synchronized void sync()
+  {
+    while (!_pending.isEmpty() || _runningCount > 0)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Called by the writer when it is closed, waits for the merges. The scheduler can still be used afterwards.
+   */
+  @Override
+  public void close()
+  {
+    sync();
+  }
+
+  private List<PendingMerge> takeMerges(IndexWriter writer) throws IOException
+  {
+    List<PendingMerge> merges = new ArrayList<PendingMerge>();
+    OneMerge merge;
+    while ((merge = writer.getNextMerge()) != null)
+    {
+      long size = size(merge);
+      synchronized(this)
+      {
+        merges.add(new PendingMerge(writer, merge, size, _seq++));
+      }
+    }
+    return merges;
+  }
+
+  private static long size(OneMerge merge) throws IOException
+  {
+    long size = 0L;
+    SegmentInfos infos = merge.segments;
+    for (int i = 0; i < infos.size(); ++i)
+    {
+      size += infos.info(i).sizeInBytes();
+    }
+    return size;
+  }
+
+  private void startThreads()
+  {
+    int numThreads = Math.min(_maxThreadCount - _threadCount, _pending.size());
+    for (int i = 0; i < numThreads; ++i)
+    {
+      MergeThread thread = new MergeThread("zoie-merge-" + (_threadSeq++));
+      _threadCount++;
+      thread.start();
+    }
+  }
+
+  private void doMerge(IndexWriter writer, OneMerge merge, long size) throws IOException
+  {
+    long start = System.currentTimeMillis();
+    writer.merge(merge);
+    long time = System.currentTimeMillis() - start;
+    synchronized(this)
+    {
+      _completedCount++;
+      _mergedBytes += size;
+      _mergeTime += time;
+    }
+    if (log.isDebugEnabled())
+    {
+      log.debug("merged " + size + " bytes in " + time + "ms");
+    }
+  }
+
+  private final class MergeThread extends Thread
+  {
+    MergeThread(String name)
+    {
+      super(name);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        PendingMerge next;
+        synchronized(ZoieMergeScheduler.this)
+        {
+          next = (_threadCount > _maxThreadCount ? null : _pending.poll());
+          if (next == null)
+          {
+            _threadCount--;
+            ZoieMergeScheduler.this.notifyAll();
+            return;
+          }
+          _runningCount++;
+        }
+
+        List<PendingMerge> cascaded = null;
+        try
+        {
+          doMerge(next._writer, next._merge, next._size);
+          // the merge may have made room for more merges
+          cascaded = takeMerges(next._writer);
+        }
+        catch (MergeAbortedException e)
+        {
+          log.info("merge aborted: " + e.getMessage());
+        }
+        catch (Throwable t)
+        {
+          log.error("merge failed: " + t.getMessage(), t);
+        }
+        finally
+        {
+          synchronized(ZoieMergeScheduler.this)
+          {
+            _runningCount--;
+            if (cascaded != null) _pending.addAll(cascaded);
+            ZoieMergeScheduler.this.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Holds back merge threads writing faster than the limit, shared by all of them.
+   */
+  private static final class RateLimiter
+  {
+    private volatile double _mbPerSec = 0.0;
+    private long _lastNS = 0L;
+    private long _throttleNS = 0L;
+
+    void setMBPerSec(double mbPerSec)
+    {
+      _mbPerSec = mbPerSec;
+    }
+
+    double getMBPerSec()
+    {
+      return _mbPerSec;
+    }
+
+    synchronized long getThrottleTime()
+    {
+      return _throttleNS / 1000000L;
+    }
+
+    boolean isThrottled()
+    {
+      return _mbPerSec > 0.0 && Thread.currentThread() instanceof MergeThread;
+    }
+
+    void pause(long bytes)
+    {
+      double mbPerSec = _mbPerSec;
+      if (mbPerSec <= 0.0) return;
+
+      long pauseNS;
+      synchronized(this)
+      {
+        // the time spent writing since the last pause counts towards the cost of these bytes
+        long now = System.nanoTime();
+        long targetNS = _lastNS + (long)(bytes * 1000000000.0 / (mbPerSec * 1024.0 * 1024.0));
+        pauseNS = targetNS - now;
+        _lastNS = Math.max(targetNS, now);
+        if (pauseNS > 0L) _throttleNS += pauseNS;
+      }
+      if (pauseNS <= 0L) return;
+      try
+      {
+        Thread.sleep(pauseNS / 1000000L, (int)(pauseNS % 1000000L));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * A directory whose outputs created by merge threads are throttled, everything else is passed on.
+   */
+  public static final class ThrottledDirectory extends Directory
+  {
+    private final Directory _dir;
+    private final RateLimiter _rateLimiter;
+
+    private ThrottledDirectory(Directory dir, RateLimiter rateLimiter)
+    {
+      _dir = dir;
+      _rateLimiter = rateLimiter;
+    }
+
+    public Directory getDelegate()
+    {
+      return _dir;
+    }
+
+    @Override
+    public IndexOutput createOutput(String name) throws IOException
+    {
+      IndexOutput out = _dir.createOutput(name);
+      return _rateLimiter.isThrottled() ? new ThrottledIndexOutput(out, _rateLimiter) : out;
+    }
+
+    @Deprecated
+    @Override
+    public String[] list() throws IOException
+    {
+      return _dir.list();
+    }
+
+    @Override
+    public String[] listAll() throws IOException
+    {
+      return _dir.listAll();
+    }
+
+    @Override
+    public boolean fileExists(String name) throws IOException
+    {
+      return _dir.fileExists(name);
+    }
+
+    @Override
+    public long fileModified(String name) throws IOException
+    {
+      return _dir.fileModified(name);
+    }
+
+    @Override
+    public void touchFile(String name) throws IOException
+    {
+      _dir.touchFile(name);
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException
+    {
+      _dir.deleteFile(name);
+    }
+
+    @Deprecated
+    @Override
+    public void renameFile(String from, String to) throws IOException
+    {
+      _dir.renameFile(from, to);
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException
+    {
+      return _dir.fileLength(name);
+    }
+
+    @Override
+    public void sync(String name) throws IOException
+    {
+      _dir.sync(name);
+    }
+
+    @Override
+    public IndexInput openInput(String name) throws IOException
+    {
+      return _dir.openInput(name);
+    }
+
+    @Override
+    public IndexInput openInput(String name, int bufferSize) throws IOException
+    {
+      return _dir.openInput(name, bufferSize);
+    }
+
+    @Override
+    public Lock makeLock(String name)
+    {
+      return _dir.makeLock(name);
+    }
+
+    @Override
+    public void clearLock(String name) throws IOException
+    {
+      _dir.clearLock(name);
+    }
+
+    @Override
+    public void setLockFactory(LockFactory lockFactory)
+    {
+      _dir.setLockFactory(lockFactory);
+    }
+
+    @Override
+    public LockFactory getLockFactory()
+    {
+      return _dir.getLockFactory();
+    }
+
+    @Override
+    public String getLockID()
+    {
+      return _dir.getLockID();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      _dir.close();
+    }
+
+    @Override
+    public String toString()
+    {
+      return _dir.toString();
+    }
+  }
+
+  private static final class ThrottledIndexOutput extends IndexOutput
+  {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final IndexOutput _out;
+    private final RateLimiter _rateLimiter;
+    private int _unpaid;           // bytes written since the last pause
+
+    ThrottledIndexOutput(IndexOutput out, RateLimiter rateLimiter)
+    {
+      _out = out;
+      _rateLimiter = rateLimiter;
+      _unpaid = 0;
+    }
+
+    private void written(int len)
+    {
+      _unpaid += len;
+      if (_unpaid >= CHUNK_SIZE)
+      {
+        _rateLimiter.pause(_unpaid);
+        _unpaid = 0;
+      }
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException
+    {
+      _out.writeByte(b);
+      written(1);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException
+    {
+      _out.writeBytes(b, offset, length);
+      written(length);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      _out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      _out.close();
+    }
+
+    @Override
+    public long getFilePointer()
+    {
+      return _out.getFilePointer();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      _out.seek(pos);
+    }
+
+    @Override
+    public long length() throws IOException
+    {
+      return _out.length();
+    }
+
+    @Override
+    public void setLength(long length) throws IOException
+    {
+      _out.setLength(length);
+    }
+  }
+}
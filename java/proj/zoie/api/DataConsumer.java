@@ -92,4 +92,13 @@ public interface DataConsumer<V> {
 	 * @throws ZoieException
 	 */
 	void consume(Collection<DataEvent<V>> data) throws ZoieException;
+	
+	/**
+	 * Consumption of a batch of data events, with the same ordering contract as {@link #consume(Collection)}.
+	 * The batch is owned by the caller, who may clear and reuse it once this method returns.
+	 * Implementations must not modify the batch and must copy whatever they keep.
+	 * @param batch A batch of data to be consumed.
+	 * @throws ZoieException
+	 */
+	void consume(DataEventBatch<V> batch) throws ZoieException;
 }
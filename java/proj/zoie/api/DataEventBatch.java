@@ -0,0 +1,176 @@
+package proj.zoie.api;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import proj.zoie.api.DataConsumer.DataEvent;
+
+/**
+ * A batch of data events kept in parallel version and payload arrays.
+ * Batches are meant to be reused: {@link #clear()} keeps the arrays, so a batch that is
+ * recycled between a producer and a consumer does not allocate per event.
+ * Events are expected in version order, as required by {@link DataConsumer#consume(Collection)}.
+ * Not thread safe.
+ */
+public class DataEventBatch<V>
+{
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private long[] _versions;
+  private Object[] _payloads;
+  private int _size;
+  private long _maxVersion;
+
+  public DataEventBatch()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public DataEventBatch(int capacity)
+  {
+    capacity = Math.max(1, capacity);
+    _versions = new long[capacity];
+    _payloads = new Object[capacity];
+    _size = 0;
+    _maxVersion = -1L;
+  }
+
+  /**
+   * Creates a batch holding the given events.
+   * @param events data events
+   */
+  public DataEventBatch(Collection<DataEvent<V>> events)
+  {
+    this(events == null ? DEFAULT_CAPACITY : events.size());
+    addAll(events);
+  }
+
+  /**
+   * Adds an event.
+   * @param version version of the event
+   * @param data data of the event
+   */
+  public void add(long version, V data)
+  {
+    if (_size == _versions.length) grow(_size + 1);
+    _versions[_size] = version;
+    _payloads[_size] = data;
+    _size++;
+    if (version > _maxVersion) _maxVersion = version;
+  }
+
+  public void add(DataEvent<V> event)
+  {
+    add(event.getVersion(), event.getData());
+  }
+
+  public void addAll(Collection<DataEvent<V>> events)
+  {
+    if (events == null) return;
+    ensureCapacity(_size + events.size());
+    for (DataEvent<V> event : events)
+    {
+      add(event.getVersion(), event.getData());
+    }
+  }
+
+  public void addAll(DataEventBatch<V> batch)
+  {
+    if (batch == null || batch._size == 0) return;
+    ensureCapacity(_size + batch._size);
+    System.arraycopy(batch._versions, 0, _versions, _size, batch._size);
+    System.arraycopy(batch._payloads, 0, _payloads, _size, batch._size);
+    _size += batch._size;
+    if (batch._maxVersion > _maxVersion) _maxVersion = batch._maxVersion;
+  }
+
+  public int size()
+  {
+    return _size;
+  }
+
+  public boolean isEmpty()
+  {
+    return _size == 0;
+  }
+
+  public long getVersion(int idx)
+  {
+    if (idx >= _size) throw new IndexOutOfBoundsException("index: " + idx + ", size: " + _size);
+    return _versions[idx];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V getData(int idx)
+  {
+    if (idx >= _size) throw new IndexOutOfBoundsException("index: " + idx + ", size: " + _size);
+    return (V)_payloads[idx];
+  }
+
+  /**
+   * @return the largest version in the batch, -1 if the batch is empty
+   */
+  public long getMaxVersion()
+  {
+    return _maxVersion;
+  }
+
+  /**
+   * Empties the batch, keeping the arrays for reuse.
+   */
+  public void clear()
+  {
+    for (int i = 0; i < _size; ++i)
+    {
+      _payloads[i] = null; // let the payloads go
+    }
+    _size = 0;
+    _maxVersion = -1L;
+  }
+
+  /**
+   * Copies the batch into data events, for consumers that work on collections.
+   * @return a new list of data events
+   */
+  public List<DataEvent<V>> toDataEvents()
+  {
+    ArrayList<DataEvent<V>> list = new ArrayList<DataEvent<V>>(_size);
+    for (int i = 0; i < _size; ++i)
+    {
+      list.add(new DataEvent<V>(_versions[i], getData(i)));
+    }
+    return list;
+  }
+
+  private void ensureCapacity(int capacity)
+  {
+    if (capacity > _versions.length) grow(capacity);
+  }
+
+  private void grow(int minCapacity)
+  {
+    int capacity = Math.max(minCapacity, _versions.length * 2);
+    long[] versions = new long[capacity];
+    Object[] payloads = new Object[capacity];
+    System.arraycopy(_versions, 0, versions, 0, _size);
+    System.arraycopy(_payloads, 0, payloads, 0, _size);
+    _versions = versions;
+    _payloads = payloads;
+  }
+}
@@ -18,7 +18,6 @@ package proj.zoie.api;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 
 import org.apache.lucene.index.FilterIndexReader;
@@ -27,12 +26,13 @@ import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
 import org.apache.lucene.store.Directory;
 
+import proj.zoie.api.impl.util.DelDocIdSet;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
 public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndexReader {
 	public static final long DELETED_UID = Long.MIN_VALUE;
 	
-	protected ThreadLocal<int[]> _delDocIds;
+	protected DelDocIdSet _delDocIds;
 	protected long _minUID;
 	protected long _maxUID;
 	protected boolean _noDedup = false;
@@ -65,15 +65,23 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	{
 		super(in);
 		_decorator = decorator;
-		_delDocIds=new ThreadLocal<int[]>();
+		_delDocIds=null;
 		_minUID=Long.MAX_VALUE;
 		_maxUID=0;
 	}
 	
 	abstract public List<R> getDecoratedReaders() throws IOException;
-    abstract public void setDelDocIds();
     abstract public void markDeletes(LongSet delDocs, LongSet deltedUIDs);
     abstract public void commitDeletes();
+    
+    /**
+     * Gets a view of this reader that is bound to the deletes committed by the last {@link #commitDeletes()}.
+     * The view never changes afterwards, so it can be handed to any number of search threads.
+     * Views are cached and only rebuilt when the committed deletes have changed.
+     * @return reader view with immutable deleted docids
+     * @throws IOException
+     */
+    abstract public ZoieIndexReader<R> getCommittedView() throws IOException;
 	     
 	public IndexReader getInnerReader(){
 		return in;
@@ -84,8 +92,8 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	{
 	  if(!_noDedup)
 	  {
-		int[] delSet = _delDocIds.get();
-	    if(delSet != null && delSet.length > 0) return true;
+		DelDocIdSet delSet = _delDocIds;
+	    if(delSet != null && delSet.size() > 0) return true;
 	  }
 	  return in.hasDeletions();
 	}
@@ -94,8 +102,8 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	
 	public boolean hasDuplicates()
 	{
-		int[] delSet = _delDocIds.get();
-		return (delSet!=null && delSet.length > 0);
+		DelDocIdSet delSet = _delDocIds;
+		return (delSet!=null && delSet.size() > 0);
 	}
 
 	@Override
@@ -103,13 +111,13 @@ public abstract class ZoieIndexReader<R extends IndexReader> extends FilterIndex
 	
 	public boolean isDuplicate(int uid)
 	{
-	  int[] delSet = _delDocIds.get();
-	  return delSet!=null && Arrays.binarySearch(delSet, uid) >= 0;
+	  DelDocIdSet delSet = _delDocIds;
+	  return delSet!=null && delSet.isDeleted(uid);
 	}
 	
-	public int[] getDelDocIds()
+	public DelDocIdSet getDelDocIds()
 	{
-	  return _delDocIds.get();
+	  return _delDocIds;
 	}
 	
 	public long getMinUID()
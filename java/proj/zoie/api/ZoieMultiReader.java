@@ -34,6 +34,7 @@ import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
 
+import proj.zoie.api.impl.CompositeDocIDMapper;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
 public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
@@ -42,6 +43,9 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 	private ArrayList<ZoieSegmentReader<R>> _subZoieReaders;
 	private int[] _starts;
 	private List<R> _decoratedReaders;
+	private volatile ZoieMultiReader<R> _committedView;
+	private volatile DocIDMapper _docIdMapper;
+	private List<ZoieSegmentReader<R>> _newSubZoieReaders;
 	
 	public ZoieMultiReader(IndexReader in,IndexReaderDecorator<R> decorator) throws IOException {
 		super(in,decorator);
@@ -85,6 +89,7 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 			}
 		}
 		_starts[subReaders.length]=in.maxDoc();
+		_newSubZoieReaders = _subZoieReaders;
 		
 		ArrayList<R> decoratedList = new ArrayList<R>(_subZoieReaders.size());
     	for (ZoieSegmentReader<R> subReader : _subZoieReaders){
@@ -138,15 +143,34 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 	}
 	
 	@Override
-	public void setDelDocIds()
+	public ZoieMultiReader<R> getCommittedView() throws IOException
 	{
-	  ZoieIndexReader<R>[] subReaders = getSequentialSubReaders();
-	  for(ZoieIndexReader<R> subReader : subReaders)
+	  ZoieMultiReader<R> view = _committedView;
+	  boolean changed = (view == null);
+	  IndexReader[] subViews = new IndexReader[_subZoieReaders.size()];
+	  for(int i = 0; i < subViews.length; i++)
+	  {
+	    subViews[i] = _subZoieReaders.get(i).getCommittedView();
+	    changed = changed || (subViews[i] != view._subZoieReaders.get(i));
+	  }
+	  if(changed)
 	  {
-	    subReader.setDelDocIds();
+	    view = newInstance(in, subViews);
+	    view._docIdMapper = _docIdMapper; // same segments, same uids
+	    _committedView = view;
 	  }
+	  return view;
 	}
 
+	/**
+	 * @return readers of the segments that are new since the reader this one was reopened from,
+	 * e.g. to warm them up, all the segment readers if this reader was not reopened
+	 */
+	public List<ZoieSegmentReader<R>> getNewSegmentReaders()
+	{
+	  return _newSubZoieReaders;
+	}
+	
 	@Override
 	public List<R> getDecoratedReaders() throws IOException{
 	      return _decoratedReaders;
@@ -204,18 +228,23 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 
 	@Override
 	public DocIDMapper getDocIDMaper() {
-		return new DocIDMapper() {
-			public int getDocID(long uid) {
-				for (int i = 0; i < _subZoieReaders.size(); ++i){
-					ZoieIndexReader<R> subReader = _subZoieReaders.get(i);
-					int docid = subReader.getDocIDMaper().getDocID(uid);
-					if (docid!=DocIDMapper.NOT_FOUND) {
-						return docid+_starts[i];
-					}
-				}
-				return DocIDMapper.NOT_FOUND;
+		DocIDMapper mapper = _docIdMapper;
+		if (mapper == null){
+			// segments never change for the lifetime of this reader, so the mapper is built once per generation
+			int size = _subZoieReaders.size();
+			DocIDMapper[] mappers = new DocIDMapper[size];
+			long[] minUIDs = new long[size];
+			long[] maxUIDs = new long[size];
+			for (int i = 0; i < size; ++i){
+				ZoieSegmentReader<R> subReader = _subZoieReaders.get(i);
+				mappers[i] = subReader.getDocIDMaper();
+				minUIDs[i] = subReader.getMinUID();
+				maxUIDs[i] = subReader.getMaxUID();
 			}
-		};
+			mapper = new CompositeDocIDMapper(mappers, minUIDs, maxUIDs, _starts);
+			_docIdMapper = mapper;
+		}
+		return mapper;
 	}
 	
 	
@@ -243,9 +272,20 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 		if (inner == in && inner.getVersion()==version){
 			return this;
 		}
-		
+		return reopen(inner);
+	}
+	
+	/**
+	 * Wraps a newer reader of the same index, e.g. a near real-time reader from the IndexWriter.
+	 * Readers of segments that did not change are reused, only new or changed segments are wrapped.
+	 * @param inner the new reader
+	 * @return a reader on inner
+	 * @throws IOException
+	 */
+	public synchronized ZoieMultiReader<R> reopen(IndexReader inner) throws IOException {
 		IndexReader[] subReaders = inner.getSequentialSubReaders();
 		ArrayList<IndexReader> subReaderList = new ArrayList<IndexReader>(subReaders.length);
+		ArrayList<ZoieSegmentReader<R>> newSubReaderList = new ArrayList<ZoieSegmentReader<R>>();
 		for (IndexReader subReader : subReaders){
 			if (subReader instanceof SegmentReader){
 				SegmentReader sr = (SegmentReader)subReader;
@@ -254,9 +294,14 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 				if (zoieSegmentReader!=null){
 					int numDocs = sr.numDocs();
 					int maxDocs = sr.maxDoc();
-					if (zoieSegmentReader.numDocs() != numDocs || zoieSegmentReader.maxDoc() != maxDocs){
+					if (zoieSegmentReader.maxDoc() != maxDocs){
 						// segment has changed
 						zoieSegmentReader = new ZoieSegmentReader<R>(sr,_decorator);
+						newSubReaderList.add(zoieSegmentReader);
+					}
+					else if (zoieSegmentReader.numDocs() != numDocs){
+						// only deletions have changed, uids are the same
+						zoieSegmentReader = new ZoieSegmentReader<R>(sr,zoieSegmentReader,_decorator);
 					}
 					else{
 						zoieSegmentReader = new ZoieSegmentReader<R>(zoieSegmentReader,sr);
@@ -264,6 +309,7 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 				}
 				else{
 					zoieSegmentReader = new ZoieSegmentReader<R>(sr,_decorator);
+					newSubReaderList.add(zoieSegmentReader);
 				}
 				subReaderList.add(zoieSegmentReader);
 			}
@@ -272,7 +318,9 @@ public class ZoieMultiReader<R extends IndexReader> extends ZoieIndexReader<R> {
 			}
 		}
 		
-		return newInstance(inner, subReaderList.toArray(new IndexReader[subReaderList.size()]));
+		ZoieMultiReader<R> reader = newInstance(inner, subReaderList.toArray(new IndexReader[subReaderList.size()]));
+		reader._newSubZoieReaders = newSubReaderList;
+		return reader;
 	}
 	
 	protected ZoieMultiReader<R> newInstance(IndexReader inner,IndexReader[] subReaders) throws IOException{
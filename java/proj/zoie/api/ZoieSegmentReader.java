@@ -15,15 +15,23 @@ package proj.zoie.api;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.TermAttribute;
@@ -35,22 +43,39 @@ import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.OpenBitSet;
 
 import proj.zoie.api.impl.DocIDMapperImpl;
-import proj.zoie.api.impl.util.ArrayDocIdSet;
+import proj.zoie.api.impl.util.DelDocIdSet;
+import proj.zoie.api.impl.util.UIDArrayFile;
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 import proj.zoie.impl.indexing.internal.ZoieSegmentTermDocs;
 import proj.zoie.impl.indexing.internal.ZoieSegmentTermPositions;
 
 public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>{
+	private static final Logger log = Logger.getLogger(ZoieSegmentReader.class);
 	static final String termVal="_UID";
 	static final Term UID_TERM = new Term(AbstractZoieIndexable.DOCUMENT_ID_PAYLOAD_FIELD,termVal);
     private R _decoratedReader;
     private long[] _uidArray;
-	private DocIDMapper _docIdMapper;
-    private IntRBTreeSet _delDocIdSet = new IntRBTreeSet();
-    private int[] _currentDelDocIds;
+	private FutureTask<DocIDMapper> _docIdMapperTask;
+	private FutureTask<DocIDMapper> _liveDocIdMapperTask;
+	private volatile DocIDMapper _liveDocIdMapper;
+    private DelDocIdSet.Builder _delDocIdSet;
+    private volatile DelDocIdSet _currentDelDocIds;
+    private volatile ZoieSegmentReader<R> _committedView;
+    
+    // builds the docid mappers of new segments off the search and indexing threads
+    private static final ExecutorService _docIdMapperBuilder = Executors.newSingleThreadExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "zoie-docidmapper-builder");
+			t.setDaemon(true);
+			return t;
+		}
+    });
     
     static class UIDTokenStream extends TokenStream {
         private boolean returnToken = false;
@@ -97,17 +122,93 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 			throw new IllegalStateException("ZoieSegmentReader can only be constucted from "+SegmentReader.class);
 		}
 		init(in);
+		_docIdMapperTask = newDocIDMapperTask(_uidArray);
+		_liveDocIdMapperTask = newLiveDocIDMapperTask(in, _docIdMapperTask);
+		_delDocIdSet = new DelDocIdSet.Builder(in.maxDoc());
+		_decoratedReader = (decorator == null ? null : decorator.decorate(this));
+	}
+	
+	/**
+	 * Opens a reader on a newer version of the same segment whose deletions have changed.
+	 * The uids of a segment never change, so the uid array and the docid mapper are shared.
+	 */
+	ZoieSegmentReader(IndexReader in, ZoieSegmentReader<R> sameSegment, IndexReaderDecorator<R> decorator)
+			throws IOException {
+		super(in,decorator);
+		if (!(in instanceof SegmentReader)){
+			throw new IllegalStateException("ZoieSegmentReader can only be constucted from "+SegmentReader.class);
+		}
+		_uidArray = sameSegment._uidArray;
+		_maxUID = sameSegment._maxUID;
+		_minUID = sameSegment._minUID;
+		_docIdMapperTask = sameSegment._docIdMapperTask;
+		_liveDocIdMapperTask = newLiveDocIDMapperTask(in, _docIdMapperTask);
+		_delDocIdSet = new DelDocIdSet.Builder(in.maxDoc());
 		_decoratedReader = (decorator == null ? null : decorator.decorate(this));
 	}
 	
+	private static FutureTask<DocIDMapper> newDocIDMapperTask(final long[] uidArray)
+	{
+		return submit(new Callable<DocIDMapper>(){
+			public DocIDMapper call() {
+				return new DocIDMapperImpl(uidArray);
+			}
+		});
+	}
+	
+	/**
+	 * Builds the mapper of the live docs if the segment has deletions, so that the first uid lookup
+	 * of a search does not have to scan them.
+	 * @return null if there are no deletions, the segment mapper is used as is then
+	 */
+	private static FutureTask<DocIDMapper> newLiveDocIDMapperTask(final IndexReader in, final FutureTask<DocIDMapper> segmentMapperTask)
+	{
+		if (!in.hasDeletions()) return null;
+		return submit(new Callable<DocIDMapper>(){
+			public DocIDMapper call() throws IOException {
+				// the uid array is shared with older readers of this segment and may still hold uids of docs deleted since,
+				// those must not shadow a live copy of the uid elsewhere
+				final DocIDMapper segmentMapper = getMapper(segmentMapperTask);
+				final OpenBitSet deletedDocs = getIndexDeletions(in);
+				return new DocIDMapper(){
+					public int getDocID(long uid) {
+						int docid = segmentMapper.getDocID(uid);
+						return (docid == DocIDMapper.NOT_FOUND || deletedDocs.fastGet(docid)) ? DocIDMapper.NOT_FOUND : docid;
+					}
+				};
+			}
+		});
+	}
+	
+	private static FutureTask<DocIDMapper> submit(Callable<DocIDMapper> callable)
+	{
+		FutureTask<DocIDMapper> task = new FutureTask<DocIDMapper>(callable);
+		try{
+			_docIdMapperBuilder.execute(task);
+		}
+		catch(RejectedExecutionException ree){
+			// built on first use
+		}
+		return task;
+	}
+	
 	ZoieSegmentReader(ZoieSegmentReader<R> copyFrom,IndexReader innerReader) throws IOException{
 		super(innerReader,copyFrom._decorator);
 		_uidArray = copyFrom._uidArray;
 		_maxUID = copyFrom._maxUID;
 		_minUID = copyFrom._minUID;
 		_noDedup = copyFrom._noDedup;
-		_docIdMapper = copyFrom._docIdMapper;
+		_docIdMapperTask = copyFrom._docIdMapperTask;
+		if (innerReader == copyFrom.in){
+			// committed view, same deletions
+			_liveDocIdMapperTask = copyFrom._liveDocIdMapperTask;
+			_liveDocIdMapper = copyFrom._liveDocIdMapper;
+		}
+		else{
+			_liveDocIdMapperTask = newLiveDocIDMapperTask(innerReader, _docIdMapperTask);
+		}
 		_delDocIdSet = copyFrom._delDocIdSet;
+		_committedView = null;
 		
 		if (copyFrom._decorator == null){
 			_decoratedReader = null;
@@ -122,7 +223,7 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	{
       DocIDMapper idMapper = getDocIDMaper();
       LongIterator iter = delDocs.iterator();
-      IntRBTreeSet delDocIdSet = _delDocIdSet;
+      DelDocIdSet.Builder delDocIdSet = _delDocIdSet;
 
       while(iter.hasNext())
       {
@@ -139,15 +240,43 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
       }	  
 	}
 	
+	private ZoieSegmentReader(ZoieSegmentReader<R> copyFrom,DelDocIdSet delDocIds) throws IOException{
+		this(copyFrom,copyFrom.in);
+		_delDocIds = delDocIds;
+	}
+	
 	@Override
 	public void commitDeletes()
 	{
-	  _currentDelDocIds = _delDocIdSet.toIntArray();
+	  // the docid set only grows, so an unchanged size means nothing new was marked
+	  DelDocIdSet delDocIds = _currentDelDocIds;
+	  if(delDocIds == null || delDocIds.size() != _delDocIdSet.size())
+	  {
+	    _currentDelDocIds = _delDocIdSet.build();
+	  }
 	}
 	
-	public void setDelDocIds()
+	@Override
+	public ZoieSegmentReader<R> getCommittedView() throws IOException
 	{
-	  _delDocIds.set(_currentDelDocIds);
+	  DelDocIdSet delDocIds = _currentDelDocIds;
+	  ZoieSegmentReader<R> view = _committedView;
+	  if(view == null || view._delDocIds != delDocIds)
+	  {
+	    view = new ZoieSegmentReader<R>(this, delDocIds);
+	    _committedView = view;
+	  }
+	  return view;
+	}
+	
+	/**
+	 * Gets the deleted docids as of the last {@link #commitDeletes()}.
+	 * The returned set is never modified afterwards.
+	 * @return deleted docids, null if deletes were never committed
+	 */
+	public DelDocIdSet getCommittedDelDocIds()
+	{
+	  return _currentDelDocIds;
 	}
 	
 	public R getDecoratedReader(){
@@ -165,6 +294,64 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
     }
 	
 	private void init(IndexReader reader) throws IOException
+	{
+		File dir = null;
+		Directory directory = reader.directory();
+		if (directory instanceof FSDirectory){
+			dir = ((FSDirectory)directory).getFile();
+			UIDArrayFile uidFile = UIDArrayFile.load(dir, getSegmentName(), reader.maxDoc());
+			if (uidFile != null && checkUIDArray(reader, uidFile.getUIDArray())){
+				_uidArray = uidFile.getUIDArray();
+				_minUID = uidFile.getMinUID();
+				_maxUID = uidFile.getMaxUID();
+				return;
+			}
+		}
+		
+		loadUIDArray(reader);
+		
+		if (dir != null){
+			// the segment is new to us, save the uids so that the next reader need not scan the payloads
+			try{
+				UIDArrayFile.save(dir, getSegmentName(), _uidArray, _minUID, _maxUID);
+			}
+			catch(IOException ioe){
+				log.warn("unable to save uids of segment "+getSegmentName()+": "+ioe.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Compares the uid payloads of the first, middle and last documents against the given array
+	 * to guard against a stale file of the same length.
+	 */
+	private static boolean checkUIDArray(IndexReader reader, long[] uidArray) throws IOException
+	{
+		int maxDoc = reader.maxDoc();
+		int[] targets = new int[]{0, maxDoc / 2, maxDoc - 1};
+		TermPositions tp = reader.termPositions(UID_TERM);
+		try
+		{
+		  byte[] payloadBuffer = new byte[8];
+		  int doc = -1;
+		  for (int target : targets)
+		  {
+		    if (doc >= target) continue; // checked already, skipTo always moves on
+		    if (!tp.skipTo(target)) return true;
+		    doc = tp.doc();
+		    tp.nextPosition();
+		    tp.getPayload(payloadBuffer, 0);
+		    if (uidArray[doc] != bytesToLong(payloadBuffer)) return false;
+		  }
+		  return true;
+		}
+		finally
+		{
+		  tp.close();
+		}
+	}
+	
+	private void loadUIDArray(IndexReader reader) throws IOException
 	{
 		int maxDoc = reader.maxDoc();
 		_uidArray = new long[maxDoc]; 
@@ -199,6 +386,35 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		}
 	}
 	
+	/**
+	 * Finds the docids of the given uids by scanning the uid payloads of a segment.
+	 * Used for segments that have not been wrapped yet, e.g. ones just flushed by an IndexWriter.
+	 * @param reader a segment reader
+	 * @param uids uids to look for
+	 * @return the docids in ascending order
+	 * @throws IOException
+	 */
+	public static int[] findDocIDs(IndexReader reader, LongSet uids) throws IOException
+	{
+		IntArrayList docids = new IntArrayList();
+		TermPositions tp = reader.termPositions(UID_TERM);
+		byte[] payloadBuffer = new byte[8];
+		try
+		{
+		  while (tp.next())
+		  {
+		    tp.nextPosition();
+		    tp.getPayload(payloadBuffer, 0);
+		    if (uids.contains(bytesToLong(payloadBuffer))) docids.add(tp.doc());
+		  }
+		}
+		finally
+		{
+		  tp.close();
+		}
+		return docids.toIntArray();
+	}
+	
 	private static long bytesToLong(byte[] bytes){
         return ((bytes[7] & 0xFF) << 56) | ((bytes[6] & 0xFF) << 48) | ((bytes[5] & 0xFF) << 40) | ((bytes[4] & 0xFF) << 32) | ((bytes[3] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16)
            | ((bytes[1] & 0xFF) <<  8) |  (bytes[0] & 0xFF);
@@ -225,19 +441,76 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	{
 	  if(!_noDedup)
 	  {
-		int[] delSet = _delDocIds.get();
-	    if(delSet != null && Arrays.binarySearch(delSet, docid) >= 0) return true;
+		DelDocIdSet delSet = _delDocIds;
+	    if(delSet != null && delSet.isDeleted(docid)) return true;
 	  }
 	  return in.isDeleted(docid);
 	}
 	
 	public DocIDMapper getDocIDMaper()
 	{
-	  if(_docIdMapper == null)
+	  DocIDMapper mapper = _liveDocIdMapper;
+	  if(mapper == null)
+	  {
+	    FutureTask<DocIDMapper> task = _liveDocIdMapperTask;
+	    mapper = getMapper(task == null ? _docIdMapperTask : task);
+	    _liveDocIdMapper = mapper;
+	  }
+	  return mapper;
+	}
+	
+	/**
+	 * Takes the deletions of the segment reader at once, its isDeleted is synchronized and so too slow
+	 * per uid lookup. Iterates the live docs instead, which takes the reader lock only once
+	 * to get hold of the deletions. The deletions of the read only readers wrapped here do not change.
+	 */
+	private static OpenBitSet getIndexDeletions(IndexReader in) throws IOException
+	{
+	  int maxDoc = in.maxDoc();
+	  OpenBitSet deletedDocs = new OpenBitSet(maxDoc);
+	  deletedDocs.set(0, maxDoc);
+	  TermDocs liveDocs = in.termDocs(null);
+	  try
+	  {
+	    while(liveDocs.next())
+	    {
+	      deletedDocs.fastClear(liveDocs.doc());
+	    }
+	  }
+	  finally
+	  {
+	    liveDocs.close();
+	  }
+	  return deletedDocs;
+	}
+	
+	private static DocIDMapper getMapper(FutureTask<DocIDMapper> task)
+	{
+	  // no-op if the builder thread has finished or is still working on it, in which case we wait below
+	  task.run();
+	  boolean interrupted = false;
+	  try
+	  {
+	    while(true)
+	    {
+	      try
+	      {
+	        return task.get();
+	      }
+	      catch(InterruptedException ie)
+	      {
+	        interrupted = true;
+	      }
+	    }
+	  }
+	  catch(ExecutionException ee)
+	  {
+	    throw new RuntimeException(ee.getCause());
+	  }
+	  finally
 	  {
-	    _docIdMapper = new DocIDMapperImpl(_uidArray);
+	    if(interrupted) Thread.currentThread().interrupt();
 	  }
-	  return _docIdMapper;
 	}
 	
 	
@@ -247,9 +520,9 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		 TermDocs td = in.termDocs(term);
 		 if(_noDedup) return td;
 		  
-		 int[] delDocIds = _delDocIds.get();
-		 if(td == null || delDocIds == null || delDocIds.length == 0) return td;
-	     return new ZoieSegmentTermDocs(td, new ArrayDocIdSet(delDocIds));
+		 DelDocIdSet delDocIds = _delDocIds;
+		 if(td == null || delDocIds == null || delDocIds.size() == 0) return td;
+	     return new ZoieSegmentTermDocs(td, delDocIds.iterator());
 	}
 
 	@Override
@@ -259,10 +532,10 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	  TermDocs td = in.termDocs();
 	  if(_noDedup) return td;
 	  
-	  int[] delDocIds = _delDocIds.get();
-	  if(td == null || delDocIds == null || delDocIds.length == 0) return td;
+	  DelDocIdSet delDocIds = _delDocIds;
+	  if(td == null || delDocIds == null || delDocIds.size() == 0) return td;
       
-      return new ZoieSegmentTermDocs(td, new ArrayDocIdSet(delDocIds));
+      return new ZoieSegmentTermDocs(td, delDocIds.iterator());
 	}
 	
 	@Override
@@ -271,10 +544,10 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 		  TermPositions tp = in.termPositions(term);
 	      if(_noDedup) return tp;
 	      
-	      int[] delDocIds = _delDocIds.get();
-	      if(tp == null || delDocIds == null || delDocIds.length == 0) return tp;
+	      DelDocIdSet delDocIds = _delDocIds;
+	      if(tp == null || delDocIds == null || delDocIds.size() == 0) return tp;
 	      
-	      return new ZoieSegmentTermPositions(tp, new ArrayDocIdSet(delDocIds));
+	      return new ZoieSegmentTermPositions(tp, delDocIds.iterator());
 	}
 
 	@Override
@@ -284,10 +557,10 @@ public class ZoieSegmentReader<R extends IndexReader> extends ZoieIndexReader<R>
 	  TermPositions tp = in.termPositions();
       if(_noDedup) return tp;
       
-      int[] delDocIds = _delDocIds.get();
-      if(tp == null || delDocIds == null || delDocIds.length == 0) return tp;
+      DelDocIdSet delDocIds = _delDocIds;
+      if(tp == null || delDocIds == null || delDocIds.size() == 0) return tp;
       
-      return new ZoieSegmentTermPositions(tp, new ArrayDocIdSet(delDocIds));
+      return new ZoieSegmentTermPositions(tp, delDocIds.iterator());
 	}
 
 	@Override
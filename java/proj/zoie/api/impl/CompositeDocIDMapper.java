@@ -0,0 +1,113 @@
+package proj.zoie.api.impl;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Arrays;
+import java.util.Comparator;
+
+import proj.zoie.api.DocIDMapper;
+
+/**
+ * Maps a uid to a docid of a multi-segment reader by routing it to the segment(s) whose uid range
+ * covers it. When the ranges do not overlap, which is the common case for time ordered uids,
+ * a lookup is a binary search over the ranges followed by a single segment probe.
+ */
+public class CompositeDocIDMapper implements DocIDMapper
+{
+  private final DocIDMapper[] _mappers;
+  private final long[] _minUIDs;
+  private final long[] _maxUIDs;
+  private final int[] _starts;
+  private final boolean _disjoint;
+
+  /**
+   * @param mappers docid mappers of the segments
+   * @param minUIDs smallest uid of each segment
+   * @param maxUIDs largest uid of each segment
+   * @param starts docid base of each segment
+   */
+  public CompositeDocIDMapper(DocIDMapper[] mappers, long[] minUIDs, long[] maxUIDs, int[] starts)
+  {
+    int len = mappers.length;
+    Integer[] order = new Integer[len];
+    for (int i = 0; i < len; ++i) order[i] = i;
+
+    final long[] mins = minUIDs;
+    Arrays.sort(order, new Comparator<Integer>(){
+      public int compare(Integer o1, Integer o2)
+      {
+        long m1 = mins[o1];
+        long m2 = mins[o2];
+        return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+      }
+    });
+
+    boolean disjoint = true;
+    for (int i = 1; i < len; ++i)
+    {
+      if (minUIDs[order[i]] <= maxUIDs[order[i - 1]])
+      {
+        disjoint = false;
+        break;
+      }
+    }
+    _disjoint = disjoint;
+
+    // overlapping segments are probed in reader order, the same order the readers would be probed in
+    _mappers = new DocIDMapper[len];
+    _minUIDs = new long[len];
+    _maxUIDs = new long[len];
+    _starts = new int[len];
+    for (int i = 0; i < len; ++i)
+    {
+      int idx = disjoint ? order[i] : i;
+      _mappers[i] = mappers[idx];
+      _minUIDs[i] = minUIDs[idx];
+      _maxUIDs[i] = maxUIDs[idx];
+      _starts[i] = starts[idx];
+    }
+  }
+
+  public int getDocID(long uid)
+  {
+    int len = _mappers.length;
+    if (len == 0) return DocIDMapper.NOT_FOUND;
+
+    if (_disjoint)
+    {
+      // the last segment starting at or below uid is the only candidate
+      int idx = Arrays.binarySearch(_minUIDs, uid);
+      if (idx < 0)
+      {
+        idx = -(idx + 1) - 1;
+        if (idx < 0) return DocIDMapper.NOT_FOUND;
+      }
+      if (uid > _maxUIDs[idx]) return DocIDMapper.NOT_FOUND;
+
+      int docid = _mappers[idx].getDocID(uid);
+      return docid == DocIDMapper.NOT_FOUND ? DocIDMapper.NOT_FOUND : docid + _starts[idx];
+    }
+
+    for (int i = 0; i < len; ++i)
+    {
+      if (uid < _minUIDs[i] || uid > _maxUIDs[i]) continue;
+
+      int docid = _mappers[i].getDocID(uid);
+      if (docid != DocIDMapper.NOT_FOUND) return docid + _starts[i];
+    }
+    return DocIDMapper.NOT_FOUND;
+  }
+}
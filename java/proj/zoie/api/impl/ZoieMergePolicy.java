@@ -17,6 +17,10 @@ package proj.zoie.api.impl;
  * limitations under the License.
  */
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.lucene.index.CorruptIndexException;
@@ -35,26 +39,70 @@ import org.apache.lucene.index.SegmentInfos;
 public class ZoieMergePolicy extends LogByteSizeMergePolicy
 {
   public static final int DEFAULT_NUM_LARGE_SEGMENTS = 10;
+  public static final float DEFAULT_EXPUNGE_DELETED_RATIO = 0.0f;
+  public static final long DEFAULT_MAX_EXPUNGE_BYTES = Long.MAX_VALUE;
   
   private boolean _partialExpunge = false;
+  private float _expungeDeletedRatio = DEFAULT_EXPUNGE_DELETED_RATIO;
+  private long _maxExpungeBytes = DEFAULT_MAX_EXPUNGE_BYTES;
   private int _numLargeSegments = DEFAULT_NUM_LARGE_SEGMENTS;
   private int _maxSmallSegments = 2 * LogMergePolicy.DEFAULT_MERGE_FACTOR;
   private int _maxSegments = _numLargeSegments + _maxSmallSegments;
   
+  /**
+   * The merge policies selectable through {@link MergePolicyParams}.
+   */
+  public static enum MergePolicyType
+  {
+    /** keeps a number of large segments of similar sizes, see {@link ZoieMergePolicy} */
+    BALANCED,
+    /** merges by tiers of segment sizes, see {@link ZoieTieredMergePolicy} */
+    TIERED
+  }
+  
   public ZoieMergePolicy(IndexWriter writer)
   {
     super(writer);
   }
   
+  /**
+   * Creates the merge policy of the type the params ask for.
+   * @param writer the index writer
+   * @param params merge policy params, null for the default policy
+   * @return the merge policy with the params applied
+   */
+  public static ZoieMergePolicy newMergePolicy(IndexWriter writer, MergePolicyParams params)
+  {
+    ZoieMergePolicy mergePolicy;
+    if (params != null && params._mergePolicyType == MergePolicyType.TIERED)
+    {
+      mergePolicy = new ZoieTieredMergePolicy(writer);
+    }
+    else
+    {
+      mergePolicy = new ZoieMergePolicy(writer);
+    }
+    mergePolicy.setMergePolicyParams(params);
+    return mergePolicy;
+  }
+  
+  public MergePolicyType getMergePolicyType()
+  {
+    return MergePolicyType.BALANCED;
+  }
+  
   public void setMergePolicyParams(MergePolicyParams params){
 	  if (params!=null){
 	    setPartialExpunge(params._doPartialExpunge);
 	    setNumLargeSegments(params._numLargeSegments);
-	    setMaxSmallSegments(params._maxSmallSegments);
 	    setPartialExpunge(params._doPartialExpunge);
 	    setMergeFactor(params._mergeFactor);
+	    // the params may be applied again to a policy in use, whose merge factor may be larger
+	    setMaxSmallSegments(Math.max(params._maxSmallSegments, params._mergeFactor));
 	    setUseCompoundFile(params._useCompoundFile);
 	    setMaxMergeDocs(params._maxMergeDocs);
+	    setExpungeDeletedRatio(params._expungeDeletedRatio);
+	    setMaxExpungeBytes(params._maxExpungeBytes);
 	  }
   }
   
@@ -75,6 +123,50 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     return _partialExpunge;
   }
   
+  /**
+   * Makes {@link #findMergesToExpungeDeletes(SegmentInfos)} only rewrite the segments with at least
+   * this share of deleted documents, 0 rewrites all segments with deletes.
+   * @param expungeDeletedRatio deleted ratio between 0 and 1
+   */
+  public void setExpungeDeletedRatio(float expungeDeletedRatio)
+  {
+    if (expungeDeletedRatio < 0.0f || expungeDeletedRatio > 1.0f)
+      throw new IllegalArgumentException("invalid deleted ratio: " + expungeDeletedRatio);
+    
+    _expungeDeletedRatio = expungeDeletedRatio;
+  }
+  
+  public float getExpungeDeletedRatio()
+  {
+    return _expungeDeletedRatio;
+  }
+  
+  /**
+   * Caps the bytes {@link #findMergesToExpungeDeletes(SegmentInfos)} rewrites in one pass. The segment
+   * with the most deletes is rewritten even if it is larger, so that it is expunged eventually.
+   * @param maxExpungeBytes bytes of segments rewritten per pass
+   */
+  public void setMaxExpungeBytes(long maxExpungeBytes)
+  {
+    if (maxExpungeBytes <= 0L)
+      throw new IllegalArgumentException("invalid max expunge bytes: " + maxExpungeBytes);
+    
+    _maxExpungeBytes = maxExpungeBytes;
+  }
+  
+  public long getMaxExpungeBytes()
+  {
+    return _maxExpungeBytes;
+  }
+  
+  /**
+   * @return whether expunging deletes only rewrites the segments picked by {@link #planExpunge(SegmentInfos, float, long)}
+   */
+  public boolean isTargetedExpunge()
+  {
+    return (_expungeDeletedRatio > 0.0f || _maxExpungeBytes != DEFAULT_MAX_EXPUNGE_BYTES);
+  }
+  
   public void setNumLargeSegments(int numLargeSegments)
   {
     if (numLargeSegments < 2)
@@ -314,11 +406,24 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
   /**
    * Finds merges necessary to expunge all deletes from the
    * index. The number of large segments will stay the same.
+   * With a deleted ratio or a byte cap set, each segment picked by
+   * {@link #planExpunge(SegmentInfos, float, long)} is rewritten on its own instead.
    */ 
   @Override
   public MergeSpecification findMergesToExpungeDeletes(SegmentInfos infos)
     throws CorruptIndexException, IOException
   {
+    if(isTargetedExpunge())
+    {
+      ExpungePlan plan = planExpunge(infos, _expungeDeletedRatio, _maxExpungeBytes);
+      MergeSpecification spec = new MergeSpecification();
+      for(int i : plan._segments)
+      {
+        spec.add(new OneMerge(infos.range(i, i + 1), getUseCompoundFile()));
+      }
+      return spec;
+    }
+    
     final int numSegs = infos.size();
     final int numLargeSegs = (numSegs < _numLargeSegments ? numSegs : _numLargeSegments);
     MergeSpecification spec = null;
@@ -355,7 +460,15 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     final int numSegs = infos.size();
     final int numLargeSegs = _numLargeSegments;
     
-    if(numSegs <= numLargeSegs) return null;
+    if(numSegs <= numLargeSegs)
+    {
+      // nothing to merge, still expunge one segment if asked to
+      OneMerge expunge = (_partialExpunge ? findOneSegmentToExpunge(infos, numSegs) : null);
+      if(expunge == null) return null;
+      MergeSpecification spec = new MergeSpecification();
+      spec.add(expunge);
+      return spec;
+    }
     
     long totalLargeSegSize = 0;
     long totalSmallSegSize = 0;
@@ -426,6 +539,109 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
     }      
   }
   
+  /**
+   * Picks the segments a targeted expunge rewrites: those with at least the given share of deleted
+   * documents, the most deleted first, as long as they fit in the byte cap.
+   * @param infos segments of the index
+   * @param deletedRatio minimum deleted ratio of a segment, 0 for any segment with deletes
+   * @param maxBytes cap on the bytes rewritten, the first segment is picked regardless
+   * @return the segments and the space expected to be reclaimed
+   * @throws IOException
+   */
+  public static ExpungePlan planExpunge(SegmentInfos infos, float deletedRatio, long maxBytes) throws IOException
+  {
+    ArrayList<ExpungeCandidate> candidates = new ArrayList<ExpungeCandidate>();
+    for(int i = 0; i < infos.size(); i++)
+    {
+      SegmentInfo info = infos.info(i);
+      int delCount = info.getDelCount();
+      if(info.docCount <= 0 || delCount <= 0) continue;
+      
+      float ratio = (float)delCount / (float)info.docCount;
+      if(ratio >= deletedRatio)
+      {
+        candidates.add(new ExpungeCandidate(i, ratio, delCount, info.sizeInBytes()));
+      }
+    }
+    Collections.sort(candidates, new Comparator<ExpungeCandidate>()
+    {
+      public int compare(ExpungeCandidate c1, ExpungeCandidate c2)
+      {
+        if(c1._ratio != c2._ratio) return (c1._ratio > c2._ratio ? -1 : 1);
+        return (c1._bytes < c2._bytes ? -1 : (c1._bytes == c2._bytes ? 0 : 1));
+      }
+    });
+    
+    ExpungePlan plan = new ExpungePlan();
+    for(ExpungeCandidate candidate : candidates)
+    {
+      if(plan._segments.isEmpty() || plan._rewriteBytes + candidate._bytes <= maxBytes)
+      {
+        plan._segments.add(candidate._segment);
+        plan._rewriteBytes += candidate._bytes;
+        plan._reclaimBytes += (long)(candidate._bytes * candidate._ratio);
+        plan._reclaimDocs += candidate._delCount;
+      }
+    }
+    Collections.sort(plan._segments);
+    return plan;
+  }
+  
+  private static class ExpungeCandidate
+  {
+    private final int _segment;
+    private final float _ratio;
+    private final int _delCount;
+    private final long _bytes;
+    
+    ExpungeCandidate(int segment, float ratio, int delCount, long bytes)
+    {
+      _segment = segment;
+      _ratio = ratio;
+      _delCount = delCount;
+      _bytes = bytes;
+    }
+  }
+  
+  /**
+   * The segments a targeted expunge rewrites, with the expected reclaim, see {@link ZoieMergePolicy#planExpunge(SegmentInfos, float, long)}.
+   * The reclaimed bytes are estimated from the share of deleted documents of each segment.
+   */
+  public static class ExpungePlan
+  {
+    private final List<Integer> _segments = new ArrayList<Integer>();
+    private long _rewriteBytes = 0L;
+    private long _reclaimBytes = 0L;
+    private long _reclaimDocs = 0L;
+    
+    public int getSegmentCount()
+    {
+      return _segments.size();
+    }
+    
+    public long getRewriteBytes()
+    {
+      return _rewriteBytes;
+    }
+    
+    public long getReclaimBytes()
+    {
+      return _reclaimBytes;
+    }
+    
+    public long getReclaimDocs()
+    {
+      return _reclaimDocs;
+    }
+    
+    @Override
+    public String toString()
+    {
+      return "segments: " + _segments.size() + ", bytes to rewrite: " + _rewriteBytes
+          + ", expected reclaim: " + _reclaimBytes + " bytes, " + _reclaimDocs + " deleted docs";
+    }
+  }
+  
   private OneMerge findOneSegmentToExpunge(SegmentInfos infos, int maxNumSegments) throws IOException
   {
     int expungeCandidate = -1;
@@ -456,6 +672,10 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
 	  private int _mergeFactor;
 	  private boolean _useCompoundFile;
 	  private int _maxMergeDocs;
+	  private float _expungeDeletedRatio;
+	  private long _maxExpungeBytes;
+	  private MergePolicyType _mergePolicyType;
+	  private long _maxMergedSegmentBytes;
 	  
 	  public MergePolicyParams(){
 		  _useCompoundFile = true;
@@ -465,6 +685,10 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
 		  _maxSmallSegments = _numLargeSegments + _maxSmallSegments;
 		  _mergeFactor = LogMergePolicy.DEFAULT_MERGE_FACTOR;
 		  _maxMergeDocs = LogMergePolicy.DEFAULT_MAX_MERGE_DOCS;
+		  _expungeDeletedRatio = DEFAULT_EXPUNGE_DELETED_RATIO;
+		  _maxExpungeBytes = DEFAULT_MAX_EXPUNGE_BYTES;
+		  _mergePolicyType = MergePolicyType.BALANCED;
+		  _maxMergedSegmentBytes = ZoieTieredMergePolicy.DEFAULT_MAX_MERGED_SEGMENT_BYTES;
 	  }
 	  
 	  public void setNumLargeSegments(int numLargeSegments)
@@ -526,5 +750,53 @@ public class ZoieMergePolicy extends LogByteSizeMergePolicy
 	  {
 	    return _useCompoundFile;
 	  }
+	  
+	  public void setExpungeDeletedRatio(float expungeDeletedRatio)
+	  {
+	    _expungeDeletedRatio = expungeDeletedRatio;
+	  }
+	  
+	  public float getExpungeDeletedRatio()
+	  {
+	    return _expungeDeletedRatio;
+	  }
+	  
+	  public void setMaxExpungeBytes(long maxExpungeBytes)
+	  {
+	    _maxExpungeBytes = maxExpungeBytes;
+	  }
+	  
+	  public long getMaxExpungeBytes()
+	  {
+	    return _maxExpungeBytes;
+	  }
+	  
+	  /**
+	   * Selects the merge policy, an index writer in use switches to it with its next batch.
+	   * @param mergePolicyType type of the merge policy
+	   */
+	  public void setMergePolicyType(MergePolicyType mergePolicyType)
+	  {
+	    if (mergePolicyType == null) throw new IllegalArgumentException("merge policy type is null");
+	    _mergePolicyType = mergePolicyType;
+	  }
+	  
+	  public MergePolicyType getMergePolicyType()
+	  {
+	    return _mergePolicyType;
+	  }
+	  
+	  /**
+	   * @param maxMergedSegmentBytes largest segment the tiered merge policy builds
+	   */
+	  public void setMaxMergedSegmentBytes(long maxMergedSegmentBytes)
+	  {
+	    _maxMergedSegmentBytes = maxMergedSegmentBytes;
+	  }
+	  
+	  public long getMaxMergedSegmentBytes()
+	  {
+	    return _maxMergedSegmentBytes;
+	  }
   }
 }
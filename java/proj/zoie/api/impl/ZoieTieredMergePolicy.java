@@ -0,0 +1,221 @@
+package proj.zoie.api.impl;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentInfos;
+
+/**
+ * A tiered alternative to the balanced merges of {@link ZoieMergePolicy}. The index may keep
+ * mergeFactor segments per tier of size; past that budget, the merges with the lowest score are picked
+ * among all runs of up to mergeFactor segments, wherever they start. The score favors segments of
+ * similar sizes, small results and reclaimed deletes, and no merge builds a segment larger than the
+ * max merged segment size, so the cost of a merge does not grow with the index.
+ * <p>
+ * Lucene only commits merges of adjacent segments, hence runs rather than arbitrary sets of segments.
+ * Optimize and expunge work as in {@link ZoieMergePolicy}.
+ */
+public class ZoieTieredMergePolicy extends ZoieMergePolicy
+{
+  public static final long DEFAULT_MAX_MERGED_SEGMENT_BYTES = 5L * 1024L * 1024L * 1024L;
+  // smaller segments are rounded up to this size, so that tiny flushes are merged early
+  public static final long FLOOR_SEGMENT_BYTES = 2L * 1024L * 1024L;
+
+  private long _maxMergedSegmentBytes = DEFAULT_MAX_MERGED_SEGMENT_BYTES;
+
+  public ZoieTieredMergePolicy(IndexWriter writer)
+  {
+    super(writer);
+  }
+
+  @Override
+  public MergePolicyType getMergePolicyType()
+  {
+    return MergePolicyType.TIERED;
+  }
+
+  @Override
+  public void setMergePolicyParams(MergePolicyParams params)
+  {
+    super.setMergePolicyParams(params);
+    if (params != null)
+    {
+      setMaxMergedSegmentBytes(params.getMaxMergedSegmentBytes());
+    }
+  }
+
+  /**
+   * @param maxMergedSegmentBytes largest segment a merge may build, segments over half of it are not merged
+   */
+  public void setMaxMergedSegmentBytes(long maxMergedSegmentBytes)
+  {
+    if (maxMergedSegmentBytes <= 0L)
+      throw new IllegalArgumentException("invalid max merged segment bytes: " + maxMergedSegmentBytes);
+
+    _maxMergedSegmentBytes = maxMergedSegmentBytes;
+  }
+
+  public long getMaxMergedSegmentBytes()
+  {
+    return _maxMergedSegmentBytes;
+  }
+
+  private static long floorSize(long size)
+  {
+    return Math.max(size, FLOOR_SEGMENT_BYTES);
+  }
+
+  @Override
+  public MergeSpecification findMerges(SegmentInfos infos) throws IOException
+  {
+    final int numSegs = infos.size();
+    final int mergeFactor = getMergeFactor();
+
+    long[] sizes = new long[numSegs];      // deletes discounted
+    long[] fullSizes = new long[numSegs];
+    boolean[] eligible = new boolean[numSegs];
+    boolean[] merging = new boolean[numSegs];
+    int numEligible = 0;
+    long totalBytes = 0L;
+    long minBytes = Long.MAX_VALUE;
+    for(int i = 0; i < numSegs; i++)
+    {
+      SegmentInfo info = infos.info(i);
+      sizes[i] = size(info);
+      fullSizes[i] = info.sizeInBytes();
+      eligible[i] = (sizes[i] < _maxMergedSegmentBytes / 2 && info.docCount <= getMaxMergeDocs());
+      if(eligible[i])
+      {
+        numEligible++;
+        totalBytes += floorSize(sizes[i]);
+        minBytes = Math.min(minBytes, floorSize(sizes[i]));
+      }
+    }
+
+    MergeSpecification spec = null;
+    int allowedSegCount = (numEligible == 0 ? 0 : getAllowedSegmentCount(totalBytes, minBytes, mergeFactor));
+    while(numEligible > allowedSegCount)
+    {
+      int bestStart = -1;
+      int bestEnd = -1;
+      double bestScore = Double.MAX_VALUE;
+      for(int start = 0; start < numSegs; start++)
+      {
+        long mergedBytes = 0L;
+        long mergedFullBytes = 0L;
+        long mergedFloorBytes = 0L;
+        long largestFloorBytes = 0L;
+        for(int end = start; end < numSegs && (end - start) < mergeFactor && eligible[end]; end++)
+        {
+          mergedBytes += sizes[end];
+          if(mergedBytes > _maxMergedSegmentBytes) break;
+
+          mergedFullBytes += fullSizes[end];
+          mergedFloorBytes += floorSize(sizes[end]);
+          largestFloorBytes = Math.max(largestFloorBytes, floorSize(sizes[end]));
+          if(end > start)
+          {
+            int numMerged = end - start + 1;
+            double score = score(numMerged, mergeFactor, largestFloorBytes, mergedFloorBytes, mergedBytes, mergedFullBytes);
+            if(score < bestScore)
+            {
+              bestScore = score;
+              bestStart = start;
+              bestEnd = end;
+            }
+          }
+        }
+      }
+      if(bestStart < 0) break; // nothing left to merge under the size cap
+
+      if(spec == null) spec = new MergeSpecification();
+      spec.add(new OneMerge(infos.range(bestStart, bestEnd + 1), getUseCompoundFile()));
+      for(int i = bestStart; i <= bestEnd; i++)
+      {
+        eligible[i] = false;
+        merging[i] = true;
+      }
+      numEligible -= (bestEnd - bestStart + 1);
+    }
+
+    if(getPartialExpunge())
+    {
+      // expunge the segment with the most deletes among those not merged
+      int expungeCandidate = -1;
+      int maxDelCount = 0;
+      for(int i = 0; i < numSegs; i++)
+      {
+        if(merging[i]) continue;
+        int delCount = infos.info(i).getDelCount();
+        if(delCount > maxDelCount)
+        {
+          expungeCandidate = i;
+          maxDelCount = delCount;
+        }
+      }
+      if(maxDelCount > 0)
+      {
+        if(spec == null) spec = new MergeSpecification();
+        spec.add(new OneMerge(infos.range(expungeCandidate, expungeCandidate + 1), getUseCompoundFile()));
+      }
+    }
+    return spec;
+  }
+
+  /**
+   * Scores a merge, lower is better: the skew of the segment sizes, slightly more for larger
+   * results and less for merges that reclaim deletes.
+   */
+  private static double score(int numMerged, int mergeFactor, long largestFloorBytes, long mergedFloorBytes, long mergedBytes, long mergedFullBytes)
+  {
+    // a full merge is as good as a perfectly balanced one
+    double skew = (numMerged >= mergeFactor ? 1.0d / mergeFactor : (double)largestFloorBytes / (double)mergedFloorBytes);
+    double score = skew * Math.pow((double)mergedBytes, 0.05d);
+    if(mergedFullBytes > 0L)
+    {
+      double nonDelRatio = (double)mergedBytes / (double)mergedFullBytes;
+      score *= nonDelRatio * nonDelRatio;
+    }
+    return score;
+  }
+
+  /**
+   * @return number of segments the index may have: mergeFactor segments per tier, from the smallest
+   * segment size up, each tier mergeFactor times larger than the previous one
+   */
+  private static int getAllowedSegmentCount(long totalBytes, long minBytes, int mergeFactor)
+  {
+    long levelBytes = minBytes;
+    long bytesLeft = totalBytes;
+    double allowedSegCount = 0.0d;
+    while(true)
+    {
+      double levelSegCount = (double)bytesLeft / (double)levelBytes;
+      if(levelSegCount < mergeFactor)
+      {
+        allowedSegCount += Math.ceil(levelSegCount);
+        break;
+      }
+      allowedSegCount += mergeFactor;
+      bytesLeft -= mergeFactor * levelBytes;
+      levelBytes *= mergeFactor;
+    }
+    return Math.max((int)allowedSegCount, mergeFactor);
+  }
+}
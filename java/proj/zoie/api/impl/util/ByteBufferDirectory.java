@@ -0,0 +1,420 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+
+/**
+ * A memory {@link Directory} keeping the files in pages of a {@link DirectBufferPool}, i.e. off the Java heap.
+ * <p>
+ * Open inputs may still read a file after it is deleted, as they can with a file system, so the
+ * pages of deleted files are only given back to the pool when the directory is closed.
+ * The directory must not be closed before all readers on it are done.
+ */
+public class ByteBufferDirectory extends Directory
+{
+  private final DirectBufferPool _pool;
+  private final int _pageSize;
+  private final HashMap<String,ByteBufferFile> _files;
+  private final ArrayList<ByteBufferFile> _deletedFiles;
+
+  public ByteBufferDirectory(DirectBufferPool pool)
+  {
+    _pool = pool;
+    _pageSize = pool.getPageSize();
+    _files = new HashMap<String,ByteBufferFile>();
+    _deletedFiles = new ArrayList<ByteBufferFile>();
+    setLockFactory(new SingleInstanceLockFactory());
+  }
+
+  /**
+   * @return direct memory held by the files of the directory in bytes, 0 once closed
+   */
+  public synchronized long sizeInBytes()
+  {
+    long numPages = 0L;
+    for (ByteBufferFile file : _files.values())
+    {
+      numPages += file.numPages();
+    }
+    for (ByteBufferFile file : _deletedFiles)
+    {
+      numPages += file.numPages();
+    }
+    return numPages * _pageSize;
+  }
+
+  @Deprecated
+  @Override
+  public synchronized String[] list() throws IOException
+  {
+    ensureOpen();
+    return _files.keySet().toArray(new String[_files.size()]);
+  }
+
+  @Override
+  public String[] listAll() throws IOException
+  {
+    return list();
+  }
+
+  @Override
+  public synchronized boolean fileExists(String name) throws IOException
+  {
+    ensureOpen();
+    return _files.containsKey(name);
+  }
+
+  @Override
+  public long fileModified(String name) throws IOException
+  {
+    return getFile(name).getLastModified();
+  }
+
+  @Override
+  public void touchFile(String name) throws IOException
+  {
+    getFile(name).setLastModified(System.currentTimeMillis());
+  }
+
+  @Override
+  public synchronized void deleteFile(String name) throws IOException
+  {
+    ensureOpen();
+    ByteBufferFile file = _files.remove(name);
+    if (file == null) throw new FileNotFoundException(name);
+    _deletedFiles.add(file);
+  }
+
+  @Deprecated
+  @Override
+  public synchronized void renameFile(String from, String to) throws IOException
+  {
+    ensureOpen();
+    ByteBufferFile file = _files.remove(from);
+    if (file == null) throw new FileNotFoundException(from);
+    ByteBufferFile old = _files.put(to, file);
+    if (old != null) _deletedFiles.add(old);
+  }
+
+  @Override
+  public long fileLength(String name) throws IOException
+  {
+    return getFile(name).getLength();
+  }
+
+  @Override
+  public synchronized IndexOutput createOutput(String name) throws IOException
+  {
+    ensureOpen();
+    ByteBufferFile file = new ByteBufferFile();
+    ByteBufferFile old = _files.put(name, file);
+    if (old != null) _deletedFiles.add(old);
+    return new ByteBufferOutput(file);
+  }
+
+  @Override
+  public IndexInput openInput(String name) throws IOException
+  {
+    return new ByteBufferInput(getFile(name));
+  }
+
+  /**
+   * Gives the pages of all files back to the pool.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!isOpen) return;
+    isOpen = false;
+    for (ByteBufferFile file : _files.values())
+    {
+      _pool.release(file.releasePages());
+    }
+    for (ByteBufferFile file : _deletedFiles)
+    {
+      _pool.release(file.releasePages());
+    }
+    _files.clear();
+    _deletedFiles.clear();
+  }
+
+  private synchronized ByteBufferFile getFile(String name) throws IOException
+  {
+    ensureOpen();
+    ByteBufferFile file = _files.get(name);
+    if (file == null) throw new FileNotFoundException(name);
+    return file;
+  }
+
+  private static final class ByteBufferFile
+  {
+    private final ArrayList<ByteBuffer> _pages = new ArrayList<ByteBuffer>();
+    private long _length = 0L;
+    private long _lastModified = System.currentTimeMillis();
+
+    synchronized long getLength()
+    {
+      return _length;
+    }
+
+    synchronized void setLength(long length)
+    {
+      _length = length;
+    }
+
+    synchronized long getLastModified()
+    {
+      return _lastModified;
+    }
+
+    synchronized void setLastModified(long lastModified)
+    {
+      _lastModified = lastModified;
+    }
+
+    synchronized int numPages()
+    {
+      return _pages.size();
+    }
+
+    synchronized ByteBuffer getPage(int idx)
+    {
+      return _pages.get(idx);
+    }
+
+    synchronized void addPage(ByteBuffer page)
+    {
+      _pages.add(page);
+    }
+
+    synchronized List<ByteBuffer> releasePages()
+    {
+      ArrayList<ByteBuffer> pages = new ArrayList<ByteBuffer>(_pages);
+      _pages.clear();
+      _length = 0L;
+      return pages;
+    }
+  }
+
+  private final class ByteBufferOutput extends IndexOutput
+  {
+    private final ByteBufferFile _file;
+    private ByteBuffer _page;    // a private view of the current page
+    private int _pageIndex;
+    private int _pos;            // position in the current page
+
+    ByteBufferOutput(ByteBufferFile file)
+    {
+      _file = file;
+      _page = null;
+      _pageIndex = -1;
+      _pos = _pageSize;          // the first write moves to page 0
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException
+    {
+      if (_pos == _pageSize) nextPage();
+      _page.put(_pos++, b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        if (_pos == _pageSize) nextPage();
+        int n = Math.min(len, _pageSize - _pos);
+        _page.position(_pos);
+        _page.put(b, offset, n);
+        _pos += n;
+        offset += n;
+        len -= n;
+      }
+    }
+
+    private void nextPage()
+    {
+      _pageIndex++;
+      if (_pageIndex == _file.numPages())
+      {
+        _file.addPage(_pool.allocate());
+      }
+      _page = _file.getPage(_pageIndex).duplicate();
+      _pos = 0;
+    }
+
+    @Override
+    public long getFilePointer()
+    {
+      return (long)_pageIndex * _pageSize + _pos;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      flush();
+      int pageIndex = (int)(pos / _pageSize);
+      int offset = (int)(pos % _pageSize);
+      if (offset == 0)
+      {
+        // stay at the end of the previous page, the next write moves on
+        _pageIndex = pageIndex - 1;
+        _page = (_pageIndex >= 0 ? _file.getPage(_pageIndex).duplicate() : null);
+        _pos = _pageSize;
+      }
+      else
+      {
+        _pageIndex = pageIndex;
+        _page = _file.getPage(_pageIndex).duplicate();
+        _pos = offset;
+      }
+    }
+
+    @Override
+    public long length() throws IOException
+    {
+      return Math.max(_file.getLength(), getFilePointer());
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      long pos = getFilePointer();
+      if (pos > _file.getLength()) _file.setLength(pos);
+      _file.setLastModified(System.currentTimeMillis());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      flush();
+    }
+  }
+
+  private final class ByteBufferInput extends IndexInput
+  {
+    private final ByteBufferFile _file;
+    private final long _length;
+    private ByteBuffer _page;    // a private view of the current page
+    private int _pageIndex;
+    private long _pageStart;
+    private int _pos;            // position in the current page
+    private int _pageLength;     // readable bytes in the current page
+
+    ByteBufferInput(ByteBufferFile file)
+    {
+      _file = file;
+      _length = file.getLength();
+      setPosition(0L);
+    }
+
+    /**
+     * Positions the input lazily, the page is only looked up by the next read.
+     */
+    private void setPosition(long pos)
+    {
+      _pageIndex = -1;
+      _page = null;
+      _pageStart = pos;
+      _pos = 0;
+      _pageLength = 0;
+    }
+
+    private void nextPage() throws IOException
+    {
+      long pos = _pageStart + _pos;
+      if (pos >= _length) throw new IOException("read past EOF");
+      _pageIndex = (int)(pos / _pageSize);
+      _page = _file.getPage(_pageIndex).duplicate();
+      _pageStart = (long)_pageIndex * _pageSize;
+      _pos = (int)(pos - _pageStart);
+      _pageLength = (int)Math.min(_pageSize, _length - _pageStart);
+    }
+
+    @Override
+    public byte readByte() throws IOException
+    {
+      if (_pos >= _pageLength) nextPage();
+      return _page.get(_pos++);
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        if (_pos >= _pageLength) nextPage();
+        int n = Math.min(len, _pageLength - _pos);
+        _page.position(_pos);
+        _page.get(b, offset, n);
+        _pos += n;
+        offset += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public long getFilePointer()
+    {
+      return _pageStart + _pos;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      if (_page != null && pos >= _pageStart && pos < _pageStart + _pageLength)
+      {
+        _pos = (int)(pos - _pageStart); // same page
+      }
+      else
+      {
+        setPosition(pos);
+      }
+    }
+
+    @Override
+    public long length()
+    {
+      return _length;
+    }
+
+    @Override
+    public Object clone()
+    {
+      ByteBufferInput clone = (ByteBufferInput)super.clone();
+      if (_page != null) clone._page = _page.duplicate();
+      return clone;
+    }
+
+    @Override
+    public void close()
+    {
+      // the pages belong to the file
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, table driven eight bytes at a time. Not thread safe.
+ */
+public class CRC32C implements Checksum
+{
+  private static final int POLYNOMIAL = 0x82F63B78; // reversed
+
+  private static final int[][] TABLES = new int[8][256];
+  static
+  {
+    for(int n = 0; n < 256; n++)
+    {
+      int crc = n;
+      for(int k = 0; k < 8; k++)
+      {
+        crc = ((crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1);
+      }
+      TABLES[0][n] = crc;
+    }
+    for(int n = 0; n < 256; n++)
+    {
+      int crc = TABLES[0][n];
+      for(int t = 1; t < 8; t++)
+      {
+        crc = TABLES[0][crc & 0xFF] ^ (crc >>> 8);
+        TABLES[t][n] = crc;
+      }
+    }
+  }
+
+  private int _crc = 0xFFFFFFFF;
+
+  public void update(int b)
+  {
+    _crc = TABLES[0][(_crc ^ b) & 0xFF] ^ (_crc >>> 8);
+  }
+
+  public void update(byte[] b, int off, int len)
+  {
+    final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+    final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+
+    int crc = _crc;
+    while(len >= 8)
+    {
+      crc ^= (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+      crc = t7[crc & 0xFF] ^ t6[(crc >>> 8) & 0xFF] ^ t5[(crc >>> 16) & 0xFF] ^ t4[crc >>> 24]
+          ^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+      off += 8;
+      len -= 8;
+    }
+    while(len-- > 0)
+    {
+      crc = t0[(crc ^ b[off++]) & 0xFF] ^ (crc >>> 8);
+    }
+    _crc = crc;
+  }
+
+  public long getValue()
+  {
+    return (~_crc) & 0xFFFFFFFFL;
+  }
+
+  public void reset()
+  {
+    _crc = 0xFFFFFFFF;
+  }
+}
@@ -0,0 +1,273 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * An immutable set of deleted docids of a segment.
+ * Sparse sets are kept as a sorted int array, dense sets as an {@link OpenBitSet}
+ * which gives constant time look-ups. Use {@link Builder} to collect the docids.
+ */
+public abstract class DelDocIdSet extends DocIdSet
+{
+  /**
+   * A set is stored as a bit set once it has at least maxDoc/DENSE_RATIO docids.
+   */
+  public static final int DENSE_RATIO = 256;
+
+  private static final int[] EMPTY_DOCIDS = new int[0];
+
+  public static final DelDocIdSet EMPTY = new SparseDelDocIdSet(EMPTY_DOCIDS);
+
+  /**
+   * @param docid doc id
+   * @return true if docid is in the set
+   */
+  abstract public boolean isDeleted(int docid);
+
+  /**
+   * @return number of docids in the set
+   */
+  abstract public int size();
+
+  /**
+   * @return docids in the set in ascending order
+   */
+  abstract public int[] toIntArray();
+
+  @Override
+  public boolean isCacheable()
+  {
+    return true;
+  }
+
+  private static final class SparseDelDocIdSet extends DelDocIdSet
+  {
+    private final int[] _docids;
+    private final ArrayDocIdSet _docIdSet;
+
+    SparseDelDocIdSet(int[] docids)
+    {
+      _docids = docids;
+      _docIdSet = new ArrayDocIdSet(docids);
+    }
+
+    @Override
+    public boolean isDeleted(int docid)
+    {
+      int len = _docids.length;
+      if (len == 0 || docid < _docids[0] || docid > _docids[len - 1]) return false;
+      return Arrays.binarySearch(_docids, docid) >= 0;
+    }
+
+    @Override
+    public int size()
+    {
+      return _docids.length;
+    }
+
+    @Override
+    public int[] toIntArray()
+    {
+      return _docids.clone();
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+    {
+      return _docIdSet.iterator();
+    }
+  }
+
+  private static final class DenseDelDocIdSet extends DelDocIdSet
+  {
+    private final OpenBitSet _bits;  // shared with the builder and later sets, never modified
+    private final int[] _tail;       // docids added since the bits were copied, sorted
+    private final int _size;
+
+    DenseDelDocIdSet(OpenBitSet bits, int[] tail, int size)
+    {
+      _bits = bits;
+      _tail = tail;
+      _size = size;
+    }
+
+    @Override
+    public boolean isDeleted(int docid)
+    {
+      if (_bits.get(docid)) return true;
+      int len = _tail.length;
+      if (len == 0 || docid < _tail[0] || docid > _tail[len - 1]) return false;
+      return Arrays.binarySearch(_tail, docid) >= 0;
+    }
+
+    @Override
+    public int size()
+    {
+      return _size;
+    }
+
+    @Override
+    public int[] toIntArray()
+    {
+      int[] docids = new int[_size];
+      int i = 0;
+      int t = 0;
+      for (int docid = _bits.nextSetBit(0); docid >= 0; docid = _bits.nextSetBit(docid + 1))
+      {
+        while (t < _tail.length && _tail[t] < docid) docids[i++] = _tail[t++];
+        docids[i++] = docid;
+      }
+      while (t < _tail.length) docids[i++] = _tail[t++];
+      return docids;
+    }
+
+    @Override
+    public DocIdSetIterator iterator()
+    {
+      if (_tail.length == 0) return _bits.iterator();
+      return new UnionIterator(_bits.iterator(), new ArrayDocIdSet(_tail).iterator());
+    }
+  }
+
+  /**
+   * Iterates over two disjoint sets in docid order.
+   */
+  private static final class UnionIterator extends DocIdSetIterator
+  {
+    private final DocIdSetIterator _a;
+    private final DocIdSetIterator _b;
+    private int _docA = -1;
+    private int _docB = -1;
+    private int _doc = -1;
+
+    UnionIterator(DocIdSetIterator a, DocIdSetIterator b)
+    {
+      _a = a;
+      _b = b;
+    }
+
+    @Override
+    public int docID()
+    {
+      return _doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException
+    {
+      if (_docA <= _doc) _docA = _a.nextDoc();
+      if (_docB <= _doc) _docB = _b.nextDoc();
+      _doc = Math.min(_docA, _docB);
+      return _doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException
+    {
+      if (_docA < target) _docA = _a.advance(target);
+      if (_docB < target) _docB = _b.advance(target);
+      _doc = Math.min(_docA, _docB);
+      return _doc;
+    }
+  }
+
+  /**
+   * Collects deleted docids incrementally. Not thread safe, the sets it builds are.
+   * Dense sets share the bits last copied for one, the docids added since are kept in a sorted tail
+   * until it grows to the size of a sparse set, so a commit does not copy all the bits each time.
+   */
+  public static final class Builder
+  {
+    private final int _maxDoc;
+    private final OpenBitSet _bits;
+    private int _size;
+    private OpenBitSet _published;     // copy of _bits shared by the dense sets built, null if none
+    private final IntArrayList _tail;  // docids added since _published was copied
+
+    /**
+     * @param maxDoc maxDoc of the segment
+     */
+    public Builder(int maxDoc)
+    {
+      _maxDoc = maxDoc;
+      _bits = new OpenBitSet();  // grows up to the largest docid added
+      _size = 0;
+      _published = null;
+      _tail = new IntArrayList();
+    }
+
+    /**
+     * Adds a docid.
+     * @param docid doc id
+     * @return true if the docid was not in the set
+     */
+    public boolean add(int docid)
+    {
+      if (_bits.get(docid)) return false;
+      _bits.set(docid);
+      _size++;
+      if (_published != null) _tail.add(docid);
+      return true;
+    }
+
+    /**
+     * @return number of docids added
+     */
+    public int size()
+    {
+      return _size;
+    }
+
+    /**
+     * Builds an immutable set of the docids added so far.
+     * @return the set
+     */
+    public DelDocIdSet build()
+    {
+      if (_size == 0) return EMPTY;
+
+      if (_size >= _maxDoc / DENSE_RATIO)
+      {
+        if (_published == null || _tail.size() > _maxDoc / DENSE_RATIO)
+        {
+          _published = (OpenBitSet)_bits.clone();
+          _tail.clear();
+          return new DenseDelDocIdSet(_published, EMPTY_DOCIDS, _size);
+        }
+        int[] tail = _tail.toIntArray();
+        Arrays.sort(tail);
+        return new DenseDelDocIdSet(_published, tail, _size);
+      }
+
+      int[] docids = new int[_size];
+      int i = 0;
+      for (int docid = _bits.nextSetBit(0); docid >= 0; docid = _bits.nextSetBit(docid + 1))
+      {
+        docids[i++] = docid;
+      }
+      return new SparseDelDocIdSet(docids);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A pool of fixed size pages of direct memory. Pages are carved out of large direct slabs, so
+ * the memory is outside of the Java heap and allocated in few system calls. Released pages are
+ * kept for reuse, slabs are never given back. Thread safe.
+ */
+public class DirectBufferPool
+{
+  public static final int DEFAULT_PAGE_SIZE = 32 * 1024;
+  public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+  private final int _pageSize;
+  private final int _pagesPerSlab;
+  private final ArrayList<ByteBuffer> _freePages;
+  private long _allocatedBytes;
+  private long _usedBytes;
+
+  public DirectBufferPool()
+  {
+    this(DEFAULT_PAGE_SIZE, DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * @param pageSize size of a page in bytes
+   * @param slabSize size of the direct buffers pages are carved out of, rounded down to a multiple of the page size
+   */
+  public DirectBufferPool(int pageSize, int slabSize)
+  {
+    if (pageSize <= 0) throw new IllegalArgumentException("invalid page size: " + pageSize);
+    if (slabSize < pageSize) throw new IllegalArgumentException("slab size " + slabSize + " is smaller than page size " + pageSize);
+    _pageSize = pageSize;
+    _pagesPerSlab = slabSize / pageSize;
+    _freePages = new ArrayList<ByteBuffer>();
+    _allocatedBytes = 0L;
+    _usedBytes = 0L;
+  }
+
+  public int getPageSize()
+  {
+    return _pageSize;
+  }
+
+  /**
+   * @return a cleared page of {@link #getPageSize()} bytes, its content is undefined
+   */
+  public synchronized ByteBuffer allocate()
+  {
+    if (_freePages.isEmpty()) allocateSlab();
+    ByteBuffer page = _freePages.remove(_freePages.size() - 1);
+    _usedBytes += _pageSize;
+    return page;
+  }
+
+  /**
+   * Gives a page back to the pool. The page must not be used afterwards.
+   * @param page a page returned by {@link #allocate()}
+   */
+  public synchronized void release(ByteBuffer page)
+  {
+    page.clear();
+    _freePages.add(page);
+    _usedBytes -= _pageSize;
+  }
+
+  public synchronized void release(Collection<ByteBuffer> pages)
+  {
+    for (ByteBuffer page : pages)
+    {
+      release(page);
+    }
+  }
+
+  /**
+   * @return direct memory held by the pool in bytes
+   */
+  public synchronized long getAllocatedBytes()
+  {
+    return _allocatedBytes;
+  }
+
+  /**
+   * @return direct memory handed out and not released in bytes
+   */
+  public synchronized long getUsedBytes()
+  {
+    return _usedBytes;
+  }
+
+  private void allocateSlab()
+  {
+    ByteBuffer slab = ByteBuffer.allocateDirect(_pagesPerSlab * _pageSize);
+    for (int i = 0; i < _pagesPerSlab; ++i)
+    {
+      slab.limit((i + 1) * _pageSize);
+      slab.position(i * _pageSize);
+      _freePages.add(slab.slice());
+    }
+    _allocatedBytes += slab.capacity();
+  }
+}
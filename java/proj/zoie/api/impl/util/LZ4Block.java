@@ -0,0 +1,199 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compression in the LZ4 block format: a greedy single pass over the block with a hash table of
+ * recent 4 byte sequences, fast rather than tight. Blocks are independent of each other. A compressor
+ * instance keeps its hash table between blocks and is not thread safe, decompression is static.
+ */
+public class LZ4Block
+{
+  private static final int MIN_MATCH = 4;
+  private static final int LAST_LITERALS = 5;  // a block ends with literals
+  private static final int MF_LIMIT = 12;      // no match starts in the last bytes of a block
+  private static final int MAX_DISTANCE = 65535;
+  private static final int HASH_LOG = 12;
+  private static final int SKIP_STRENGTH = 6;  // search faster through incompressible data
+
+  private final int[] _hashTable = new int[1 << HASH_LOG];
+
+  /**
+   * @return the largest compressed size of a block of the given size
+   */
+  public static int maxCompressedLength(int len)
+  {
+    return len + len / 255 + 16;
+  }
+
+  /**
+   * @param dest must hold {@link #maxCompressedLength(int)} bytes from destOff
+   * @return the compressed size
+   */
+  public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff)
+  {
+    final int srcEnd = srcOff + srcLen;
+    final int matchLimit = srcEnd - LAST_LITERALS;
+    final int mfLimit = srcEnd - MF_LIMIT;
+
+    int anchor = srcOff;
+    int dOff = destOff;
+    if(srcLen > MF_LIMIT)
+    {
+      Arrays.fill(_hashTable, -1);
+      int sOff = srcOff;
+      int searchCount = 1 << SKIP_STRENGTH;
+      while(sOff < mfLimit)
+      {
+        int seq = readInt(src, sOff);
+        int h = hash(seq);
+        int ref = _hashTable[h];
+        _hashTable[h] = sOff;
+        if(ref < 0 || sOff - ref > MAX_DISTANCE || readInt(src, ref) != seq)
+        {
+          sOff += (searchCount++ >>> SKIP_STRENGTH);
+          continue;
+        }
+        searchCount = 1 << SKIP_STRENGTH;
+
+        // extend the match backwards over the pending literals, then forwards
+        while(sOff > anchor && ref > srcOff && src[sOff - 1] == src[ref - 1])
+        {
+          sOff--;
+          ref--;
+        }
+        int matchLen = MIN_MATCH;
+        while(sOff + matchLen < matchLimit && src[sOff + matchLen] == src[ref + matchLen])
+        {
+          matchLen++;
+        }
+
+        dOff = writeSequence(src, anchor, sOff - anchor, sOff - ref, matchLen, dest, dOff);
+        sOff += matchLen;
+        anchor = sOff;
+      }
+    }
+
+    // last literals
+    int litLen = srcEnd - anchor;
+    dest[dOff++] = (byte)(Math.min(litLen, 15) << 4);
+    if(litLen >= 15) dOff = writeLength(litLen - 15, dest, dOff);
+    System.arraycopy(src, anchor, dest, dOff, litLen);
+    dOff += litLen;
+    return dOff - destOff;
+  }
+
+  /**
+   * @return the decompressed size
+   * @throws IOException if the block is malformed or does not fit in destLen bytes
+   */
+  public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) throws IOException
+  {
+    final int srcEnd = srcOff + srcLen;
+    final int destEnd = destOff + destLen;
+
+    int sOff = srcOff;
+    int dOff = destOff;
+    while(true)
+    {
+      if(sOff >= srcEnd) throw new IOException("malformed block");
+      int token = src[sOff++] & 0xFF;
+
+      // literals
+      int litLen = token >>> 4;
+      if(litLen == 15)
+      {
+        int b;
+        do
+        {
+          if(sOff >= srcEnd) throw new IOException("malformed block");
+          b = src[sOff++] & 0xFF;
+          litLen += b;
+        }
+        while(b == 255);
+      }
+      if(litLen > srcEnd - sOff || litLen > destEnd - dOff) throw new IOException("malformed block");
+      System.arraycopy(src, sOff, dest, dOff, litLen);
+      sOff += litLen;
+      dOff += litLen;
+      if(sOff == srcEnd) break; // the last sequence has no match
+
+      // match
+      if(srcEnd - sOff < 2) throw new IOException("malformed block");
+      int offset = (src[sOff] & 0xFF) | ((src[sOff + 1] & 0xFF) << 8);
+      sOff += 2;
+      if(offset == 0 || offset > dOff - destOff) throw new IOException("malformed block");
+      int matchLen = token & 0x0F;
+      if(matchLen == 15)
+      {
+        int b;
+        do
+        {
+          if(sOff >= srcEnd) throw new IOException("malformed block");
+          b = src[sOff++] & 0xFF;
+          matchLen += b;
+        }
+        while(b == 255);
+      }
+      matchLen += MIN_MATCH;
+      if(matchLen > destEnd - dOff) throw new IOException("malformed block");
+      int ref = dOff - offset;
+      for(int i = 0; i < matchLen; i++) // may overlap
+      {
+        dest[dOff + i] = dest[ref + i];
+      }
+      dOff += matchLen;
+    }
+    return dOff - destOff;
+  }
+
+  private static int writeSequence(byte[] src, int litOff, int litLen, int offset, int matchLen, byte[] dest, int dOff)
+  {
+    int ml = matchLen - MIN_MATCH;
+    dest[dOff++] = (byte)((Math.min(litLen, 15) << 4) | Math.min(ml, 15));
+    if(litLen >= 15) dOff = writeLength(litLen - 15, dest, dOff);
+    System.arraycopy(src, litOff, dest, dOff, litLen);
+    dOff += litLen;
+    dest[dOff++] = (byte)offset;
+    dest[dOff++] = (byte)(offset >>> 8);
+    if(ml >= 15) dOff = writeLength(ml - 15, dest, dOff);
+    return dOff;
+  }
+
+  private static int writeLength(int len, byte[] dest, int dOff)
+  {
+    while(len >= 255)
+    {
+      dest[dOff++] = (byte)255;
+      len -= 255;
+    }
+    dest[dOff++] = (byte)len;
+    return dOff;
+  }
+
+  private static int readInt(byte[] b, int off)
+  {
+    return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+  }
+
+  private static int hash(int seq)
+  {
+    return (seq * -1640531535) >>> (32 - HASH_LOG);
+  }
+}
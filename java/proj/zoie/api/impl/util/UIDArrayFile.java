@@ -0,0 +1,215 @@
+package proj.zoie.api.impl.util;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-segment sidecar file holding the UID of every document of a segment as packed longs.
+ * The file is written once per segment (segments never change after they are written)
+ * and memory-mapped when a reader is opened, so the UID payloads need not be scanned.
+ * <p>
+ * Layout: int version, int maxDoc, long minUID, long maxUID, followed by maxDoc longs.
+ */
+public class UIDArrayFile
+{
+  private static final Logger log = Logger.getLogger(UIDArrayFile.class);
+
+  public static final String EXTENSION = "zuid";
+
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+  private final long[] _uidArray;
+  private final long _minUID;
+  private final long _maxUID;
+
+  private UIDArrayFile(long[] uidArray, long minUID, long maxUID)
+  {
+    _uidArray = uidArray;
+    _minUID = minUID;
+    _maxUID = maxUID;
+  }
+
+  public long[] getUIDArray()
+  {
+    return _uidArray;
+  }
+
+  public long getMinUID()
+  {
+    return _minUID;
+  }
+
+  public long getMaxUID()
+  {
+    return _maxUID;
+  }
+
+  public static File getFile(File dir, String segmentName)
+  {
+    return new File(dir, segmentName + "." + EXTENSION);
+  }
+
+  /**
+   * Loads the UID array of a segment.
+   * @param dir index directory
+   * @param segmentName segment name
+   * @param maxDoc maxDoc of the segment
+   * @return the UID array, null if there is no usable file for the segment
+   */
+  public static UIDArrayFile load(File dir, String segmentName, int maxDoc)
+  {
+    File file = getFile(dir, segmentName);
+    if (!file.exists()) return null;
+
+    RandomAccessFile raf = null;
+    try
+    {
+      raf = new RandomAccessFile(file, "r");
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (size != HEADER_SIZE + 8L * maxDoc)
+      {
+        log.warn("ignoring " + file.getAbsolutePath() + ": unexpected size " + size);
+        return null;
+      }
+
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      int version = buf.getInt();
+      int numDocs = buf.getInt();
+      if (version != VERSION || numDocs != maxDoc)
+      {
+        log.warn("ignoring " + file.getAbsolutePath() + ": version=" + version + ", maxDoc=" + numDocs);
+        return null;
+      }
+      long minUID = buf.getLong();
+      long maxUID = buf.getLong();
+      long[] uidArray = new long[maxDoc];
+      buf.asLongBuffer().get(uidArray);
+      return new UIDArrayFile(uidArray, minUID, maxUID);
+    }
+    catch (IOException ioe)
+    {
+      log.warn("unable to load " + file.getAbsolutePath() + ": " + ioe.getMessage());
+      return null;
+    }
+    finally
+    {
+      if (raf != null)
+      {
+        try
+        {
+          raf.close();
+        }
+        catch (IOException ioe)
+        {
+          log.error(ioe.getMessage(), ioe);
+        }
+      }
+    }
+  }
+
+  /**
+   * Saves the UID array of a segment. The file is written under a temporary name and renamed,
+   * so a concurrent {@link #load(File, String, int)} never sees a partial file.
+   * @param dir index directory
+   * @param segmentName segment name
+   * @param uidArray UIDs indexed by docid
+   * @param minUID smallest UID
+   * @param maxUID largest UID
+   * @throws IOException
+   */
+  public static void save(File dir, String segmentName, long[] uidArray, long minUID, long maxUID) throws IOException
+  {
+    File file = getFile(dir, segmentName);
+    File tmpFile = File.createTempFile(segmentName + "." + EXTENSION, ".tmp", dir);
+    try
+    {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024));
+      try
+      {
+        out.writeInt(VERSION);
+        out.writeInt(uidArray.length);
+        out.writeLong(minUID);
+        out.writeLong(maxUID);
+        for (long uid : uidArray)
+        {
+          out.writeLong(uid);
+        }
+      }
+      finally
+      {
+        out.close();
+      }
+
+      if (!tmpFile.renameTo(file))
+      {
+        // another reader may have won the race, its file has the same content
+        if (!file.exists())
+        {
+          throw new IOException("unable to rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+      }
+    }
+    finally
+    {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Deletes the files of segments no longer referenced by the index.
+   * @param dir index directory
+   * @param fileNames names of all files referenced by live commits
+   */
+  public static void purge(File dir, Collection<String> fileNames)
+  {
+    HashSet<String> segments = new HashSet<String>();
+    for (String fileName : fileNames)
+    {
+      int idx = fileName.indexOf('.');
+      if (idx > 0) segments.add(fileName.substring(0, idx));
+    }
+
+    File[] files = dir.listFiles();
+    if (files == null) return;
+
+    String suffix = "." + EXTENSION;
+    for (File file : files)
+    {
+      String name = file.getName();
+      if (name.endsWith(suffix) && !segments.contains(name.substring(0, name.length() - suffix.length())))
+      {
+        if (!file.delete())
+        {
+          log.warn("unable to delete " + file.getAbsolutePath());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+import proj.zoie.api.ZoieIndexReader;
+
+/**
+ * Loads the term index and the norms of every indexed field and the docid mapper of a segment.
+ * Extend it to load the FieldCache entries the application sorts or facets on.
+ */
+public class DefaultReaderWarmer<R extends IndexReader> implements ReaderWarmer<R>
+{
+	public void warm(ZoieIndexReader<R> segmentReader) throws IOException
+	{
+		for (Object name : segmentReader.getFieldNames(IndexReader.FieldOption.INDEXED))
+		{
+			String field = (String)name;
+			segmentReader.docFreq(new Term(field, "")); // the first term lookup loads the term index
+			if (segmentReader.hasNorms(field))
+			{
+				segmentReader.norms(field);
+			}
+		}
+		segmentReader.getDocIDMaper();
+	}
+}
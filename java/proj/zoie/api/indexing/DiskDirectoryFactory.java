@@ -0,0 +1,105 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+/**
+ * Opens the directory of the disk index, for the index writer as well as for the disk readers.
+ */
+public interface DiskDirectoryFactory
+{
+	/**
+	 * Lets Lucene pick the implementation for the platform, see {@link FSDirectory#open(File)}. The default.
+	 */
+	public static final DiskDirectoryFactory DEFAULT = new DiskDirectoryFactory()
+	{
+		public FSDirectory newDirectory(File dir) throws IOException
+		{
+			return FSDirectory.open(dir);
+		}
+	};
+
+	/**
+	 * Reads through {@link NIOFSDirectory}, with positional reads that do not synchronize on the file.
+	 */
+	public static final DiskDirectoryFactory NIO = new DiskDirectoryFactory()
+	{
+		public FSDirectory newDirectory(File dir) throws IOException
+		{
+			return new NIOFSDirectory(dir);
+		}
+	};
+
+	/**
+	 * @param dir directory of the index
+	 * @return the directory
+	 * @throws IOException
+	 */
+	FSDirectory newDirectory(File dir) throws IOException;
+
+	/**
+	 * Reads through {@link MMapDirectory}, best on 64-bit hosts where the whole index fits in the address space.
+	 */
+	public static class MMapDirectoryFactory implements DiskDirectoryFactory
+	{
+		private final int _maxChunkSize;
+		private final boolean _useUnmap;
+
+		public MMapDirectoryFactory()
+		{
+			this(0, MMapDirectory.UNMAP_SUPPORTED);
+		}
+
+		/**
+		 * @param maxChunkSize largest mapping of a file in bytes, a file is mapped in several chunks
+		 * if it is larger, 0 for the Lucene default
+		 * @param useUnmap whether mappings are released as soon as a file is closed, only if the JVM supports it
+		 */
+		public MMapDirectoryFactory(int maxChunkSize, boolean useUnmap)
+		{
+			if (maxChunkSize < 0) throw new IllegalArgumentException("invalid chunk size: " + maxChunkSize);
+			_maxChunkSize = maxChunkSize;
+			_useUnmap = useUnmap && MMapDirectory.UNMAP_SUPPORTED;
+		}
+
+		public int getMaxChunkSize()
+		{
+			return _maxChunkSize;
+		}
+
+		public boolean getUseUnmap()
+		{
+			return _useUnmap;
+		}
+
+		public FSDirectory newDirectory(File dir) throws IOException
+		{
+			MMapDirectory directory = new MMapDirectory(dir);
+			if (_maxChunkSize > 0)
+			{
+				directory.setMaxChunkSize(_maxChunkSize);
+			}
+			directory.setUseUnmap(_useUnmap);
+			return directory;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Calendar;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.mbean.ZoieSystemAdminMBean;
+
+/**
+ * Expunges deletes in slices of one segment per flush, and only while it is cheap: a slice is
+ * scheduled when a disk segment has more deletes than the threshold, searches and pending events
+ * are below their limits and, if an optimize window is set, the hour is within the window.
+ * The slices are spread over the flushes at least {@link #getMinSliceInterval()} apart.
+ * A full expunge is never scheduled.
+ */
+public class LoadAwareOptimizeScheduler extends OptimizeScheduler {
+	private static Logger logger = Logger.getLogger(LoadAwareOptimizeScheduler.class);
+	
+	public static final float DEFAULT_DELETED_RATIO_THRESHOLD = 0.1f;
+	public static final double DEFAULT_MAX_SEARCH_RATE = 50.0;
+	public static final int DEFAULT_MAX_BACKLOG = 1000;
+	
+	// the search rate is measured over at least this long
+	private static final long MIN_SAMPLE_INTERVAL = 1000L;
+	
+	private final ZoieSystemAdminMBean _zoieAdmin;
+	
+	private volatile float _deletedRatioThreshold;
+	private volatile double _maxSearchRate;
+	private volatile int _maxBacklog;
+	private volatile long _minSliceInterval;
+	private volatile int _windowStartHour;
+	private volatile int _windowEndHour;
+	
+	private long _lastSampleTime;
+	private long _lastSearchCount;
+	private volatile double _searchRate;
+	private volatile float _deletedRatio;
+	private volatile int _backlog;
+	
+	private boolean _sliceScheduled;
+	private long _lastSliceTime;
+	private volatile long _sliceCount;
+	private volatile long _deferredCount;
+	
+	public LoadAwareOptimizeScheduler(ZoieSystemAdminMBean zoieAdmin){
+		_zoieAdmin = zoieAdmin;
+		_deletedRatioThreshold = DEFAULT_DELETED_RATIO_THRESHOLD;
+		_maxSearchRate = DEFAULT_MAX_SEARCH_RATE;
+		_maxBacklog = DEFAULT_MAX_BACKLOG;
+		_minSliceInterval = 0L;
+		_windowStartHour = -1;
+		_windowEndHour = -1;
+		_lastSampleTime = System.currentTimeMillis();
+		_lastSearchCount = zoieAdmin.getSearchCount();
+		_searchRate = 0.0;
+		_deletedRatio = 0.0f;
+		_backlog = 0;
+		_sliceScheduled = false;
+		_lastSliceTime = 0L;
+		_sliceCount = 0L;
+		_deferredCount = 0L;
+	}
+	
+	/**
+	 * @param threshold share of deleted documents in a segment above which it is expunged, between 0 and 1
+	 */
+	public void setDeletedRatioThreshold(float threshold){
+		if (threshold < 0.0f || threshold > 1.0f) throw new IllegalArgumentException("invalid threshold: " + threshold);
+		_deletedRatioThreshold = threshold;
+	}
+	
+	public float getDeletedRatioThreshold(){
+		return _deletedRatioThreshold;
+	}
+	
+	/**
+	 * @param maxSearchRate searches per second above which no slice is scheduled, 0 or less for no limit
+	 */
+	public void setMaxSearchRate(double maxSearchRate){
+		_maxSearchRate = maxSearchRate;
+	}
+	
+	public double getMaxSearchRate(){
+		return _maxSearchRate;
+	}
+	
+	/**
+	 * @param maxBacklog events waiting to be indexed above which no slice is scheduled, 0 or less for no limit
+	 */
+	public void setMaxBacklog(int maxBacklog){
+		_maxBacklog = maxBacklog;
+	}
+	
+	public int getMaxBacklog(){
+		return _maxBacklog;
+	}
+	
+	/**
+	 * @param minSliceInterval time in milliseconds between the start of two slices
+	 */
+	public void setMinSliceInterval(long minSliceInterval){
+		_minSliceInterval = minSliceInterval;
+	}
+	
+	public long getMinSliceInterval(){
+		return _minSliceInterval;
+	}
+	
+	/**
+	 * Restricts slices to the hours from startHour to endHour, e.g. from 22 to 6. The window
+	 * may wrap around midnight. The same hour twice, or -1 for both, lets slices run at any time.
+	 * @param startHour first hour of the window, 0 to 23
+	 * @param endHour hour the window ends at, 0 to 23
+	 */
+	public void setOptimizeWindow(int startHour, int endHour){
+		if (startHour < -1 || startHour > 23 || endHour < -1 || endHour > 23 || (startHour < 0) != (endHour < 0)){
+			throw new IllegalArgumentException("invalid window: " + startHour + " - " + endHour);
+		}
+		_windowStartHour = startHour;
+		_windowEndHour = endHour;
+	}
+	
+	public int getOptimizeWindowStartHour(){
+		return _windowStartHour;
+	}
+	
+	public int getOptimizeWindowEndHour(){
+		return _windowEndHour;
+	}
+	
+	/**
+	 * @return searches per second measured at the last flush
+	 */
+	public double getSearchRate(){
+		return _searchRate;
+	}
+	
+	/**
+	 * @return largest share of deleted documents in a segment measured at the last flush
+	 */
+	public float getDeletedRatio(){
+		return _deletedRatio;
+	}
+	
+	/**
+	 * @return events waiting to be indexed at the last flush
+	 */
+	public int getBacklog(){
+		return _backlog;
+	}
+	
+	/**
+	 * @return number of slices run
+	 */
+	public long getSliceCount(){
+		return _sliceCount;
+	}
+	
+	/**
+	 * @return number of flushes a slice was due at but put off because of the load or the time
+	 */
+	public long getDeferredCount(){
+		return _deferredCount;
+	}
+	
+	@Override
+	public synchronized OptimizeType getScheduledOptimizeType() {
+		long now = System.currentTimeMillis();
+		sampleSearchRate(now);
+		
+		_deletedRatio = _zoieAdmin.getMaxDiskSegmentDeletedRatio();
+		if (_deletedRatio <= _deletedRatioThreshold) return OptimizeType.NONE;
+		if (now - _lastSliceTime < _minSliceInterval) return OptimizeType.NONE;
+		
+		_backlog = _zoieAdmin.getCurrentMemBatchSize() + _zoieAdmin.getCurrentDiskBatchSize();
+		if (!isInWindow(now) ||
+		    (_maxSearchRate > 0.0 && _searchRate > _maxSearchRate) ||
+		    (_maxBacklog > 0 && _backlog > _maxBacklog)){
+			_deferredCount++;
+			if (logger.isDebugEnabled()){
+				logger.debug("expunge deferred, search rate: " + _searchRate + ", backlog: " + _backlog);
+			}
+			return OptimizeType.NONE;
+		}
+		
+		_sliceScheduled = true;
+		return OptimizeType.PARTIAL;
+	}
+	
+	@Override
+	public synchronized void finished() {
+		if (_sliceScheduled){
+			_sliceScheduled = false;
+			_lastSliceTime = System.currentTimeMillis();
+			_sliceCount++;
+			logger.info("expunged a slice, largest deleted ratio was: " + _deletedRatio);
+		}
+	}
+	
+	private void sampleSearchRate(long now){
+		long elapsed = now - _lastSampleTime;
+		if (elapsed < MIN_SAMPLE_INTERVAL) return;
+		long searchCount = _zoieAdmin.getSearchCount();
+		_searchRate = (searchCount - _lastSearchCount) * 1000.0 / elapsed;
+		_lastSearchCount = searchCount;
+		_lastSampleTime = now;
+	}
+	
+	private boolean isInWindow(long now){
+		int start = _windowStartHour;
+		int end = _windowEndHour;
+		if (start < 0 || start == end) return true;
+		
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(now);
+		int hour = cal.get(Calendar.HOUR_OF_DAY);
+		if (start <= end){
+			return hour >= start && hour < end;
+		}
+		return hour >= start || hour < end;
+	}
+}
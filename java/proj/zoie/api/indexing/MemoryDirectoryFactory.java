@@ -0,0 +1,77 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+
+import proj.zoie.api.impl.util.ByteBufferDirectory;
+import proj.zoie.api.impl.util.DirectBufferPool;
+
+/**
+ * Creates the directories of the realtime memory indexes.
+ * A memory index is closed, which closes its directory, once it has been flushed to disk.
+ */
+public interface MemoryDirectoryFactory
+{
+	/**
+	 * Keeps the memory indexes on the Java heap in {@link RAMDirectory}s, the default.
+	 */
+	public static final MemoryDirectoryFactory HEAP = new MemoryDirectoryFactory()
+	{
+		public Directory newDirectory()
+		{
+			return new RAMDirectory();
+		}
+	};
+	
+	/**
+	 * @return a new empty directory
+	 */
+	Directory newDirectory();
+	
+	/**
+	 * Keeps the memory indexes in direct memory, see {@link ByteBufferDirectory}, so large memory
+	 * indexes do not add to the old generation of the heap.
+	 */
+	public static class DirectMemoryDirectoryFactory implements MemoryDirectoryFactory
+	{
+		private final DirectBufferPool _pool;
+		
+		public DirectMemoryDirectoryFactory()
+		{
+			this(new DirectBufferPool());
+		}
+		
+		/**
+		 * @param pool pool the pages of the directories are taken from, may be shared
+		 */
+		public DirectMemoryDirectoryFactory(DirectBufferPool pool)
+		{
+			_pool = pool;
+		}
+		
+		public DirectBufferPool getPool()
+		{
+			return _pool;
+		}
+		
+		public Directory newDirectory()
+		{
+			return new ByteBufferDirectory(_pool);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package proj.zoie.api.indexing;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+
+import proj.zoie.api.ZoieIndexReader;
+
+/**
+ * Warms up the segments of a refreshed disk reader before the reader is published to searches,
+ * e.g. loads norms or FieldCache entries, so the first searches on new segments do not pay for it.
+ * Only segments that are new to the reader are warmed up.
+ * @see DefaultReaderWarmer
+ */
+public interface ReaderWarmer<R extends IndexReader>
+{
+	/**
+	 * Warms up a new segment. Warm-ups are not interrupted, the time budget is only checked between segments.
+	 * @param segmentReader reader of the segment
+	 * @throws IOException
+	 */
+	void warm(ZoieIndexReader<R> segmentReader) throws IOException;
+}
@@ -16,17 +16,26 @@ package proj.zoie.impl.indexing;
  * limitations under the License.
  */
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.ZoieException;
 
 /**
  * Runs a background thread that sends incoming data events to the background DataConsumer.
  * The incoming events are buffered locally and sent to background DataConsumer in batch.
  * <br><br>
+ * Events are handed over through a bounded ring buffer. Producers claim slots with a CAS on the
+ * claim sequence and publish each slot by writing its sequence number, the consumer thread drains
+ * every contiguous published slot into a batch. Nobody takes a lock, waiting is done according
+ * to the {@link WaitStrategy}.
+ * <br><br>
  * The private member _batchSize is the 'soft' size limit of each event batch.
  * If the events are coming in too fast and
  * it already accumulate this many, then we block the incoming events until the number of
@@ -39,24 +48,114 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
 {
   private static final Logger log = Logger.getLogger(AsyncDataConsumer.class);
   
+  public static final int DEFAULT_RING_SIZE = 1 << 16;
+  
+  /**
+   * How producers waiting for room, the consumer thread waiting for events and
+   * {@link AsyncDataConsumer#syncWthVersion(long, long)} callers wait.
+   */
+  public static enum WaitStrategy
+  {
+    /**
+     * Spins, lowest latency, burns a core per waiting thread.
+     */
+    BUSY_SPIN
+    {
+      int idle(int counter)
+      {
+        return counter + 1;
+      }
+    },
+    /**
+     * Yields the cpu between checks.
+     */
+    YIELD
+    {
+      int idle(int counter)
+      {
+        Thread.yield();
+        return counter + 1;
+      }
+    },
+    /**
+     * Spins and yields for a while, then parks. The consumer thread is unparked when events are published.
+     */
+    PARK
+    {
+      int idle(int counter)
+      {
+        if(counter < SPIN_TRIES) {}
+        else if(counter < SPIN_TRIES + YIELD_TRIES) Thread.yield();
+        else LockSupport.parkNanos(MAX_PARK_NANOS);
+        return counter + 1;
+      }
+    };
+    
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long MAX_PARK_NANOS = 1000000L; // 1ms
+    
+    /**
+     * Waits once.
+     * @param counter number of times waited so far
+     * @return the new counter
+     */
+    abstract int idle(int counter);
+  }
+  
   private volatile ConsumerThread _consumerThread;
   private volatile DataConsumer<V> _consumer;
-  private long _currentVersion;
-  private volatile long _bufferedVersion;
-  private LinkedList<DataEvent<V>> _batch;
+  private volatile long _currentVersion;
+  
+  // the ring
+  private final int _ringSize;
+  private final int _mask;
+  private final long[] _versions;
+  private final Object[] _payloads;
+  private final AtomicLongArray _published; // sequence last published in each slot
+  private final AtomicLong _claimed;        // last claimed sequence
+  private volatile long _consumed;          // last sequence taken by the consumer thread
+  private volatile long _processed;         // last sequence handed to the DataConsumer
+  private volatile boolean _consumerWaiting;
+  private final DataEventBatch<V> _batch;   // owned by the consumer thread
+  
+  private volatile WaitStrategy _waitStrategy;
+  
   /**
    * The 'soft' size limit of each event batch. If the events are coming in too fast and
    * it already accumulate this many, then we block the incoming events until the number of
    * buffered events drop below this limit after some of them being sent to background
    * DataConsumer.
    */
-  private int _batchSize;
+  private volatile int _batchSize;
 
   public AsyncDataConsumer()
   {
+    this(DEFAULT_RING_SIZE);
+  }
+  
+  /**
+   * @param ringSize number of slots of the ring buffer, rounded up to a power of 2.
+   * It is also the upper bound of the batch size.
+   */
+  public AsyncDataConsumer(int ringSize)
+  {
+    int size = 1;
+    while(size < ringSize) size <<= 1;
+    _ringSize = size;
+    _mask = size - 1;
+    _versions = new long[size];
+    _payloads = new Object[size];
+    _published = new AtomicLongArray(size);
+    for(int i = 0; i < size; i++) _published.set(i, -1L);
+    _claimed = new AtomicLong(-1L);
+    _consumed = -1L;
+    _processed = -1L;
+    _consumerWaiting = false;
+    _batch = new DataEventBatch<V>();
+    _waitStrategy = WaitStrategy.PARK;
+    
     _currentVersion = -1L;
-    _bufferedVersion = -1L;
-    _batch = new LinkedList<DataEvent<V>>();
     _batchSize = 1; // default
     _consumerThread = null;
   }
@@ -90,10 +189,7 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public void setDataConsumer(DataConsumer<V> consumer)
   {
-    synchronized(this)
-    {
-      _consumer = consumer;
-    }
+    _consumer = consumer;
   }
   
   /**
@@ -105,14 +201,12 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    * DataConsumer.
    * The actual size of each batch is variable, though the intention is that it is not bigger than the limit.
    * If the incoming batch is big, then the outgoing batch will be big too and likely bigger than the limit.
+   * A batch never exceeds the ring size.
    * @param batchSize
    */
   public void setBatchSize(int batchSize)
   {
-    synchronized(this)
-    {
-      _batchSize = Math.max(1, batchSize);
-    }
+    _batchSize = Math.max(1, batchSize);
   }
   
   /**
@@ -120,10 +214,7 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public int getBatchSize()
   {
-    synchronized(this)
-    {
-      return _batchSize;
-    }
+    return _batchSize;
   }
   
   /**
@@ -131,18 +222,28 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public int getCurrentBatchSize()
   {
-    synchronized(this)
-    {
-      return (_batch != null ? _batch.size() : 0);
-    }
+    return (int)(_claimed.get() - _consumed);
   }
   
   public long getCurrentVersion()
   {
-    synchronized(this)
-    {
-      return _currentVersion;
-    }
+    return _currentVersion;
+  }
+  
+  public int getRingSize()
+  {
+    return _ringSize;
+  }
+  
+  public WaitStrategy getWaitStrategy()
+  {
+    return _waitStrategy;
+  }
+  
+  public void setWaitStrategy(WaitStrategy waitStrategy)
+  {
+    if(waitStrategy == null) throw new IllegalArgumentException("wait strategy is null");
+    _waitStrategy = waitStrategy;
   }
   
   /**
@@ -152,7 +253,21 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public void flushEvents(long timeout) throws ZoieException
   {
-    syncWthVersion(timeout, _bufferedVersion);
+    long due = System.currentTimeMillis() + timeout;
+    
+    if(_consumerThread == null) throw new ZoieException("not running");
+    
+    // events claimed so far, versions are not enough with concurrent producers
+    long sequence = _claimed.get();
+    int counter = 0;
+    while(_processed < sequence)
+    {
+      if(System.currentTimeMillis() >= due)
+      {
+        throw new ZoieException("flush timed out");
+      }
+      counter = _waitStrategy.idle(counter);
+    }
   }
   
   /**
@@ -163,29 +278,18 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   public void syncWthVersion(long timeInMillis, long version) throws ZoieException
   {
-    long now = System.currentTimeMillis();
-    long due = now + timeInMillis;
+    long due = System.currentTimeMillis() + timeInMillis;
     
     if(_consumerThread == null) throw new ZoieException("not running");
     
-    synchronized(this)
+    int counter = 0;
+    while(_currentVersion < version)
     {
-      while(_currentVersion < version)
+      if(System.currentTimeMillis() >= due)
       {
-        if(now >= due)
-        {
-          throw new ZoieException("sync timed out");
-        }
-        try
-        {
-          this.wait(due - now);
-        }
-        catch(InterruptedException e)
-        {
-          log.warn(e.getMessage(), e);
-        }
-        now = System.currentTimeMillis();
+        throw new ZoieException("sync timed out");
       }
+      counter = _waitStrategy.idle(counter);
     }
   }
   
@@ -206,78 +310,141 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
   {
     if (data == null || data.size() == 0) return;
     
-    synchronized(this)
+    Iterator<DataEvent<V>> iter = data.iterator();
+    int remaining = data.size();
+    while(remaining > 0)
+    {
+      int n = Math.min(remaining, _ringSize);
+      long hi = claim(n);
+      for(long seq = hi - n + 1; seq <= hi; seq++)
+      {
+        DataEvent<V> event = iter.next();
+        publish(seq, event.getVersion(), event.getData());
+      }
+      signalConsumer();
+      remaining -= n;
+    }
+  }
+  
+  /**
+   * Same as {@link #consume(Collection)}. The events are copied, the caller may reuse the batch afterwards.
+   * @see proj.zoie.api.DataConsumer#consume(DataEventBatch)
+   */
+  public void consume(DataEventBatch<V> data) throws ZoieException
+  {
+    if (data == null || data.size() == 0) return;
+    
+    int size = data.size();
+    int idx = 0;
+    while(idx < size)
+    {
+      int n = Math.min(size - idx, _ringSize);
+      long hi = claim(n);
+      for(long seq = hi - n + 1; seq <= hi; seq++, idx++)
+      {
+        publish(seq, data.getVersion(idx), data.getData(idx));
+      }
+      signalConsumer();
+    }
+  }
+  
+  /**
+   * Claims n slots, waiting while the ring is full or at least _batchSize events are buffered.
+   * @return the last claimed sequence
+   */
+  private long claim(int n) throws ZoieException
+  {
+    int counter = 0;
+    while(true)
     {
-      while(_batch.size() >= _batchSize)
+      long current = _claimed.get();
+      long next = current + n;
+      long consumed = _consumed;
+      if(current - consumed < _batchSize && next - consumed <= _ringSize)
       {
-        if(_consumerThread == null || !_consumerThread.isAlive() || _consumerThread._stop)
-        {
-          throw new ZoieException("consumer thread has stopped");
-        }
-        try
-        {
-          this.wait();
-        }
-        catch (InterruptedException e)
-        {
-        }
+        if(_claimed.compareAndSet(current, next)) return next;
+        continue; // lost the race to another producer
       }
-      for(DataEvent<V> event : data)
+      
+      ConsumerThread consumerThread = _consumerThread;
+      if(consumerThread == null || !consumerThread.isAlive() || consumerThread._stop)
       {
-        _bufferedVersion = Math.max(_bufferedVersion, event.getVersion());
-        _batch.add(event);
+        throw new ZoieException("consumer thread has stopped");
       }
-      this.notifyAll(); // wake up the thread waiting in flushBuffer()
+      counter = _waitStrategy.idle(counter);
+    }
+  }
+  
+  private void publish(long seq, long version, V data)
+  {
+    int idx = (int)(seq & _mask);
+    _versions[idx] = version;
+    _payloads[idx] = data;
+    _published.set(idx, seq); // volatile write, makes the slot visible to the consumer
+  }
+  
+  private void signalConsumer()
+  {
+    if(_consumerWaiting)
+    {
+      ConsumerThread consumerThread = _consumerThread;
+      if(consumerThread != null) LockSupport.unpark(consumerThread);
     }
   }
   
   protected final void flushBuffer()
   {
-    long version;
-    LinkedList<DataEvent<V>> currentBatch;
+    long next = _consumed + 1;
+    long available = next - 1;
+    int counter = 0;
     
-    synchronized(this)
+    while(true)
     {
-      while(_batch.size() == 0)
+      while(_published.get((int)((available + 1) & _mask)) == available + 1)
       {
-        if(_consumerThread._stop) return;
-        try
-        {
-          this.wait();
-        }
-        catch (InterruptedException e)
-        {
-        }
+        available++;
       }
-      version = Math.max(_currentVersion, _bufferedVersion);
-      currentBatch = _batch;
-      _batch = new LinkedList<DataEvent<V>>();
+      if(available >= next) break;
       
-      this.notifyAll(); // wake up the thread waiting in consume(...)
+      if(_consumerThread._stop) return;
+      _consumerWaiting = true;
+      counter = _waitStrategy.idle(counter);
+      _consumerWaiting = false;
     }
     
-    if(_consumer != null)
+    DataEventBatch<V> currentBatch = _batch;
+    for(long seq = next; seq <= available; seq++)
+    {
+      int idx = (int)(seq & _mask);
+      @SuppressWarnings("unchecked")
+      V payload = (V)_payloads[idx]; // only producers of V publish into the ring
+      currentBatch.add(_versions[idx], payload);
+      _payloads[idx] = null;
+    }
+    _consumed = available; // volatile write, frees the slots for the producers
+    
+    long version = Math.max(_currentVersion, currentBatch.getMaxVersion());
+    DataConsumer<V> consumer = _consumer;
+    if(consumer != null)
     {
       try
       {
-        _consumer.consume(currentBatch);
+        consumer.consume(currentBatch);
       }
       catch (Exception e)
       {
         log.error(e.getMessage(), e);
       }
     }
+    currentBatch.clear();
     
-    synchronized(this)
-    {
-      _currentVersion = version;
-      this.notifyAll(); // wake up the thread waiting in syncWthVersion()
-    }    
+    _currentVersion = version; // releases the threads waiting in syncWthVersion()
+    _processed = available;    // and in flushEvents()
   }
   
   private final class ConsumerThread extends IndexingThread
   {
-    boolean _stop = false;
+    volatile boolean _stop = false;
     
     ConsumerThread()
     {
@@ -287,10 +454,7 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
     public void terminate()
     {
       _stop = true;
-      synchronized(AsyncDataConsumer.this)
-      {
-        AsyncDataConsumer.this.notifyAll();
-      }
+      LockSupport.unpark(this);
     }
     
     public void run()
@@ -15,13 +15,12 @@ package proj.zoie.impl.indexing;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import java.util.Collection;
-import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.DataProvider;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.DataConsumer.DataEvent;
@@ -133,7 +132,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 	
 	private static final class DataThread<V> extends Thread
 	{
-	    private Collection<DataEvent<V>> _batch;
+	    private final DataEventBatch<V> _batch; // reused, consumers copy what they keep
 		private long _currentVersion;
 		private final StreamDataProvider<V> _dataProvider;
 		private boolean _paused;
@@ -166,7 +165,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 			_currentVersion = 0L;
 			_paused = false;
 			_stop = false;
-			_batch = new LinkedList<DataEvent<V>>();
+			_batch = new DataEventBatch<V>();
 		}
 		@Override
 		public void start()
@@ -205,22 +204,22 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 		private void flush()
 	    {
 	    	// FLUSH
-		    Collection<DataEvent<V>> tmp;
-		    tmp = _batch;
-            _batch = new LinkedList<DataEvent<V>>();
-
 		    try
 	        {
 		      if(_dataProvider._consumer!=null)
 		      {
-		        _eventCount.getAndAdd(tmp.size());
-		    	  _dataProvider._consumer.consume(tmp);
+		        _eventCount.getAndAdd(_batch.size());
+		    	  _dataProvider._consumer.consume(_batch);
 		      }
 	        }
 	        catch (ZoieException e)
 	        {
 	          log.error(e.getMessage(), e);
 	        }
+	        finally
+	        {
+	          _batch.clear();
+	        }
 	    }
 		
 		public long getCurrentVersion()
@@ -36,11 +36,17 @@ import proj.zoie.api.DataConsumer;
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.impl.ZoieMergePolicy;
 import proj.zoie.api.indexing.DefaultOptimizeScheduler;
+import proj.zoie.api.indexing.DefaultReaderWarmer;
+import proj.zoie.api.indexing.DiskDirectoryFactory;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.MemoryDirectoryFactory;
 import proj.zoie.api.indexing.OptimizeScheduler;
+import proj.zoie.api.indexing.ReaderWarmer;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
 import proj.zoie.impl.indexing.internal.BatchedIndexDataLoader;
+import proj.zoie.impl.indexing.internal.DiskIndexSnapshot;
 import proj.zoie.impl.indexing.internal.DiskLuceneIndexDataLoader;
 import proj.zoie.impl.indexing.internal.IndexReaderDispenser;
 import proj.zoie.impl.indexing.internal.RealtimeIndexDataLoader;
@@ -182,10 +188,25 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 	  return _searchIdxMgr.getDiskSegmentCount();
 	}
 	
+	/**
+	 * Hands back readers taken by {@link #getIndexReaders()}, they are closed once no search and no
+	 * published snapshot uses them. Readers not returned within the leak timeout are reported.
+	 */
 	public void returnIndexReaders(List<ZoieIndexReader<R>> readers) {
 		_searchIdxMgr.returnReaders(readers);
 	}
 	
+	/**
+	 * @param leakTimeout time in milliseconds after which readers that were not returned are reported as leaked, 0 or less to stop checking
+	 */
+	public void setReaderLeakTimeout(long leakTimeout) {
+		_searchIdxMgr.getReaderLeakDetector().setLeakTimeout(leakTimeout);
+	}
+	
+	public long getReaderLeakTimeout() {
+		return _searchIdxMgr.getReaderLeakDetector().getLeakTimeout();
+	}
+	
     public void purgeIndex() throws IOException
     {
       try
@@ -211,12 +232,146 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
     public void setMaxBatchSize(int maxBatchSize) {
 	  _rtdc.setMaxBatchSize(maxBatchSize);
 	}
+    
+    /**
+     * Sets the number of threads converting incoming data with the interpreter, see
+     * {@link BatchedIndexDataLoader#setInterpreterParallelism(int)}.
+     * @param parallelism number of threads, the interpreter must be thread safe if greater than 1
+     */
+    public void setInterpreterParallelism(int parallelism) {
+      _rtdc.setInterpreterParallelism(parallelism);
+    }
+    
+    public int getInterpreterParallelism() {
+      return _rtdc.getInterpreterParallelism();
+    }
+    
+    /**
+     * Sets the number of shards of the realtime memory index, each shard is indexed by its own thread.
+     * The new value takes effect with the next memory index, i.e. after the next flush to disk.
+     * @param numRamShards number of shards
+     */
+    public void setNumRamShards(int numRamShards) {
+      _searchIdxMgr.setNumRamShards(numRamShards);
+    }
+    
+    public int getNumRamShards() {
+      return _searchIdxMgr.getNumRamShards();
+    }
+    
+    /**
+     * Sets the number of sealed memory indexes that may queue up for the disk flush before
+     * realtime indexing is throttled by the max batch size. Each memory index holds about one batch.
+     * @param maxSealedRamIndexes maximum number of sealed memory indexes, 1 by default
+     */
+    public void setMaxSealedRamIndexes(int maxSealedRamIndexes) {
+      _searchIdxMgr.setMaxSealedMemoryIndexes(maxSealedRamIndexes);
+    }
+    
+    public int getMaxSealedRamIndexes() {
+      return _searchIdxMgr.getMaxSealedMemoryIndexes();
+    }
+    
+    /**
+     * Sets where the realtime memory indexes keep their data, on the heap by default.
+     * The factory is used from the next memory index on, so it is best set before the system is started.
+     * @param memoryDirectoryFactory directory factory, e.g. a {@link MemoryDirectoryFactory.DirectMemoryDirectoryFactory} to keep the memory indexes off the heap
+     */
+    public void setMemoryDirectoryFactory(MemoryDirectoryFactory memoryDirectoryFactory) {
+      _searchIdxMgr.setMemoryDirectoryFactory(memoryDirectoryFactory);
+    }
+    
+    public MemoryDirectoryFactory getMemoryDirectoryFactory() {
+      return _searchIdxMgr.getMemoryDirectoryFactory();
+    }
+    
+    /**
+     * Sets how the disk index is opened, e.g. a {@link DiskDirectoryFactory.MMapDirectoryFactory} on 64-bit hosts.
+     * Disk readers are opened from scratch with it at the next refresh, see {@link #refreshDiskReader()}.
+     * @param diskDirectoryFactory directory factory
+     */
+    public void setDiskDirectoryFactory(DiskDirectoryFactory diskDirectoryFactory) {
+      _searchIdxMgr.setDiskDirectoryFactory(diskDirectoryFactory);
+    }
+    
+    public DiskDirectoryFactory getDiskDirectoryFactory() {
+      return _searchIdxMgr.getDiskDirectoryFactory();
+    }
+    
+    /**
+     * Sets the warmer that warms up the new segments of a refreshed disk reader before the reader is searched,
+     * so the first queries after a refresh are not slowed down.
+     * @param warmer reader warmer, null for none
+     */
+    public void setDiskReaderWarmer(ReaderWarmer<R> warmer) {
+      _searchIdxMgr.setDiskReaderWarmer(warmer);
+    }
+    
+    public ReaderWarmer<R> getDiskReaderWarmer() {
+      return _searchIdxMgr.getDiskReaderWarmer();
+    }
+    
+    /**
+     * @param warmUp true to warm up refreshed disk readers with a {@link DefaultReaderWarmer} unless a warmer is set,
+     * false to remove the warmer
+     */
+    public void setWarmUpDiskReaders(boolean warmUp) {
+      if (!warmUp) {
+        setDiskReaderWarmer(null);
+      }
+      else if (getDiskReaderWarmer() == null) {
+        setDiskReaderWarmer(new DefaultReaderWarmer<R>());
+      }
+    }
+    
+    public boolean isWarmUpDiskReaders() {
+      return getDiskReaderWarmer() != null;
+    }
+    
+    /**
+     * @param warmUpBudget time a refreshed disk reader may spend warming up in milliseconds, 0 or less for no limit.
+     * Segments left when the budget runs out are searched cold.
+     */
+    public void setDiskReaderWarmUpBudget(long warmUpBudget) {
+      _searchIdxMgr.setDiskReaderWarmUpBudget(warmUpBudget);
+    }
+    
+    public long getDiskReaderWarmUpBudget() {
+      return _searchIdxMgr.getDiskReaderWarmUpBudget();
+    }
 	
     public void exportSnapshot(WritableByteChannel channel) throws IOException
     {
       _diskLoader.exportSnapshot(channel);
     }
     
+    /**
+     * Exports a snapshot without the files the receiver has already.
+     * @param manifest the manifest written by the receiver with {@link #writeSnapshotManifest(WritableByteChannel)}
+     */
+    public void exportSnapshot(WritableByteChannel channel, ReadableByteChannel manifest) throws IOException
+    {
+      _diskLoader.exportSnapshot(channel, manifest);
+    }
+    
+    /**
+     * Exports a snapshot without the files the receiver has already, checksummed or compressed.
+     * @param manifest the manifest written by the receiver, null for a full snapshot
+     */
+    public void exportSnapshot(WritableByteChannel channel, ReadableByteChannel manifest, DiskIndexSnapshot.Encoding encoding) throws IOException
+    {
+      _diskLoader.exportSnapshot(channel, manifest, encoding);
+    }
+    
+    /**
+     * Writes the names, lengths and checksums of the index files, to be passed to the
+     * {@link #exportSnapshot(WritableByteChannel, ReadableByteChannel)} of the sender.
+     */
+    public void writeSnapshotManifest(WritableByteChannel channel) throws IOException
+    {
+      _diskLoader.writeSnapshotManifest(channel);
+    }
+    
     public void importSnapshot(ReadableByteChannel channel) throws IOException
     {
       _diskLoader.importSnapshot(channel);
@@ -320,6 +475,138 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 			ZoieSystem.this.setMaxBatchSize(maxBatchSize);
 		}
 
+		public int getInterpreterParallelism() {
+			return ZoieSystem.this.getInterpreterParallelism();
+		}
+
+		public void setInterpreterParallelism(int parallelism) {
+			ZoieSystem.this.setInterpreterParallelism(parallelism);
+		}
+
+		public int getNumRamShards() {
+			return ZoieSystem.this.getNumRamShards();
+		}
+
+		public void setNumRamShards(int numRamShards) {
+			ZoieSystem.this.setNumRamShards(numRamShards);
+		}
+
+		public int getMaxSealedRamIndexes() {
+			return ZoieSystem.this.getMaxSealedRamIndexes();
+		}
+
+		public void setMaxSealedRamIndexes(int maxSealedRamIndexes) {
+			ZoieSystem.this.setMaxSealedRamIndexes(maxSealedRamIndexes);
+		}
+
+		public int getSealedRamIndexCount() {
+			return ZoieSystem.this._searchIdxMgr.getNumSealedMemoryIndexes();
+		}
+
+		public long getRamIndexHeapBytes() {
+			return ZoieSystem.this._searchIdxMgr.getRamIndexHeapBytes();
+		}
+
+		public long getRamIndexDirectBytes() {
+			return ZoieSystem.this._searchIdxMgr.getRamIndexDirectBytes();
+		}
+
+		public boolean isWarmUpDiskReaders() {
+			return ZoieSystem.this.isWarmUpDiskReaders();
+		}
+
+		public void setWarmUpDiskReaders(boolean warmUp) {
+			ZoieSystem.this.setWarmUpDiskReaders(warmUp);
+		}
+
+		public long getDiskReaderWarmUpBudget() {
+			return ZoieSystem.this.getDiskReaderWarmUpBudget();
+		}
+
+		public void setDiskReaderWarmUpBudget(long warmUpBudget) {
+			ZoieSystem.this.setDiskReaderWarmUpBudget(warmUpBudget);
+		}
+
+		public long getDiskReaderWarmUpCount() {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getWarmUpCount();
+		}
+
+		public long getDiskReaderWarmUpTotalTime() {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getWarmUpTotalTime();
+		}
+
+		public long getLastDiskReaderWarmUpTime() {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getLastWarmUpTime();
+		}
+
+		public int getLastDiskReaderWarmedSegments() {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getLastWarmedSegmentCount();
+		}
+
+		public int getLastDiskReaderColdSegments() {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getLastColdSegmentCount();
+		}
+
+		public int getMaxMergeThreadCount() {
+			return ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().getMaxThreadCount();
+		}
+
+		public void setMaxMergeThreadCount(int maxThreadCount) {
+			ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().setMaxThreadCount(maxThreadCount);
+		}
+
+		public double getMaxMergeMBPerSec() {
+			return ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().getMaxMBPerSec();
+		}
+
+		public void setMaxMergeMBPerSec(double mbPerSec) {
+			ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().setMaxMBPerSec(mbPerSec);
+		}
+
+		public int getPendingMergeCount() {
+			return ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().getPendingMergeCount();
+		}
+
+		public int getRunningMergeCount() {
+			return ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().getRunningMergeCount();
+		}
+
+		public long getCompletedMergeCount() {
+			return ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().getCompletedMergeCount();
+		}
+
+		public double getMergeThroughput() {
+			return ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().getMergeThroughput();
+		}
+
+		public long getMergeThrottleTime() {
+			return ZoieSystem.this._searchIdxMgr.getDiskMergeScheduler().getThrottleTime();
+		}
+
+		public long getReaderLeakTimeout() {
+			return ZoieSystem.this.getReaderLeakTimeout();
+		}
+
+		public long getSearchCount() {
+			return ZoieSystem.this._searchIdxMgr.getReaderLeakDetector().getAcquiredCount();
+		}
+
+		public float getMaxDiskSegmentDeletedRatio() {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getMaxSegmentDeletedRatio();
+		}
+
+		public void setReaderLeakTimeout(long leakTimeout) {
+			ZoieSystem.this.setReaderLeakTimeout(leakTimeout);
+		}
+
+		public int getOutstandingReaderCount() {
+			return ZoieSystem.this._searchIdxMgr.getReaderLeakDetector().getOutstandingCount();
+		}
+
+		public int getLeakedReaderCount() {
+			return ZoieSystem.this._searchIdxMgr.getReaderLeakDetector().getLeakedCount();
+		}
+
 		public void purgeIndex() throws IOException{
 			ZoieSystem.this.purgeIndex();
 		}
@@ -328,6 +615,34 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 		  _diskLoader.expungeDeletes();
 		}
 		
+		public void setExpungeDeletedRatio(float expungeDeletedRatio) {
+			ZoieSystem.this._searchIdxMgr.setExpungeDeletedRatio(expungeDeletedRatio);
+		}
+
+		public float getExpungeDeletedRatio() {
+			return ZoieSystem.this._searchIdxMgr.getExpungeDeletedRatio();
+		}
+
+		public void setMaxExpungeBytes(long maxExpungeBytes) {
+			ZoieSystem.this._searchIdxMgr.setMaxExpungeBytes(maxExpungeBytes);
+		}
+
+		public long getMaxExpungeBytes() {
+			return ZoieSystem.this._searchIdxMgr.getMaxExpungeBytes();
+		}
+
+		public int getExpungeSegmentCount() throws IOException {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getExpungePlan().getSegmentCount();
+		}
+
+		public long getExpungeRewriteBytes() throws IOException {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getExpungePlan().getRewriteBytes();
+		}
+
+		public long getExpungeReclaimBytes() throws IOException {
+			return ZoieSystem.this._searchIdxMgr.getDiskIndex().getExpungePlan().getReclaimBytes();
+		}
+		
 		public void setNumLargeSegments(int numLargeSegments)
 		{
 		    ZoieSystem.this._searchIdxMgr.setNumLargeSegments(numLargeSegments);
@@ -360,6 +675,22 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 			ZoieSystem.this._searchIdxMgr.setMaxMergeDocs(maxMergeDocs);
 		}
 
+		public void setMergePolicyType(String mergePolicyType) {
+			ZoieSystem.this._searchIdxMgr.setMergePolicyType(ZoieMergePolicy.MergePolicyType.valueOf(mergePolicyType));
+		}
+
+		public String getMergePolicyType() {
+			return ZoieSystem.this._searchIdxMgr.getMergePolicyType().name();
+		}
+
+		public void setMaxMergedSegmentBytes(long maxMergedSegmentBytes) {
+			ZoieSystem.this._searchIdxMgr.setMaxMergedSegmentBytes(maxMergedSegmentBytes);
+		}
+
+		public long getMaxMergedSegmentBytes() {
+			return ZoieSystem.this._searchIdxMgr.getMaxMergedSegmentBytes();
+		}
+
 		public void setMergeFactor(int mergeFactor) {
 			ZoieSystem.this._searchIdxMgr.setMergeFactor(mergeFactor);
 		}
@@ -15,14 +15,13 @@ package proj.zoie.impl.indexing.internal;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
-import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -34,7 +33,6 @@ import org.apache.lucene.index.MergeScheduler;
 import org.apache.lucene.search.Similarity;
 import org.apache.lucene.store.Directory;
 
-import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
@@ -77,32 +75,26 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	  
       abstract public ZoieIndexReader<R> openIndexReader() throws IOException;
 	  
-	  abstract protected IndexReader openIndexReaderForDelete() throws IOException;
-	  
       abstract public void refresh() throws IOException;
+      
+      /**
+       * Does the part of the next {@link #refresh()} that needs no lock, e.g. opening and warming up a new reader.
+       */
+      public void prepareRefresh() throws IOException
+      {
+      }
 
       public void updateIndex(LongSet delDocs, List<IndexingReq> insertDocs,Analyzer defaultAnalyzer,Similarity similarity)
 	      throws IOException
 	  {
-	    deleteDocs(delDocs);
-		
 	    IndexWriter idxMod = null;
 	    try
 	    {
 	      idxMod = openIndexWriter(defaultAnalyzer,similarity);
 	      if (idxMod != null)
 	      { 
-	        for (IndexingReq idxPair : insertDocs)
-	        {
-	          Analyzer analyzer = idxPair.getAnalyzer();
-	          Document doc = idxPair.getDocument();
-	          if (analyzer == null){
-	            idxMod.addDocument(doc);
-	          }
-	          else{
-	        	idxMod.addDocument(doc,analyzer);
-	          }
-	        }
+	        deleteDocs(idxMod, delDocs);
+	        addDocuments(idxMod, insertDocs);
 	      }
 	    }
 	    finally
@@ -113,18 +105,33 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	      }
 	    }
 	  }
+      
+      protected static void addDocuments(IndexWriter idxMod, List<IndexingReq> insertDocs) throws IOException
+      {
+        for (IndexingReq idxPair : insertDocs)
+        {
+          Analyzer analyzer = idxPair.getAnalyzer();
+          Document doc = idxPair.getDocument();
+          if (analyzer == null){
+            idxMod.addDocument(doc);
+          }
+          else{
+            idxMod.addDocument(doc,analyzer);
+          }
+        }
+      }
 	  
 	  public LongSet getDelDocs()
 	  {
 	    return _delDocs;
 	  }
 	  
-	  public void clearDeletes()
+	  public synchronized void clearDeletes()
 	  {
 	    _delDocs = new LongOpenHashSet();
 	  }
 	  
-	  public void markDeletes(LongSet delDocs) throws IOException
+	  public synchronized void markDeletes(LongSet delDocs) throws IOException
 	  {
 	    if(delDocs != null && delDocs.size() > 0)
 	    {
@@ -136,7 +143,7 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
 	    }
 	  }
 	  
-	  public void commitDeletes() throws IOException
+	  public synchronized void commitDeletes() throws IOException
 	  {
         ZoieIndexReader<R> reader = openIndexReader();
         if(reader != null)
@@ -145,83 +152,62 @@ public abstract class BaseSearchIndex<R extends IndexReader> {
         }
 	  }
 	  
-	  private void deleteDocs(LongSet delDocs) throws IOException
+	  /**
+	   * Hands the deletes to the open writer, which applies them to the documents added so far
+	   * when it flushes. The writer stays open.
+	   */
+	  protected void deleteDocs(IndexWriter writer, LongSet delDocs) throws IOException
 	  {
-		int[] delArray=null;
 	    if (delDocs!=null && delDocs.size() > 0)
 	    {
 	      ZoieIndexReader<R> reader= openIndexReader();
-	      if (reader!=null)
+	      if (reader!=null) // otherwise there is nothing to delete
 	      {
-		    IntList delList = new IntArrayList(delDocs.size());
-	    	DocIDMapper idMapper = reader.getDocIDMaper();
-	    	LongIterator iter = delDocs.iterator();
-	        
-	    	while(iter.hasNext()){
-	    		long uid = iter.nextLong();
-	    		if (ZoieIndexReader.DELETED_UID!=uid){
-		    		int docid = idMapper.getDocID(uid);
-		    		if (docid!=DocIDMapper.NOT_FOUND){
-		    			delList.add(docid);
-		    		}
-	    		}
-	    	}
-	        delArray = delList.toIntArray();
-	      }
-	    }
-	      
-	    if (delArray!=null && delArray.length > 0)
-	    {
-	      closeIndexWriter();
-	      IndexReader readerForDelete = null;
-	      try
-	      {
-	        readerForDelete = openIndexReaderForDelete();
-	        if (readerForDelete!=null)
-	        {
-	          for (int docid : delArray)
-	          {
-	            readerForDelete.deleteDocument(docid);
-	          }
-	        }
-	      }
-	      finally
-	      {
-	        if (readerForDelete!=null)
-	        {
-	          try
-	          {
-	            readerForDelete.close();
-	          }
-	          catch(IOException ioe)
-	          {
-	            log.error(ioe.getMessage(),ioe);
-	          }
-	        }
+	        writer.deleteDocuments(UIDDeleteFilter.getDeleteQuery(delDocs, reader));
 	      }
 	    }
 	  }
 	  
 	  public void loadFromIndex(BaseSearchIndex<R> index) throws IOException
 	  {
-	    ZoieIndexReader<R> reader = index.openIndexReader();
-	    if(reader == null) return;
-	    
-	    Directory dir = reader.directory();
+	    loadFromIndexes(Collections.singletonList(index));
+	  }
+	  
+	  /**
+	   * Adds the segments of the given indexes, e.g. the shards of a memory index, in one pass.
+	   * Deletes marked while the segments are copied are kept for the next load.
+	   * @param indexes indexes to copy
+	   * @throws IOException
+	   */
+	  public void loadFromIndexes(List<? extends BaseSearchIndex<R>> indexes) throws IOException
+	  {
+	    ArrayList<Directory> dirs = new ArrayList<Directory>(indexes.size());
+	    for (BaseSearchIndex<R> index : indexes)
+	    {
+	      ZoieIndexReader<R> reader = index.openIndexReader();
+	      if(reader != null) dirs.add(reader.directory());
+	    }
+	    if(dirs.isEmpty()) return;
 	    
-        LongSet delDocs = _delDocs;
-        clearDeletes();
-        deleteDocs(delDocs);
+        LongSet delDocs;
+        synchronized(this)
+        {
+          delDocs = _delDocs;
+          clearDeletes();
+        }
 	    
-	    IndexWriter writer = null;
+	    boolean success = false;
 	    try
 	    {
-	      writer = openIndexWriter(null,null);
-	      writer.addIndexesNoOptimize(new Directory[] { dir });
+	      IndexWriter writer = openIndexWriter(null,null);
+	      deleteDocs(writer, delDocs);
+	      writer.addIndexesNoOptimize(dirs.toArray(new Directory[dirs.size()]));
+	      writer.commit();
+	      success = true;
 	    }
 	    finally
 	    {
-	      closeIndexWriter();
+	      if (!success) closeIndexWriter(); // do not keep a writer in an unknown state
 	    }
 	  }
 	      
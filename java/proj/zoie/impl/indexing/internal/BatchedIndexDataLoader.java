@@ -17,15 +17,21 @@ package proj.zoie.impl.indexing.internal;
  */
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexable;
@@ -52,7 +58,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	protected int _batchSize;
 	protected long _delay;
 	protected final DataConsumer<ZoieIndexable> _dataLoader;
-	protected List<DataEvent<ZoieIndexable>> _batchList;
+	protected DataEventBatch<ZoieIndexable> _batch;
+	protected DataEventBatch<ZoieIndexable> _spareBatch; // recycled by the loader thread
 	protected final LoaderThread _loadMgrThread;
 	protected long _lastFlushTime;
 	protected int _eventCount;
@@ -62,6 +69,16 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	protected final SearchIndexManager<R> _idxMgr;
 	protected final ZoieIndexableInterpreter<V> _interpreter;
 	private final Queue<IndexingEventListener> _lsnrList;
+	private int _interpreterParallelism;
+	private ExecutorService _interpreterPool;
+	// reused by interpret, consume is only called by the consuming thread
+	private ZoieIndexable[] _converted = new ZoieIndexable[0];
+	private final DataEventBatch<ZoieIndexable> _indexables = new DataEventBatch<ZoieIndexable>();
+	  
+	  /**
+	   * Batches smaller than this are always interpreted on the calling thread.
+	   */
+	  public static final int MIN_PARALLEL_BATCH_SIZE = 64;
 	  
 	  private static Logger log = Logger.getLogger(BatchedIndexDataLoader.class);
 	  
@@ -82,7 +99,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	    _batchSize=Math.min(batchSize, _maxBatchSize);
 	    _delay=delay;
 	    _dataLoader=dataLoader;
-	    _batchList=new LinkedList<DataEvent<ZoieIndexable>>();
+	    _batch=new DataEventBatch<ZoieIndexable>();
+	    _spareBatch=new DataEventBatch<ZoieIndexable>();
 	    _lastFlushTime=0L;
 	    _eventCount=0;
 	    _loadMgrThread=new LoaderThread();
@@ -92,6 +110,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	    _idxMgr = idxMgr;
 	    _interpreter = interpreter;
 	    _lsnrList = lsnrList;
+	    _interpreterParallelism = 1;
+	    _interpreterPool = null;
 	  }
 	  
 	  protected final void fireIndexingEvent(IndexingEvent evt){
@@ -140,6 +160,30 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	    _delay=delay;
 	  }
 	  
+	  public synchronized int getInterpreterParallelism()
+	  {
+	    return _interpreterParallelism;
+	  }
+	  
+	  /**
+	   * Sets the number of threads interpreting a batch of incoming data events, 1 (the default) interprets
+	   * them on the thread delivering the events. With more than 1 thread the interpreter must be thread safe.
+	   * @param parallelism number of threads
+	   */
+	  public void setInterpreterParallelism(int parallelism)
+	  {
+	    parallelism = Math.max(1, parallelism);
+	    ExecutorService oldPool;
+	    synchronized(this)
+	    {
+	      if (parallelism == _interpreterParallelism) return;
+	      oldPool = _interpreterPool;
+	      _interpreterPool = (parallelism > 1 ? Executors.newFixedThreadPool(parallelism - 1, new InterpreterThreadFactory()) : null);
+	      _interpreterParallelism = parallelism;
+	    }
+	    if (oldPool != null) oldPool.shutdown(); // running slices complete
+	  }
+	  
 	  public synchronized int getEventCount()
 	  {
 	    return _eventCount;
@@ -153,31 +197,23 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	  {
 	    if (events != null)
 	    {
-	      // PriorityQueue<DataEvent<ZoieIndexable>> indexableList = new
-	      // PriorityQueue<DataEvent<ZoieIndexable>>(data.size(), DataEvent.getComparator());
-	      ArrayList<DataEvent<ZoieIndexable>> indexableList =
-	          new ArrayList<DataEvent<ZoieIndexable>>(events.size());
-	      Iterator<DataEvent<V>> iter = events.iterator();
-	      while (iter.hasNext())
-	      {
-	        try
-	        {
-	          DataEvent<V> event = iter.next();
-	          ZoieIndexable indexable = ((ZoieIndexableInterpreter<V>) _interpreter).convertAndInterpret(event.getData());
-	          
-	          DataEvent<ZoieIndexable> newEvent =
-	              new DataEvent<ZoieIndexable>(event.getVersion(), indexable);
-	          indexableList.add(newEvent);
-	        }
-	        catch (Exception e)
-	        {
-	          log.error(e.getMessage(), e);
-	        }
-	      }
+	      consume(new DataEventBatch<V>(events));
+	    }
+	  }
+	  
+	  /**
+	   * 
+	   * @see proj.zoie.api.DataConsumer#consume(proj.zoie.api.DataEventBatch)
+	   */
+	  public void consume(DataEventBatch<V> events) throws ZoieException
+	  {
+	    if (events != null)
+	    {
+	      DataEventBatch<ZoieIndexable> indexables = interpret(events);
 
 	      synchronized (this) // this blocks the batch disk loader thread while indexing to RAM
 	      {
-	        while (_batchList.size() > _maxBatchSize)
+	        while (_batch.size() > _maxBatchSize)
 	        {
 	          // check if load manager thread is alive
 	          if(_loadMgrThread == null || !_loadMgrThread.isAlive())
@@ -194,28 +230,161 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	            continue;
 	          }
 	        }
-	        _eventCount += indexableList.size();
-	        _batchList.addAll(indexableList);
+	        _eventCount += indexables.size();
+	        _batch.addAll(indexables);
 	        this.notifyAll();
 	      }
+	      indexables.clear();
+	    }
+	  }
+	  
+	  /**
+	   * Converts a batch of data events into indexables. Events that fail to convert are logged and dropped.
+	   * Large batches are split into slices converted in parallel when the interpreter parallelism is
+	   * greater than 1, the indexables keep the order of the events.
+	   * @param events data events
+	   * @return a batch of indexables, reused by the next call
+	   */
+	  protected DataEventBatch<ZoieIndexable> interpret(final DataEventBatch<V> events)
+	  {
+	    final int size = events.size();
+	    int parallelism;
+	    ExecutorService pool;
+	    synchronized(this)
+	    {
+	      parallelism = _interpreterParallelism;
+	      pool = _interpreterPool;
+	    }
+	    
+	    if (_converted.length < size)
+	    {
+	      _converted = new ZoieIndexable[size];
+	    }
+	    final ZoieIndexable[] converted = _converted;
+	    if (pool == null || size < MIN_PARALLEL_BATCH_SIZE)
+	    {
+	      interpret(events, converted, 0, size);
+	    }
+	    else
+	    {
+	      int sliceSize = (size + parallelism - 1) / parallelism;
+	      List<Future<?>> futures = new ArrayList<Future<?>>(parallelism - 1);
+	      for (int start = sliceSize; start < size; start += sliceSize)
+	      {
+	        final int from = start;
+	        final int to = Math.min(size, start + sliceSize);
+	        try
+	        {
+	          futures.add(pool.submit(new Callable<Object>(){
+	            public Object call()
+	            {
+	              interpret(events, converted, from, to);
+	              return null;
+	            }
+	          }));
+	        }
+	        catch (RejectedExecutionException e)
+	        {
+	          // the pool was replaced while we were submitting
+	          interpret(events, converted, from, to);
+	        }
+	      }
+	      interpret(events, converted, 0, sliceSize); // first slice on this thread
+	      
+	      boolean interrupted = false;
+	      for (Future<?> future : futures)
+	      {
+	        while (true)
+	        {
+	          try
+	          {
+	            future.get();
+	            break;
+	          }
+	          catch (InterruptedException e)
+	          {
+	            interrupted = true; // the slices must complete before the batch moves on
+	          }
+	          catch (ExecutionException e)
+	          {
+	            log.error(e.getMessage(), e.getCause());
+	            break;
+	          }
+	        }
+	      }
+	      if (interrupted) Thread.currentThread().interrupt();
+	    }
+	    
+	    DataEventBatch<ZoieIndexable> indexables = _indexables;
+	    indexables.clear();
+	    for (int i = 0; i < size; ++i)
+	    {
+	      if (converted[i] != null)
+	      {
+	        indexables.add(events.getVersion(i), converted[i]);
+	        converted[i] = null;
+	      }
+	    }
+	    return indexables;
+	  }
+	  
+	  private void interpret(DataEventBatch<V> events, ZoieIndexable[] converted, int from, int to)
+	  {
+	    for (int i = from; i < to; ++i)
+	    {
+	      try
+	      {
+	        converted[i] = _interpreter.convertAndInterpret(events.getData(i));
+	      }
+	      catch (Exception e)
+	      {
+	        log.error(e.getMessage(), e);
+	      }
+	    }
+	  }
+	  
+	  private static class InterpreterThreadFactory implements ThreadFactory
+	  {
+	    private int _count = 0;
+	    
+	    public synchronized Thread newThread(Runnable r)
+	    {
+	      Thread thread = new Thread(r, "zoie interpreter " + (_count++));
+	      thread.setDaemon(true);
+	      return thread;
 	    }
 	  }
 	  
       public synchronized int getCurrentBatchSize()
       {
-        return (_batchList != null ? _batchList.size() : 0);
+        return (_batch != null ? _batch.size() : 0);
       }
       
       /**
        * This method needs to be called within a synchronized block on 'this'.
-       * @return the list of data events already received. A new list is created to receive new data events.
+       * @return the batch of data events already received. The spare batch takes its place to receive new data events,
+       * the returned batch must be handed back with {@link #recycleBatch(DataEventBatch)} once consumed.
        */
-      protected List<DataEvent<ZoieIndexable>> getBatchList()
+      protected DataEventBatch<ZoieIndexable> getBatch()
 	  {
-        List<DataEvent<ZoieIndexable>> tmpList=_batchList;
-        _batchList=new LinkedList<DataEvent<ZoieIndexable>>();
-        return tmpList;
+        DataEventBatch<ZoieIndexable> tmpBatch=_batch;
+        _batch=(_spareBatch != null ? _spareBatch : new DataEventBatch<ZoieIndexable>());
+        _spareBatch=null;
+        return tmpBatch;
 	  }
+      
+      /**
+       * Hands a consumed batch back for reuse.
+       * @param batch a batch returned by {@link #getBatch()}
+       */
+      protected void recycleBatch(DataEventBatch<ZoieIndexable> batch)
+      {
+        batch.clear();
+        synchronized(this)
+        {
+          _spareBatch=batch;
+        }
+      }
 	  
 	  /**
 	   * Wait for timeOut amount of time for the indexing thread to process data events.
@@ -263,13 +432,13 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	   */
 	  protected void processBatch()
 	  {
-        List<DataEvent<ZoieIndexable>> tmpList=null;
+        DataEventBatch<ZoieIndexable> tmpBatch=null;
         long now=System.currentTimeMillis();
         long duration=now-_lastFlushTime;
 
         synchronized(this)
         {
-          while(_batchList.size()<_batchSize && !_stop && !_flush && duration<_delay)
+          while(_batch.size()<_batchSize && !_stop && !_flush && duration<_delay)
           {
             try
             {
@@ -285,22 +454,22 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
           _flush=false;
           _lastFlushTime=now;
 
-          if (_batchList.size()>0)
+          if (_batch.size()>0)
           {
-            // change the status and get the batch list
+            // change the status and get the batch
             // this has to be done in the block synchronized on BatchIndexDataLoader
             _idxMgr.setDiskIndexerStatus(SearchIndexManager.Status.Working);
-            tmpList = getBatchList();
+            tmpBatch = getBatch();
           }
         }
         
-        if (tmpList != null)
+        if (tmpBatch != null)
         {
           long t1=System.currentTimeMillis();
-          int eventCount = tmpList.size();
+          int eventCount = tmpBatch.size();
           try
           {
-            _dataLoader.consume(tmpList);
+            _dataLoader.consume(tmpBatch);
           }
           catch (ZoieException e)
           {
@@ -308,6 +477,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
           }
           finally
           {
+            recycleBatch(tmpBatch);
             long t2=System.currentTimeMillis();
             synchronized(this)
             {
@@ -355,11 +525,14 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
        */
 	  public void shutdown()
 	  {
+	    ExecutorService pool;
 	    synchronized(this)
 	    {
 	      _stop = true;
+	      pool = _interpreterPool;
 	      this.notifyAll();
 	    }
+	    if (pool != null) pool.shutdown();
 	    try 
 	    {
 			_loadMgrThread.join();
@@ -15,13 +15,12 @@ package proj.zoie.impl.indexing.internal;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
@@ -43,17 +42,21 @@ public class DelegateIndexDataConsumer<V> implements DataConsumer<V> {
 			throws ZoieException {
 		if (data!=null)
 		{
-		  //PriorityQueue<DataEvent<ZoieIndexable>> indexableList = new PriorityQueue<DataEvent<ZoieIndexable>>(data.size(), DataEvent.getComparator());
-		  ArrayList<DataEvent<ZoieIndexable>> indexableList=new ArrayList<DataEvent<ZoieIndexable>>(data.size());
-		  Iterator<DataEvent<V>> iter=data.iterator();
-		  while(iter.hasNext())
+		  consume(new DataEventBatch<V>(data));
+		}
+	}
+	
+	public void consume(DataEventBatch<V> data)
+			throws ZoieException {
+		if (data!=null)
+		{
+		  int size = data.size();
+		  DataEventBatch<ZoieIndexable> indexableBatch=new DataEventBatch<ZoieIndexable>(size);
+		  for (int i=0;i<size;++i)
 		  {
 			  try{
-			    DataEvent<V> event=iter.next();
-			    ZoieIndexable indexable = ((ZoieIndexableInterpreter<V>)_interpreter).convertAndInterpret(event.getData());
-			   
-			    DataEvent<ZoieIndexable> newEvent=new DataEvent<ZoieIndexable>(event.getVersion(),indexable);
-			    indexableList.add(newEvent);
+			    ZoieIndexable indexable = _interpreter.convertAndInterpret(data.getData(i));
+			    indexableBatch.add(data.getVersion(i),indexable);
 			  }
 			  catch(Exception e){
 				log.error(e.getMessage(),e);
@@ -66,17 +69,16 @@ public class DelegateIndexDataConsumer<V> implements DataConsumer<V> {
 		    {
 	          if (_ramConsumer != null)
 	          {
-	            ArrayList<DataEvent<ZoieIndexable>> ramList=new ArrayList<DataEvent<ZoieIndexable>>(indexableList);
-	            _ramConsumer.consume(ramList);
+	            _ramConsumer.consume(indexableBatch); // consumers do not modify the batch
 	          }
-	          _diskConsumer.consume(indexableList);
+	          _diskConsumer.consume(indexableBatch);
 		    }
 		  }
 		  else
 		  {
 		    if (_ramConsumer != null)
 		    {
-			  _ramConsumer.consume(indexableList);
+			  _ramConsumer.consume(indexableBatch);
 		    }
 		  }
 		}
@@ -16,16 +16,27 @@ package proj.zoie.impl.indexing.internal;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
 
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.impl.util.CRC32C;
+import proj.zoie.api.impl.util.LZ4Block;
 import proj.zoie.impl.indexing.internal.ZoieIndexDeletionPolicy.Snapshot;
 
 /**
@@ -34,6 +45,56 @@ import proj.zoie.impl.indexing.internal.ZoieIndexDeletionPolicy.Snapshot;
  */
 public class DiskIndexSnapshot
 {
+  private static final Logger log = Logger.getLogger(DiskIndexSnapshot.class);
+  
+  public static final int FORMAT_VERSION = 2;
+  public static final int CHECKSUMMED_FORMAT_VERSION = 3;
+  
+  // per file flags
+  private static final int FILE_DATA = 0;
+  private static final int FILE_LOCAL = 1;      // the receiver has the file already
+  private static final int FILE_COMPRESSED = 2;  // format version 3 only
+  
+  private static final int BLOCK_SIZE = 64 * 1024;
+  // bounds of what is allocated for a corrupt stream
+  private static final int MAX_SIGNATURE_LENGTH = 64 * 1024;
+  private static final int MAX_NAME_LENGTH = 4096;
+  
+  // Files.createLink(Path, Path) and File.toPath(), where the runtime has them (Java 7 on)
+  private static final Method CREATE_LINK;
+  private static final Method TO_PATH;
+  static
+  {
+    Method createLink = null;
+    Method toPath = null;
+    try
+    {
+      Class<?> pathClass = Class.forName("java.nio.file.Path");
+      Class<?> filesClass = Class.forName("java.nio.file.Files");
+      createLink = filesClass.getMethod("createLink", pathClass, pathClass);
+      toPath = File.class.getMethod("toPath");
+    }
+    catch(Exception e)
+    {
+      log.info("hard links not supported, local files are copied");
+      createLink = null;
+      toPath = null;
+    }
+    CREATE_LINK = createLink;
+    TO_PATH = toPath;
+  }
+  
+  /**
+   * How the files of a snapshot are written. PLAIN streams them as they are (format version 2).
+   * CHECKSUMMED adds a CRC32C of every file and a trailer listing all files, which the receiver checks
+   * before the snapshot is used (format version 3). COMPRESSED also compresses all but compound files
+   * in LZ4 blocks, for links slower than the disks.
+   */
+  public static enum Encoding
+  {
+    PLAIN, CHECKSUMMED, COMPRESSED
+  }
+  
   private IndexSignature _sig;
   private Snapshot _snapshot;
   
@@ -49,14 +110,33 @@ public class DiskIndexSnapshot
   }
   
   public long writeTo(WritableByteChannel channel) throws IOException
+  {
+    return writeTo(channel, null);
+  }
+  
+  public long writeTo(WritableByteChannel channel, Manifest manifest) throws IOException
+  {
+    return writeTo(channel, manifest, Encoding.PLAIN);
+  }
+  
+  /**
+   * Writes the snapshot, without the data of the files the receiver already has.
+   * @param manifest the index files of the receiver, null to write all files
+   */
+  public long writeTo(WritableByteChannel channel, Manifest manifest, Encoding encoding) throws IOException
   {
     // format:
-    //   <format_version> <sig_len> <sig_data> { <idx_file_name_len> <idx_file_name> <idx_file_len> <idx_file_data> }...
+    //   <format_version> <sig_len> <sig_data> <num_files> { <idx_file_name_len> <idx_file_name> <idx_file_flag> <idx_file_len> [<idx_file_data>] [<idx_file_crc>] }... [<trailer>]
+    // the file data is left out if the flag is FILE_LOCAL. If the flag is FILE_COMPRESSED, the data is a sequence
+    // of { <raw_len> <stored_len> <block_data> }, a block that does not compress is stored as it is.
+    // format version 3 adds the CRC32C of every file not left out, and a trailer listing all files as a Manifest
     
+    boolean checksummed = (encoding != Encoding.PLAIN);
+    LZ4Block compressor = (encoding == Encoding.COMPRESSED ? new LZ4Block() : null);
     long amount = 0;
     
     // format version
-    amount += writeInt(channel, 1);
+    amount += writeInt(channel, checksummed ? CHECKSUMMED_FORMAT_VERSION : FORMAT_VERSION);
     
     // index signature
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -64,42 +144,93 @@ public class DiskIndexSnapshot
     byte[] sigBytes = baos.toByteArray();
     
     amount += writeLong(channel, (long)sigBytes.length); // data length
-    amount += channel.write(ByteBuffer.wrap(sigBytes)); // data
+    amount += writeFully(channel, ByteBuffer.wrap(sigBytes)); // data
 
     // index files
     File dir = _snapshot.getDirectory();
     Collection<String> fileNames = _snapshot.getFileNames();
+    Manifest trailer = new Manifest();
     amount += writeInt(channel, fileNames.size()); // number of files
     for(String fileName : fileNames)
     {
+      File file = new File(dir, fileName);
+      long dataLen = file.length();
+      long checksum;
       amount += writeString(channel, fileName);
-      amount += transferFromFileToChannel(new File(dir, fileName), channel);
+      if(manifest != null && manifest.matches(fileName, file))
+      {
+        amount += writeInt(channel, FILE_LOCAL);
+        amount += writeLong(channel, dataLen);
+        checksum = manifest._files.get(fileName)[1];
+      }
+      else if(compressor != null && !isCompoundFile(fileName))
+      {
+        CRC32C crc = new CRC32C();
+        amount += writeInt(channel, FILE_COMPRESSED);
+        amount += compressFileToChannel(file, channel, compressor, crc);
+        checksum = crc.getValue();
+        amount += writeLong(channel, checksum);
+      }
+      else
+      {
+        amount += writeInt(channel, FILE_DATA);
+        amount += transferFromFileToChannel(file, channel);
+        checksum = (checksummed ? checksum(file) : -1L); // read again from the page cache, the data went out zero copy
+        if(checksummed) amount += writeLong(channel, checksum);
+      }
+      trailer._files.put(fileName, new long[] { dataLen, checksum });
+    }
+    
+    if(checksummed)
+    {
+      amount += trailer.writeTo(channel);
     }
     return amount;
   }
   
+  private static boolean isCompoundFile(String fileName)
+  {
+    return fileName.endsWith(".cfs") || fileName.endsWith(".cfx");
+  }
+  
   public static void readSnapshot(ReadableByteChannel channel, File dest) throws IOException
+  {
+    File indexDir = new File(dest, IndexReaderDispenser.INDEX_DIR_NAME);
+    indexDir.mkdirs();
+    IndexSignature sig = readSnapshot(channel, indexDir, null);
+    new IndexSignature(IndexReaderDispenser.INDEX_DIR_NAME, sig.getVersion()).save(new File(dest, IndexReaderDispenser.INDEX_DIRECTORY));
+  }
+  
+  /**
+   * Reads the index files of a snapshot of format version 1, 2 or 3 into a directory. Checksums and the
+   * trailer of version 3 are verified, a snapshot that does not match fails before it is used.
+   * @param localIndexDir where the files left out of the snapshot are taken from, may be null for a full snapshot
+   * @return the index signature of the snapshot, its index path is the one of the sender
+   */
+  public static IndexSignature readSnapshot(ReadableByteChannel channel, File indexDir, File localIndexDir) throws IOException
   {
     // format version
     int formatVersion = readInt(channel);
-    if(formatVersion != 1)
+    if(formatVersion < 1 || formatVersion > CHECKSUMMED_FORMAT_VERSION)
     {
       throw new IOException("snapshot format version mismatch [" + formatVersion + "]");
     }
+    boolean checksummed = (formatVersion == CHECKSUMMED_FORMAT_VERSION);
     
     // index signature
-    if(!transferFromChannelToFile(channel, new File(dest, IndexReaderDispenser.INDEX_DIRECTORY)))
+    IndexSignature sig = readSignature(channel);
+    if(sig == null)
     {
       throw new IOException("bad snapshot file");
     }
 
     // index files
-    File indexDir = new File(dest, IndexReaderDispenser.INDEX_DIR_NAME);
     int numFiles = readInt(channel); // number of files
     if(numFiles < 0)
     {
       throw new IOException("bad snapshot file");      
     }
+    Manifest received = new Manifest();
     while(numFiles-- > 0)
     {
       String fileName = readString(channel);
@@ -107,11 +238,133 @@ public class DiskIndexSnapshot
       {
         throw new IOException("bad snapshot file");
       }
-      if(!transferFromChannelToFile(channel, new File(indexDir, fileName)))
+      File file = new File(indexDir, fileName);
+      long checksum = -1L;
+      int flag = (formatVersion == 1 ? FILE_DATA : readInt(channel));
+      if(flag == FILE_LOCAL)
+      {
+        long dataLen = readLong(channel);
+        if(dataLen < 0)
+        {
+          throw new IOException("bad snapshot file");
+        }
+        linkLocalFile(localIndexDir, fileName, dataLen, indexDir);
+      }
+      else if(flag == FILE_DATA)
+      {
+        if(!transferFromChannelToFile(channel, file))
+        {
+          throw new IOException("bad snapshot file");
+        }
+        if(checksummed) checksum = checksum(file);
+      }
+      else if(flag == FILE_COMPRESSED && checksummed)
+      {
+        CRC32C crc = new CRC32C();
+        if(!decompressChannelToFile(channel, file, crc))
+        {
+          throw new IOException("bad snapshot file");
+        }
+        checksum = crc.getValue();
+      }
+      else
       {
         throw new IOException("bad snapshot file");
       }
+      
+      if(checksummed && flag != FILE_LOCAL && readLong(channel) != checksum)
+      {
+        throw new IOException("checksum mismatch in snapshot file: " + fileName);
+      }
+      received._files.put(fileName, new long[] { file.length(), checksum });
+    }
+    
+    if(checksummed)
+    {
+      verifyTrailer(Manifest.read(channel), received);
+    }
+    return sig;
+  }
+  
+  /**
+   * Checks that the files received are all the files the sender lists, as the sender has them.
+   */
+  private static void verifyTrailer(Manifest trailer, Manifest received) throws IOException
+  {
+    if(trailer.size() != received.size())
+    {
+      throw new IOException("snapshot lists " + trailer.size() + " files, " + received.size() + " received");
+    }
+    for(Map.Entry<String,long[]> entry : received._files.entrySet())
+    {
+      long[] expected = trailer._files.get(entry.getKey());
+      long[] actual = entry.getValue();
+      // the checksum of a local file was matched by the sender
+      if(expected == null || expected[0] != actual[0] || (actual[1] >= 0 && expected[1] != actual[1]))
+      {
+        throw new IOException("snapshot file does not match the snapshot trailer: " + entry.getKey());
+      }
+    }
+  }
+  
+  private static IndexSignature readSignature(ReadableByteChannel channel) throws IOException
+  {
+    long sigLen = readLong(channel);
+    if(sigLen < 0 || sigLen > MAX_SIGNATURE_LENGTH) return null;
+    
+    ByteBuffer buf = ByteBuffer.allocate((int)sigLen);
+    if(!fillBuffer(channel, buf, true)) return null;
+    return IndexSignature.read(new ByteArrayInputStream(buf.array()));
+  }
+  
+  /**
+   * Index files are never modified once written, a file of the local index is hard linked into the
+   * new index directory if the file system allows it, copied otherwise.
+   */
+  private static void linkLocalFile(File localIndexDir, String fileName, long dataLen, File indexDir) throws IOException
+  {
+    File src = (localIndexDir != null ? new File(localIndexDir, fileName) : null);
+    if(src == null || !src.isFile() || src.length() != dataLen)
+    {
+      throw new IOException("file not in the local index: " + fileName);
+    }
+    File dest = new File(indexDir, fileName);
+    if(createLink(dest, src)) return;
+    
+    RandomAccessFile raf = new RandomAccessFile(src, "r");
+    try
+    {
+      if(!transferFromChannelToFile(raf.getChannel(), dataLen, dest))
+      {
+        throw new IOException("failed to copy local file: " + fileName);
+      }
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+  
+  /**
+   * @return false if the link could not be created, e.g. on another file system or a runtime without links
+   */
+  private static boolean createLink(File link, File existing)
+  {
+    if(CREATE_LINK == null) return false;
+    try
+    {
+      CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+      return true;
+    }
+    catch(InvocationTargetException e)
+    {
+      log.debug("copying " + existing.getName() + ", cannot link it: " + e.getCause());
+    }
+    catch(IllegalAccessException e)
+    {
+      log.debug("copying " + existing.getName() + ", cannot link it: " + e.getMessage());
     }
+    return false;
   }
   
   private static long transferFromFileToChannel(File src, WritableByteChannel channel) throws IOException
@@ -121,11 +374,61 @@ public class DiskIndexSnapshot
     FileChannel fc = null;
     try
     {
-      raf = new RandomAccessFile(src, "rw");
+      raf = new RandomAccessFile(src, "r");
       fc = raf.getChannel();
       long dataLen = fc.size();
       amount += writeLong(channel, dataLen);
-      amount += fc.transferTo(0, dataLen, channel);
+      // a socket takes what fits in its buffer
+      long pos = 0;
+      while(pos < dataLen)
+      {
+        pos += fc.transferTo(pos, dataLen - pos, channel);
+      }
+      amount += pos;
+    }
+    finally
+    {
+      if(raf != null) raf.close();
+    }
+    return amount;
+  }
+  
+  private static long compressFileToChannel(File src, WritableByteChannel channel, LZ4Block compressor, Checksum crc) throws IOException
+  {
+    long amount = 0;
+    RandomAccessFile raf = null;
+    try
+    {
+      raf = new RandomAccessFile(src, "r");
+      FileChannel fc = raf.getChannel();
+      long dataLen = fc.size();
+      amount += writeLong(channel, dataLen);
+      
+      byte[] raw = new byte[BLOCK_SIZE];
+      byte[] compressed = new byte[LZ4Block.maxCompressedLength(BLOCK_SIZE)];
+      ByteBuffer header = ByteBuffer.allocate(8);
+      long pos = 0;
+      while(pos < dataLen)
+      {
+        int rawLen = (int)Math.min(BLOCK_SIZE, dataLen - pos);
+        ByteBuffer buf = ByteBuffer.wrap(raw, 0, rawLen);
+        while(buf.hasRemaining())
+        {
+          if(fc.read(buf, pos + buf.position()) < 0) throw new IOException("unexpected end of file: " + src);
+        }
+        crc.update(raw, 0, rawLen);
+        
+        int storedLen = compressor.compress(raw, 0, rawLen, compressed, 0);
+        boolean isCompressed = (storedLen < rawLen);
+        if(!isCompressed) storedLen = rawLen;
+        header.clear();
+        header.putInt(rawLen);
+        header.putInt(storedLen);
+        header.flip();
+        amount += writeFully(channel, header);
+        amount += writeFully(channel, ByteBuffer.wrap(isCompressed ? compressed : raw, 0, storedLen));
+        pos += rawLen;
+      }
     }
     finally
     {
@@ -134,18 +437,64 @@ public class DiskIndexSnapshot
     return amount;
   }
   
+  private static boolean decompressChannelToFile(ReadableByteChannel channel, File dest, Checksum crc) throws IOException
+  {
+    long dataLen = readLong(channel);
+    if(dataLen < 0) return false;
+    
+    RandomAccessFile raf = null;
+    try
+    {
+      raf = new RandomAccessFile(dest, "rw");
+      FileChannel fc = raf.getChannel();
+      byte[] raw = new byte[BLOCK_SIZE];
+      byte[] compressed = new byte[BLOCK_SIZE];
+      long pos = 0;
+      while(pos < dataLen)
+      {
+        int rawLen = readInt(channel);
+        int storedLen = readInt(channel);
+        if(rawLen <= 0 || rawLen > BLOCK_SIZE || rawLen > dataLen - pos || storedLen <= 0 || storedLen > rawLen) return false;
+        
+        boolean isCompressed = (storedLen < rawLen);
+        if(!fillBuffer(channel, ByteBuffer.wrap(isCompressed ? compressed : raw, 0, storedLen), false)) return false;
+        if(isCompressed && LZ4Block.decompress(compressed, 0, storedLen, raw, 0, rawLen) != rawLen) return false;
+        crc.update(raw, 0, rawLen);
+        writeFully(fc, ByteBuffer.wrap(raw, 0, rawLen));
+        pos += rawLen;
+      }
+      return true;
+    }
+    finally
+    {
+      if(raf != null) raf.close();
+    }
+  }
+  
   private static boolean transferFromChannelToFile(ReadableByteChannel channel, File dest) throws IOException
   {
     long dataLen = readLong(channel);
     if(dataLen < 0) return false;
     
+    return transferFromChannelToFile(channel, dataLen, dest);
+  }
+  
+  private static boolean transferFromChannelToFile(ReadableByteChannel channel, long dataLen, File dest) throws IOException
+  {
     RandomAccessFile raf = null;
     FileChannel fc = null;
     try
     {
       raf = new RandomAccessFile(dest, "rw");
       fc = raf.getChannel();
-      return (fc.transferFrom(channel, 0, dataLen) == dataLen);
+      long pos = 0;
+      while(pos < dataLen)
+      {
+        long cnt = fc.transferFrom(channel, pos, dataLen - pos);
+        if(cnt <= 0) return false; // end of stream
+        pos += cnt;
+      }
+      return true;
     }
     finally
     {
@@ -158,7 +507,7 @@ public class DiskIndexSnapshot
     ByteBuffer buf = ByteBuffer.allocate(4);
     buf.putInt(val);
     buf.rewind();
-    return channel.write(buf);
+    return writeFully(channel, buf);
   }
   
   private static long writeLong(WritableByteChannel channel, long val) throws IOException
@@ -166,7 +515,7 @@ public class DiskIndexSnapshot
     ByteBuffer buf = ByteBuffer.allocate(8);
     buf.putLong(val);
     buf.rewind();
-    return channel.write(buf);
+    return writeFully(channel, buf);
   }
   
   private static long writeString(WritableByteChannel channel, String val) throws IOException
@@ -179,7 +528,17 @@ public class DiskIndexSnapshot
       buf.putChar(val.charAt(i));
     }
     buf.rewind();
-    return channel.write(buf);
+    return writeFully(channel, buf);
+  }
+  
+  private static long writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException
+  {
+    long amount = 0;
+    while(buf.hasRemaining())
+    {
+      amount += channel.write(buf);
+    }
+    return amount;
   }
   
   private static int readInt(ReadableByteChannel channel) throws IOException
@@ -207,7 +566,7 @@ public class DiskIndexSnapshot
   private static String readString(ReadableByteChannel channel) throws IOException
   {
     int nameLen = readInt(channel); // name length
-    if(nameLen < 0) return null;
+    if(nameLen < 0 || nameLen > MAX_NAME_LENGTH) return null;
     
     ByteBuffer buf = ByteBuffer.allocate(nameLen * 2);
     if(fillBuffer(channel, buf, true))
@@ -227,12 +586,118 @@ public class DiskIndexSnapshot
   {
     if(clear) buf.clear();
     
-    while(true)
+    while(buf.hasRemaining())
     {
       int cnt = channel.read(buf);
       if(cnt < 0) return false;
-      if(buf.limit() == buf.capacity()) break;
     }
     return true;
   }
+  
+  private static long checksum(File file) throws IOException
+  {
+    CRC32C crc = new CRC32C();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      FileChannel fc = raf.getChannel();
+      ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+      while(fc.read(buf) >= 0)
+      {
+        crc.update(buf.array(), 0, buf.position());
+        buf.clear();
+      }
+    }
+    finally
+    {
+      raf.close();
+    }
+    return crc.getValue();
+  }
+  
+  /**
+   * Index files with their lengths and CRC32C checksums: the files a snapshot receiver already has,
+   * which the sender leaves out of the snapshot, or the trailer of a checksummed snapshot.
+   */
+  public static class Manifest
+  {
+    // format:
+    //   <num_files> { <file_name_len> <file_name> <file_len> <file_checksum> }...
+    
+    private final Map<String,long[]> _files = new HashMap<String,long[]>(); // { length, checksum }
+    
+    /**
+     * Lists the given files of an index directory, the files that disappear meanwhile are left out.
+     */
+    public static Manifest create(File dir, Collection<String> fileNames) throws IOException
+    {
+      Manifest manifest = new Manifest();
+      for(String fileName : fileNames)
+      {
+        File file = new File(dir, fileName);
+        try
+        {
+          long length = file.length();
+          manifest._files.put(fileName, new long[] { length, checksum(file) });
+        }
+        catch(FileNotFoundException e)
+        {
+          // deleted by the index writer
+        }
+      }
+      return manifest;
+    }
+    
+    public static Manifest read(ReadableByteChannel channel) throws IOException
+    {
+      Manifest manifest = new Manifest();
+      int numFiles = readInt(channel);
+      if(numFiles < 0)
+      {
+        throw new IOException("bad snapshot manifest");
+      }
+      while(numFiles-- > 0)
+      {
+        String fileName = readString(channel);
+        if(fileName == null)
+        {
+          throw new IOException("bad snapshot manifest");
+        }
+        long length = readLong(channel);
+        long checksum = readLong(channel);
+        if(length < 0 || checksum < 0)
+        {
+          throw new IOException("bad snapshot manifest");
+        }
+        manifest._files.put(fileName, new long[] { length, checksum });
+      }
+      return manifest;
+    }
+    
+    public long writeTo(WritableByteChannel channel) throws IOException
+    {
+      long amount = writeInt(channel, _files.size());
+      for(Map.Entry<String,long[]> entry : _files.entrySet())
+      {
+        amount += writeString(channel, entry.getKey());
+        amount += writeLong(channel, entry.getValue()[0]);
+        amount += writeLong(channel, entry.getValue()[1]);
+      }
+      return amount;
+    }
+    
+    public int size()
+    {
+      return _files.size();
+    }
+    
+    /**
+     * @return whether the receiver has a file of the same name, length and checksum
+     */
+    public boolean matches(String fileName, File file) throws IOException
+    {
+      long[] info = _files.get(fileName);
+      return (info != null && info[0] == file.length() && info[1] == checksum(file));
+    }
+  }
 }
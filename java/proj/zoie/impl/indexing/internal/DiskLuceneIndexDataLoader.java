@@ -21,15 +21,14 @@ import it.unimi.dsi.fastutil.longs.LongSet;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.Collection;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.search.Similarity;
 
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.OptimizeScheduler;
 import proj.zoie.api.indexing.OptimizeScheduler.OptimizeType;
@@ -75,7 +74,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
     }
 
 	@Override
-	public void consume(Collection<DataEvent<ZoieIndexable>> events)
+	public void consume(DataEventBatch<ZoieIndexable> events)
 			throws ZoieException {
 		// updates the in memory status before and after the work
 		synchronized(_optimizeMonitor)
@@ -119,7 +118,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	}
 	
 	@Override
-    public void loadFromIndex(RAMSearchIndex<R> ramIndex) throws ZoieException
+    public void loadFromIndex(ShardedRAMSearchIndex<R> ramIndex) throws ZoieException
     {
       synchronized(_optimizeMonitor)
       {
@@ -172,19 +171,15 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	        try
 	        {
 	          writer=idx.openIndexWriter(_analyzer, _similarity);
+	          // report what the pass is expected to reclaim before rewriting anything
+	          log.info("expunge plan: "+((DiskSearchIndex<R>)idx).getExpungePlan());
 	          writer.expungeDeletes(true);
 	        }
 	        finally
 	        {
 	        	if (writer!=null)
 	        	{
-	        		try {
-						writer.close();
-					} catch (CorruptIndexException e) {
-						log.fatal("possible index corruption! "+e.getMessage());
-					} catch (IOException e) {
-						log.error(e.getMessage(),e);
-					}
+	        		idx.closeIndexWriter();
 	        	}
 	        }
 	        _idxMgr.refreshDiskReader();
@@ -211,13 +206,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	        {
 	        	if (writer!=null)
 	        	{
-	        		try {
-						writer.close();
-					} catch (CorruptIndexException e) {
-						log.fatal("possible index corruption! "+e.getMessage());
-					} catch (IOException e) {
-						log.error(e.getMessage(),e);
-					}
+	        		idx.closeIndexWriter();
 	        	}
 	        }
 	        _idxMgr.refreshDiskReader();
@@ -231,10 +220,28 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	}
 	
 	public long exportSnapshot(WritableByteChannel channel) throws IOException
+	{
+	  return exportSnapshot(channel, null);
+	}
+	
+	/**
+	 * @param manifestChannel the manifest of the receiver, see {@link #writeSnapshotManifest(WritableByteChannel)},
+	 * null for a full snapshot
+	 */
+	public long exportSnapshot(WritableByteChannel channel, ReadableByteChannel manifestChannel) throws IOException
+	{
+	  return exportSnapshot(channel, manifestChannel, DiskIndexSnapshot.Encoding.PLAIN);
+	}
+	
+	/**
+	 * @param encoding how the files are written, see {@link DiskIndexSnapshot.Encoding}
+	 */
+	public long exportSnapshot(WritableByteChannel channel, ReadableByteChannel manifestChannel, DiskIndexSnapshot.Encoding encoding) throws IOException
 	{
 	  DiskSearchIndex<R> idx = (DiskSearchIndex<R>)getSearchIndex();
 	  if(idx != null)
 	  {
+	    DiskIndexSnapshot.Manifest manifest = (manifestChannel != null ? DiskIndexSnapshot.Manifest.read(manifestChannel) : null);
 	    DiskIndexSnapshot snapshot = null;
         
 	    try
@@ -244,7 +251,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	        snapshot = idx.getSnapshot();
 	      }
 	      
-	      return (snapshot != null ?  snapshot.writeTo(channel) : 0);
+	      return (snapshot != null ?  snapshot.writeTo(channel, manifest, encoding) : 0);
 	    }
 	    finally
 	    {
@@ -254,16 +261,30 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	  return 0;
 	}
 	
+	/**
+	 * Writes the files of the index, for the sender of a snapshot to stream only the files missing or changed here.
+	 */
+	public long writeSnapshotManifest(WritableByteChannel channel) throws IOException
+	{
+	  DiskSearchIndex<R> idx = (DiskSearchIndex<R>)getSearchIndex();
+	  DiskIndexSnapshot.Manifest manifest = (idx != null ? idx.getSnapshotManifest() : new DiskIndexSnapshot.Manifest());
+	  log.info("snapshot manifest lists " + manifest.size() + " files");
+	  return manifest.writeTo(channel);
+	}
+	
+	/**
+	 * Imports a snapshot next to the current index, which keeps serving searches until the imported
+	 * index is switched to.
+	 */
 	public void importSnapshot(ReadableByteChannel channel) throws IOException
 	{
       DiskSearchIndex<R> idx = (DiskSearchIndex<R>)getSearchIndex();
       if(idx != null)
       {
-        synchronized(_optimizeMonitor) // prevent index updates while taking a snapshot
+        synchronized(_optimizeMonitor) // prevent index updates while importing a snapshot
         {
-	      _idxMgr.purgeIndex();
-	      idx.importSnapshot(channel);
-	      _idxMgr.refreshDiskReader();
+          IndexSignature sig = idx.stageSnapshot(channel);
+          _idxMgr.switchDiskIndex(sig);
 	    }
 	  }
 	}
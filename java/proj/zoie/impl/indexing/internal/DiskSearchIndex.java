@@ -20,14 +20,16 @@ import it.unimi.dsi.fastutil.longs.LongSet;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.ZoieMergeScheduler;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.search.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -35,14 +37,18 @@ import org.apache.lucene.store.FSDirectory;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.impl.ZoieMergePolicy;
 import proj.zoie.api.impl.ZoieMergePolicy.MergePolicyParams;
+import proj.zoie.api.impl.util.FileUtil;
 import proj.zoie.api.impl.util.IndexUtil;
+import proj.zoie.api.indexing.DiskDirectoryFactory;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.ReaderWarmer;
 
 public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	  private final File                 _location;
 	  private final IndexReaderDispenser<R> _dispenser;
 	  
 	  final MergePolicyParams _mergePolicyParams;
+	  private final ZoieMergeScheduler _backgroundMergeScheduler;
 	  
 	  private ZoieIndexDeletionPolicy _deletionPolicy;
 
@@ -53,7 +59,9 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	    _location = location;
 	    _mergePolicyParams = new MergePolicyParams();
 	    _dispenser = new IndexReaderDispenser<R>(_location, decorator);
-	    _mergeScheduler = new SerialMergeScheduler();
+	    // merges run in the background, flushes only register them
+	    _backgroundMergeScheduler = new ZoieMergeScheduler();
+	    _mergeScheduler = _backgroundMergeScheduler;
 	    _deletionPolicy = new ZoieIndexDeletionPolicy();
 	  }
 
@@ -66,6 +74,76 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	     return _mergePolicyParams;
 	  }
 	  
+	  public ZoieMergeScheduler getMergeScheduler(){
+	     return _backgroundMergeScheduler;
+	  }
+	  
+	  /**
+	   * Sets how the index directory is opened. Readers use it from the next refresh on,
+	   * the index writer the next time it is opened.
+	   * @param directoryFactory directory factory
+	   */
+	  public void setDirectoryFactory(DiskDirectoryFactory directoryFactory)
+	  {
+	    _dispenser.setDirectoryFactory(directoryFactory);
+	  }
+	  
+	  public DiskDirectoryFactory getDirectoryFactory()
+	  {
+	    return _dispenser.getDirectoryFactory();
+	  }
+	  
+	  /**
+	   * @param warmer warms up the new segments of refreshed readers before they are used, null for none
+	   */
+	  public void setReaderWarmer(ReaderWarmer<R> warmer)
+	  {
+	    _dispenser.setReaderWarmer(warmer);
+	  }
+	  
+	  public ReaderWarmer<R> getReaderWarmer()
+	  {
+	    return _dispenser.getReaderWarmer();
+	  }
+	  
+	  /**
+	   * @param warmUpBudget time a refreshed reader may spend warming up in milliseconds, 0 or less for no limit
+	   */
+	  public void setWarmUpBudget(long warmUpBudget)
+	  {
+	    _dispenser.setWarmUpBudget(warmUpBudget);
+	  }
+	  
+	  public long getWarmUpBudget()
+	  {
+	    return _dispenser.getWarmUpBudget();
+	  }
+	  
+	  public long getWarmUpCount()
+	  {
+	    return _dispenser.getWarmUpCount();
+	  }
+	  
+	  public long getWarmUpTotalTime()
+	  {
+	    return _dispenser.getWarmUpTotalTime();
+	  }
+	  
+	  public long getLastWarmUpTime()
+	  {
+	    return _dispenser.getLastWarmUpTime();
+	  }
+	  
+	  public int getLastWarmedSegmentCount()
+	  {
+	    return _dispenser.getLastWarmedSegmentCount();
+	  }
+	  
+	  public int getLastColdSegmentCount()
+	  {
+	    return _dispenser.getLastColdSegmentCount();
+	  }
+	  
 	  /**
 	   * Gets the number of docs in the current loaded index
 	   * @return number of docs
@@ -83,6 +161,30 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	    }
 	  }
 	  
+	  /**
+	   * Gets the largest share of deleted documents in a segment of the current reader,
+	   * i.e. the space the best single segment expunge would reclaim
+	   * @return deleted ratio between 0 and 1
+	   */
+	  public float getMaxSegmentDeletedRatio()
+	  {
+	    IndexReader reader=_dispenser.getIndexReader();
+	    if (reader==null) return 0.0f;
+	    
+	    float maxRatio = 0.0f;
+	    IndexReader[] subReaders = reader.getSequentialSubReaders();
+	    if (subReaders == null) subReaders = new IndexReader[]{ reader };
+	    for (IndexReader subReader : subReaders)
+	    {
+	      int maxDoc = subReader.maxDoc();
+	      if (maxDoc > 0)
+	      {
+	        maxRatio = Math.max(maxRatio, (float)subReader.numDeletedDocs() / (float)maxDoc);
+	      }
+	    }
+	    return maxRatio;
+	  }
+	  
 	  public int getSegmentCount() throws IOException{
 		  if (_location == null || !_location.exists()){
 			  return 0;
@@ -90,7 +192,7 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 
 		  Directory dir = null;
 		  try{
-			  dir = getIndexDir(_location);
+			  dir = getIndexDir(_location, _dispenser.getDirectoryFactory());
 		  }
 		  catch(Exception e){
 			  return 0;
@@ -98,6 +200,32 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 		  if (dir == null) return 0;
 		  return IndexUtil.getNumSegments(dir);
 	  }
+	  
+	  /**
+	   * Plans a targeted expunge of the committed segments with the current deleted ratio and byte cap,
+	   * i.e. what the next {@link IndexWriter#expungeDeletes()} is expected to rewrite and reclaim.
+	   * @return the plan, empty if there is no index
+	   * @throws IOException
+	   */
+	  public ZoieMergePolicy.ExpungePlan getExpungePlan() throws IOException
+	  {
+	    SegmentInfos infos = new SegmentInfos();
+	    Directory dir = null;
+	    try
+	    {
+	      if (_location != null && _location.exists())
+	      {
+	        dir = getIndexDir(_location, _dispenser.getDirectoryFactory());
+	        if (IndexReader.indexExists(dir)) infos.read(dir);
+	      }
+	      // segment sizes are read from the directory
+	      return ZoieMergePolicy.planExpunge(infos, _mergePolicyParams.getExpungeDeletedRatio(), _mergePolicyParams.getMaxExpungeBytes());
+	    }
+	    finally
+	    {
+	      if (dir != null) dir.close();
+	    }
+	  }
 
 	  /**
 	   * Close and releases dispenser and clean up
@@ -113,6 +241,15 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	    }
 	  }
 	  
+	  /**
+       * Opens and warms up the next reader outside of the locks {@link #refresh()} is called in
+       */
+	  @Override
+      public void prepareRefresh() throws IOException
+      {
+        _dispenser.prepareNewReader();
+      }
+      
 	  /**
        * Refreshes the index reader
        */
@@ -132,10 +269,6 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	    }
       }
       
-      public void returnReaders(List<ZoieIndexReader<R>> readers){
-    	  _dispenser.returnReaders(readers);
-      }
-
 	  @Override
 	  protected void finalize()
 	  {
@@ -143,6 +276,11 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	  }
 	  
 	  public static FSDirectory getIndexDir(File location) throws IOException
+	  {
+	    return getIndexDir(location, DiskDirectoryFactory.DEFAULT);
+	  }
+	  
+	  public static FSDirectory getIndexDir(File location, DiskDirectoryFactory directoryFactory) throws IOException
 	  {
 		IndexSignature sig = null;
 		if (location.exists())
@@ -166,7 +304,7 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 		
 
 	    File idxDir = new File(location, sig.getIndexPath());
-	    FSDirectory directory = FSDirectory.open(idxDir);
+	    FSDirectory directory = directoryFactory.newDirectory(idxDir);
 	    
 	    return directory;
 	  }
@@ -178,22 +316,39 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	   */
 	  public IndexWriter openIndexWriter(Analyzer analyzer,Similarity similarity) throws IOException
 	  {
-	    if(_indexWriter != null) return _indexWriter;
+	    if(_indexWriter != null)
+	    {
+	      // the writer stays open across batches, reopen it only for a different analyzer
+	      if(analyzer == null || analyzer == _indexWriter.getAnalyzer())
+	      {
+	        // pick up parameter changes, e.g. partial expunge for this batch
+	        ZoieMergePolicy mergePolicy = (ZoieMergePolicy)_indexWriter.getMergePolicy();
+	        if (mergePolicy.getMergePolicyType() == _mergePolicyParams.getMergePolicyType())
+	        {
+	          mergePolicy.setMergePolicyParams(_mergePolicyParams);
+	        }
+	        else
+	        {
+	          _indexWriter.setMergePolicy(ZoieMergePolicy.newMergePolicy(_indexWriter, _mergePolicyParams));
+	        }
+	        return _indexWriter;
+	      }
+	      closeIndexWriter();
+	    }
 	    
 	    // create the parent directory
 	    _location.mkdirs();
 	    
-	    FSDirectory directory = getIndexDir(_location);
+	    FSDirectory directory = getIndexDir(_location, _dispenser.getDirectoryFactory());
 
 	    log.info("opening index writer at: "+directory.getFile().getAbsolutePath());
 	    
 	    // create a new modifier to the index, assuming at most one instance is running at any given time
 	    boolean create = !IndexReader.indexExists(directory);  
-	    IndexWriter idxWriter = new IndexWriter(directory, analyzer, create, _deletionPolicy, MaxFieldLength.UNLIMITED);
+	    IndexWriter idxWriter = new IndexWriter(_backgroundMergeScheduler.throttle(directory), analyzer, create, _deletionPolicy, MaxFieldLength.UNLIMITED);
         idxWriter.setMergeScheduler(_mergeScheduler);
         
-        ZoieMergePolicy mergePolicy = new ZoieMergePolicy(idxWriter);
-        mergePolicy.setMergePolicyParams(_mergePolicyParams);
+        ZoieMergePolicy mergePolicy = ZoieMergePolicy.newMergePolicy(idxWriter, _mergePolicyParams);
         idxWriter.setRAMBufferSizeMB(5);
 	    
         idxWriter.setMergePolicy(mergePolicy);
@@ -217,18 +372,6 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	  }
 	  
 	  
-	  @Override
-	  protected IndexReader openIndexReaderForDelete() throws IOException {
-		_location.mkdirs();
-		FSDirectory directory = getIndexDir(_location);
-		if (IndexReader.indexExists(directory)){		
-			return IndexReader.open(directory,false);
-		}
-		else{
-			return null;
-		}
-	  }
-
 	/**
 	   * Gets a new reader, force a reader refresh
 	   * @return
@@ -255,21 +398,20 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	    File directoryFile = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY);
 	    IndexSignature sig = IndexSignature.read(directoryFile);
 	    sig.updateVersion(version);
-	    try
-	    {
-	      // make sure atomicity of the index publication
-	      File tmpFile = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY + ".new");
-	      sig.save(tmpFile);
-	      File tmpFile2 = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY + ".tmp");
-	      directoryFile.renameTo(tmpFile2);
-	      tmpFile.renameTo(directoryFile);
-	      tmpFile2.delete();
-	    }
-	    catch (IOException e)
+	    saveSignature(sig);
+	  }
+	  
+	  private void saveSignature(IndexSignature sig) throws IOException
+	  {
+	    File directoryFile = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY);
+	    // make sure atomicity of the index publication, the new signature replaces the old one in a single rename
+	    // so that a reader of the signature never finds it missing
+	    File tmpFile = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY + ".new");
+	    sig.save(tmpFile);
+	    if (!tmpFile.renameTo(directoryFile))
 	    {
-	      throw e;
+	      throw new IOException("unable to rename " + tmpFile.getAbsolutePath() + " to " + directoryFile.getAbsolutePath());
 	    }
-
 	  }
 	  
 	  public DiskIndexSnapshot getSnapshot()
@@ -286,11 +428,96 @@ public class DiskSearchIndex<R extends IndexReader> extends BaseSearchIndex<R>{
 	    return null;
 	  }
 	  
-	  public void importSnapshot(ReadableByteChannel channel) throws IOException
+	  /**
+	   * Lists the files of the last commit, for a sender of a snapshot to leave out the files this index has.
+	   */
+	  public DiskIndexSnapshot.Manifest getSnapshotManifest() throws IOException
 	  {
-        File idxDir = new File(_location, IndexReaderDispenser.INDEX_DIR_NAME);
-        idxDir.mkdirs();
-        
-        DiskIndexSnapshot.readSnapshot(channel, _location);
+	    FSDirectory dir = null;
+	    try
+	    {
+	      if (_location != null && _location.exists())
+	      {
+	        dir = getIndexDir(_location, _dispenser.getDirectoryFactory());
+	        if (IndexReader.indexExists(dir))
+	        {
+	          SegmentInfos infos = new SegmentInfos();
+	          infos.read(dir);
+	          @SuppressWarnings("unchecked")
+	          Collection<String> files = (Collection<String>)infos.files(dir, true);
+	          return DiskIndexSnapshot.Manifest.create(dir.getFile(), files);
+	        }
+	      }
+	      return new DiskIndexSnapshot.Manifest();
+	    }
+	    finally
+	    {
+	      if (dir != null) dir.close();
+	    }
+	  }
+	  
+	  /**
+	   * Reads a snapshot into a new directory of the index location and checks that it opens. The current
+	   * index is left as it is and keeps serving, the files the snapshot leaves out are taken from it.
+	   * @return the signature to switch the index to the staged directory with, see {@link #switchIndexDirectory(IndexSignature)}
+	   */
+	  public IndexSignature stageSnapshot(ReadableByteChannel channel) throws IOException
+	  {
+	    closeIndexWriter(); // the files of the current index do not change while they are reused
+	    _location.mkdirs();
+	    
+	    IndexSignature current = IndexReaderDispenser.getCurrentIndexSignature(_location);
+	    File currentDir = (current != null ? new File(_location, current.getIndexPath()) : null);
+	    String stagedPath = IndexReaderDispenser.INDEX_DIR_NAME + "-" + System.currentTimeMillis();
+	    File stagedDir = new File(_location, stagedPath);
+	    while (stagedDir.exists() || stagedDir.equals(currentDir))
+	    {
+	      stagedPath = stagedPath + "0";
+	      stagedDir = new File(_location, stagedPath);
+	    }
+	    stagedDir.mkdirs();
+	    
+	    boolean success = false;
+	    try
+	    {
+	      IndexSignature sig = DiskIndexSnapshot.readSnapshot(channel, stagedDir, currentDir);
+	      verifyIndex(stagedDir);
+	      success = true;
+	      log.info("snapshot of version " + sig.getVersion() + " staged at: " + stagedDir.getAbsolutePath());
+	      return new IndexSignature(stagedPath, sig.getVersion());
+	    }
+	    finally
+	    {
+	      if (!success) FileUtil.rmDir(stagedDir);
+	    }
+	  }
+	  
+	  private void verifyIndex(File indexDir) throws IOException
+	  {
+	    FSDirectory dir = _dispenser.getDirectoryFactory().newDirectory(indexDir);
+	    try
+	    {
+	      IndexReader reader = IndexReader.open(dir, true);
+	      reader.close();
+	    }
+	    finally
+	    {
+	      dir.close();
+	    }
+	  }
+	  
+	  /**
+	   * Points the index location to another index directory, the readers opened next read from it.
+	   * @return the previous index directory, null if there was none
+	   */
+	  public File switchIndexDirectory(IndexSignature sig) throws IOException
+	  {
+	    closeIndexWriter();
+	    
+	    IndexSignature current = IndexReaderDispenser.getCurrentIndexSignature(_location);
+	    saveSignature(sig);
+	    log.info("index switched to: " + sig.getIndexPath());
+	    if (current == null || current.getIndexPath().equals(sig.getIndexPath())) return null;
+	    return new File(_location, current.getIndexPath());
 	  }
 }
@@ -17,73 +17,101 @@ package proj.zoie.impl.indexing.internal;
  */
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.indexing.DiskDirectoryFactory;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.ReaderWarmer;
 
 public class IndexReaderDispenser<R extends IndexReader>{
 	private static final Logger log = Logger.getLogger(IndexReaderDispenser.class);
-	private static final int NUM_GENERATIONS = 3;
 	
 	private static final int INDEX_OPEN_NUM_RETRIES=5;
 	
 	public static final String  INDEX_DIRECTORY = "index.directory";
 	public static final String   INDEX_DIR_NAME = "beef";
 	
+    /**
+     * A disk reader, reference counted: the dispenser holds a reference while the reader is current
+     * and every published reader snapshot holds one. The reader is closed with the last reference.
+     * Committed views share the inner reader and are not counted themselves.
+     */
     static final class InternalIndexReader<R extends IndexReader> extends ZoieMultiReader<R>{
-		//private IndexSignature _sig;
-		private final IndexReaderDispenser<R> _dispenser;
-		private final AtomicInteger _refCount = new AtomicInteger(0);
-		private long _generation;
+		private final AtomicInteger _refCount = new AtomicInteger(1);
 		
-		InternalIndexReader(IndexReader in,IndexReaderDecorator<R> decorator,IndexReaderDispenser<R> dispenser,long generation) throws IOException
+		InternalIndexReader(IndexReader in,IndexReaderDecorator<R> decorator) throws IOException
 		{
 			super(in, decorator);
-			_dispenser = dispenser;
-			_generation = generation;
 		}
 		
 		public InternalIndexReader(IndexReader in, IndexReader[] subReaders,
-				IndexReaderDecorator<R> decorator,IndexReaderDispenser<R> dispenser,long generation) throws IOException {
+				IndexReaderDecorator<R> decorator) throws IOException {
 			super(in, subReaders, decorator);
-			_dispenser = dispenser;
-			_generation = generation;
 		}
 
 		@Override
 		protected ZoieMultiReader<R> newInstance(IndexReader inner,
 				IndexReader[] subReaders) throws IOException {
-			return new InternalIndexReader<R>(inner,subReaders,_decorator,_dispenser,_generation);
+			return new InternalIndexReader<R>(inner,subReaders,_decorator);
 		}
 		
-		int incrementRef(){
-			if (_refCount.get()>=0){
-			   return _refCount.incrementAndGet();
+		/**
+		 * Takes a reference unless the reader was already released.
+		 * @return false if the reader is closed
+		 */
+		boolean tryIncrementRef(){
+			while(true){
+				int count = _refCount.get();
+				if (count<=0) return false;
+				if (_refCount.compareAndSet(count, count+1)) return true;
 			}
-			else{
-				return _refCount.get();
+		}
+		
+		void decrementRef(){
+			if (_refCount.decrementAndGet()==0){
+				destroy(this);
 			}
 		}
 		
-		int decrementRef(){
-			if (_refCount.get()>0){
-			  return _refCount.decrementAndGet();
+		int getReferenceCount(){
+			return _refCount.get();
+		}
+	}
+	
+	private static <R extends IndexReader> void destroy(InternalIndexReader<R> reader)
+	{
+		try {
+			reader.close();
+			List<R> decoratedReaders = reader.getDecoratedReaders();
+			if (decoratedReaders!=null){
+				for (R decR : decoratedReaders){
+					try{
+						decR.close();
+					}
+					catch(AlreadyClosedException ace){
+						// read already closed
+					}
+				}
 			}
-			else{
-				return _refCount.get();
+			if (log.isDebugEnabled()){
+				log.debug("closed released reader "+reader);
 			}
 		}
+		catch(AlreadyClosedException ace){
+			log.error(ace.getMessage(),ace);
+		}
+		catch(IOException ioe){
+			log.error("problem closing reader", ioe);
+		}
 	}
 	
 	/**
@@ -102,16 +130,26 @@ public class IndexReaderDispenser<R extends IndexReader>{
     private volatile IndexSignature _currentSignature;
 	private final IndexReaderDecorator<R> _decorator;
 	private final File _indexHome;
-	private long _generation;
-	private final ConcurrentLinkedQueue<InternalIndexReader<R>> _destroyQueue;
+	private volatile DiskDirectoryFactory _directoryFactory = DiskDirectoryFactory.DEFAULT;
+	private volatile boolean _openFromScratch = false;
+	private volatile ReaderWarmer<R> _warmer = null;
+	private volatile long _warmUpBudget = 0L;
+	// warm-up metrics, updated by the refreshing thread only
+	private volatile long _warmUpCount = 0L;
+	private volatile long _warmUpTotalTime = 0L;
+	private volatile long _lastWarmUpTime = 0L;
+	private volatile int _lastWarmedSegmentCount = 0;
+	private volatile int _lastColdSegmentCount = 0;
+	// reader opened and warmed up ahead of getNewReader, see prepareNewReader
+	private InternalIndexReader<R> _preparedReader = null;
+	private IndexSignature _preparedSignature = null;
+	private boolean _preparedFromScratch = false;
 	
 	public IndexReaderDispenser(File indexHome, IndexReaderDecorator<R> decorator)
 	{
 	  _indexHome = indexHome;
 	  _decorator = decorator;
 	  _currentSignature = null;
-	  _generation = 0L;
-	  _destroyQueue = new ConcurrentLinkedQueue<InternalIndexReader<R>>();
 	  IndexSignature sig = getCurrentIndexSignature(_indexHome);
 	  if(sig != null)
 	  {
@@ -131,6 +169,116 @@ public class IndexReaderDispenser<R extends IndexReader>{
 		return _currentSignature!=null ? _currentSignature.getVersion(): 0L;
 	}
 	
+	/**
+	 * Sets how the index directory is opened. The next new reader is opened from scratch
+	 * instead of being reopened from the current one.
+	 * @param directoryFactory directory factory
+	 */
+	public void setDirectoryFactory(DiskDirectoryFactory directoryFactory)
+	{
+		_directoryFactory = (directoryFactory == null ? DiskDirectoryFactory.DEFAULT : directoryFactory);
+		_openFromScratch = true;
+		discardPreparedReader();
+	}
+	
+	public DiskDirectoryFactory getDirectoryFactory()
+	{
+		return _directoryFactory;
+	}
+	
+	/**
+	 * @param warmer warms up the new segments of new readers before they are handed out, null for none
+	 */
+	public void setReaderWarmer(ReaderWarmer<R> warmer)
+	{
+		_warmer = warmer;
+	}
+	
+	public ReaderWarmer<R> getReaderWarmer()
+	{
+		return _warmer;
+	}
+	
+	/**
+	 * Bounds the time a new reader is held back to warm up. The budget is checked between segments,
+	 * the segments left when it runs out are handed out cold.
+	 * @param warmUpBudget time budget in milliseconds, 0 or less for none
+	 */
+	public void setWarmUpBudget(long warmUpBudget)
+	{
+		_warmUpBudget = warmUpBudget;
+	}
+	
+	public long getWarmUpBudget()
+	{
+		return _warmUpBudget;
+	}
+	
+	public long getWarmUpCount()
+	{
+		return _warmUpCount;
+	}
+	
+	public long getWarmUpTotalTime()
+	{
+		return _warmUpTotalTime;
+	}
+	
+	public long getLastWarmUpTime()
+	{
+		return _lastWarmUpTime;
+	}
+	
+	public int getLastWarmedSegmentCount()
+	{
+		return _lastWarmedSegmentCount;
+	}
+	
+	/**
+	 * @return number of new segments the last warm-up left cold, because the budget ran out or the warmer failed
+	 */
+	public int getLastColdSegmentCount()
+	{
+		return _lastColdSegmentCount;
+	}
+	
+	/**
+	 * Warms up the segments new to the given reader.
+	 * @param warmer reader warmer
+	 * @param reader new reader
+	 */
+	private void warmUp(ReaderWarmer<R> warmer, InternalIndexReader<R> reader)
+	{
+		List<ZoieSegmentReader<R>> segments = reader.getNewSegmentReaders();
+		long budget = _warmUpBudget;
+		long start = System.currentTimeMillis();
+		int warmed = 0;
+		for (ZoieSegmentReader<R> segment : segments)
+		{
+			if (budget > 0 && System.currentTimeMillis() - start >= budget)
+			{
+				log.warn("warm-up budget of "+budget+"ms exhausted");
+				break;
+			}
+			try
+			{
+				warmer.warm(segment);
+				warmed++;
+			}
+			catch(Exception e)
+			{
+				log.error("problem warming up segment "+segment.getSegmentName(), e);
+			}
+		}
+		long time = System.currentTimeMillis() - start;
+		_warmUpCount++;
+		_warmUpTotalTime += time;
+		_lastWarmUpTime = time;
+		_lastWarmedSegmentCount = warmed;
+		_lastColdSegmentCount = segments.size() - warmed;
+		log.info("warmed up "+warmed+"/"+segments.size()+" new segments in "+time+"ms");
+	}
+	
 	/**
 	   * constructs a new IndexReader instance
 	   * 
@@ -146,7 +294,7 @@ public class IndexReaderDispenser<R extends IndexReader>{
 	      return null;
 	    }
 	    
-		Directory dir=FSDirectory.open(luceneDir);
+		Directory dir=_directoryFactory.newDirectory(luceneDir);
 		
 		if (!IndexReader.indexExists(dir)){
 			return null;
@@ -174,8 +322,7 @@ public class IndexReaderDispenser<R extends IndexReader>{
 	        
 	        try
 	        {
-	          reader=new InternalIndexReader<R>(srcReader, decorator,this,_generation);
-	          _currentSignature = signature;
+	          reader=new InternalIndexReader<R>(srcReader, decorator);
 	        }
 	        catch(IOException ioe)
 	        {
@@ -203,12 +350,129 @@ public class IndexReaderDispenser<R extends IndexReader>{
 	    return reader;
 	  }
 
+	  /**
+	   * Opens and warms up a reader of the index as committed now without handing it out, the next
+	   * {@link #getNewReader()} hands it out unless the index changed meanwhile. Lets the caller warm
+	   * up before taking the locks the new reader is published under.
+	   * @throws IOException
+	   */
+	  public void prepareNewReader() throws IOException
+	  {
+	    InternalIndexReader<R> current = _currentReader;
+	    if (current!=null && !current.tryIncrementRef())
+	    {
+	      return; // released meanwhile, getNewReader opens from scratch
+	    }
+	    IndexSignature[] sig = new IndexSignature[1];
+	    InternalIndexReader<R> reader;
+	    try
+	    {
+	      reader = openReader(current, sig);
+	    }
+	    finally
+	    {
+	      if (current!=null) current.decrementRef();
+	    }
+	    if (reader==null || reader==current)
+	    {
+	      return;
+	    }
+	    ReaderWarmer<R> warmer = _warmer;
+	    if (warmer!=null)
+	    {
+	      warmUp(warmer, reader);
+	    }
+	    synchronized(this)
+	    {
+	      discardPreparedReader();
+	      _preparedReader = reader;
+	      _preparedSignature = sig[0];
+	      _preparedFromScratch = (current==null || _openFromScratch);
+	    }
+	  }
+	  
+	  private synchronized void discardPreparedReader()
+	  {
+	    InternalIndexReader<R> prepared = _preparedReader;
+	    if (prepared!=null)
+	    {
+	      _preparedReader = null;
+	      _preparedSignature = null;
+	      prepared.decrementRef();
+	    }
+	  }
+	  
 	  /**
 	   * get a fresh new reader instance
 	   * @return an IndexReader instance, can be null if index does not yet exit
 	   * @throws IOException
 	   */
-	  public ZoieIndexReader<R> getNewReader() throws IOException
+	  public synchronized ZoieIndexReader<R> getNewReader() throws IOException
+	  {
+	      InternalIndexReader<R> reader = _preparedReader;
+	      IndexSignature sig = _preparedSignature;
+	      boolean fromScratch = _preparedFromScratch;
+	      _preparedReader = null;
+	      _preparedSignature = null;
+	      if (reader!=null && !isPreparedReaderCurrent(reader, sig, fromScratch))
+	      {
+	        reader.decrementRef();
+	        reader = null;
+	      }
+	      
+	      if (reader==null)
+	      {
+	        InternalIndexReader<R> current = _currentReader;
+	        IndexSignature[] opened = new IndexSignature[1];
+	        fromScratch = (current==null || _openFromScratch);
+	        reader = openReader(current, opened);
+	        sig = opened[0];
+	        
+	        ReaderWarmer<R> warmer = _warmer;
+	        if (reader!=null && reader!=current && warmer!=null)
+	        {
+	          // warm up before the reader is handed out, queries on new segments would pay for it otherwise
+	          warmUp(warmer, reader);
+	        }
+	      }
+	      
+	      if (reader!=null)
+	      {
+	        _currentSignature = sig;
+	        if (fromScratch) _openFromScratch = false;
+	      }
+	      
+	      // swap the internal readers, the old one is closed once the last snapshot using it is released
+	      InternalIndexReader<R> oldReader = _currentReader;
+	      _currentReader = reader;
+	      if (oldReader!=null && oldReader!=reader){
+	        oldReader.decrementRef();
+	      }
+	      
+	      return reader;
+	    }
+	  
+	  private boolean isPreparedReaderCurrent(InternalIndexReader<R> reader, IndexSignature sig, boolean fromScratch)
+	  {
+	    if (_openFromScratch && !fromScratch) return false;
+	    IndexSignature latest = getCurrentIndexSignature(_indexHome);
+	    if (latest==null || !latest.getIndexPath().equals(sig.getIndexPath())) return false;
+	    try
+	    {
+	      return reader.isCurrent();
+	    }
+	    catch(IOException ioe)
+	    {
+	      return false;
+	    }
+	  }
+	  
+	  /**
+	   * Opens a new reader, or reopens the given current one.
+	   * @param signature receives the signature of the index opened
+	   * @return the new reader, the current one if unchanged, null if none could be opened
+	   */
+	  private InternalIndexReader<R> openReader(InternalIndexReader<R> current, IndexSignature[] signature) throws IOException
 	  {
 	      int numTries=INDEX_OPEN_NUM_RETRIES;   
 	      InternalIndexReader<R> reader=null;
@@ -233,7 +497,8 @@ public class IndexReaderDispenser<R extends IndexReader>{
 	            throw new IOException("no index exist");
 	          }
 	          
-	          if (_currentReader==null){
+	          // a switch to another index directory opens from scratch too
+	          if (current==null || _openFromScratch || !isCurrentIndexPath(sig)){
 	            String luceneDir = sig.getIndexPath();
 	    
 	            if (luceneDir == null || luceneDir.trim().length() == 0)
@@ -244,13 +509,13 @@ public class IndexReaderDispenser<R extends IndexReader>{
 	            if (luceneDir != null)
 	            {
 	        	  reader = newReader(new File(_indexHome,luceneDir), _decorator, sig);
+	        	  signature[0] = sig;
 	              break;
 	            } 
 	          }
 	          else{
-	        	  reader = (InternalIndexReader<R>)_currentReader.reopen(true);
-	        	  reader._generation=_generation;
-	        	  _currentSignature = sig;
+	        	  reader = (InternalIndexReader<R>)current.reopen(true);
+	        	  signature[0] = sig;
 	          }
 	        }
 	        catch(IOException ioe)
@@ -266,50 +531,15 @@ public class IndexReaderDispenser<R extends IndexReader>{
 	          }
 	        }
 	      }
-	      
-	      _generation++;
-	      // swap the internal readers
-	      _currentReader = reader;
-	      
-	      log.info("collecting and closing old readers...("+_destroyQueue.size()+"), gen: "+_generation);
-	      int numReadersCollected = 0;
-	      Iterator<InternalIndexReader<R>> iter = _destroyQueue.iterator();
-	      while(iter.hasNext()){
-	    	InternalIndexReader<R> r = iter.next();
-	    	log.info(r+" - candiate for collection: "+r._generation+"/"+r._refCount.get());
-	  		if (r._generation <= (_generation-NUM_GENERATIONS) && r._refCount.get() == 0){
-	  			try {
-	  				r.close();
-	  				
-	  				List<R> decoratedReaders = r.getDecoratedReaders();
-	  				if (decoratedReaders!=null){
-	  					for (R decR : decoratedReaders){
-	  						try{
-	  							decR.close();
-	  						}
-	  						catch(AlreadyClosedException ioe){
-	  							// read already closed
-	  						}
-	  					}
-	  				}
-	  				
-	  				iter.remove();
-	  				numReadersCollected++;
-	  			} catch (AlreadyClosedException ace) {
-	  				log.error(ace.getMessage(),ace);
-	  			}
-	  		}
-	      }
-
-	      log.info("done collecting and closing old readers... ("+numReadersCollected+"/"+_destroyQueue.size()+")");
-	      
-	      if (_currentReader!=null){
-	        _destroyQueue.add(_currentReader);
-	      }
-	      
 	      return reader;
 	    }
 	
+	private boolean isCurrentIndexPath(IndexSignature sig)
+	{
+	  IndexSignature current = _currentSignature;
+	  return (current == null || current.getIndexPath().equals(sig.getIndexPath()));
+	}
+	
 	public ZoieIndexReader<R> getIndexReader()
 	{
 		if (_currentReader!=null){
@@ -320,14 +550,6 @@ public class IndexReaderDispenser<R extends IndexReader>{
 		}
 	}
 		
-	public void returnReaders(List<ZoieIndexReader<R>> readers){
-		for (ZoieIndexReader<R> r : readers){
-			if (r instanceof InternalIndexReader<?>){
-				((InternalIndexReader<R>) r).decrementRef();
-			}
-		}
-	}
-	
 	/**
 	 * Closes the factory.
 	 * 
@@ -338,21 +560,16 @@ public class IndexReaderDispenser<R extends IndexReader>{
 	}
 	
 	/**
-	 * Closes the index reader
+	 * Releases the current index reader, it is closed once no published snapshot uses it
 	 */
-	public void closeReader()
+	public synchronized void closeReader()
 	{
-	  if(_currentReader != null)
+	  discardPreparedReader();
+	  InternalIndexReader<R> reader = _currentReader;
+	  if(reader != null)
 	  {
-	    try
-	    {
-	      _currentReader.close();
-	    }
-	    catch(IOException e)
-	    {
-	      log.error("problem closing reader", e);
-	    }
 	    _currentReader = null;
+	    reader.decrementRef();
 	  }
 	}
 	
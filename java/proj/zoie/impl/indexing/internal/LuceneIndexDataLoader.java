@@ -33,6 +33,7 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Similarity;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.indexing.ZoieIndexable;
@@ -63,9 +64,22 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 	 * 
 	 */
 	public void consume(Collection<DataEvent<ZoieIndexable>> events) throws ZoieException {
-		int eventCount = events.size();
-        if (events == null || eventCount == 0)
+        if (events == null || events.size() == 0)
+			return;
+        consume(new DataEventBatch<ZoieIndexable>(events));
+	}
+	
+	/**
+	 * @Precondition incoming events sorted by version number
+	 * <br>every event in the batch must be non-null
+	 * 
+	 * @see proj.zoie.api.DataConsumer#consume(proj.zoie.api.DataEventBatch)
+	 * 
+	 */
+	public void consume(DataEventBatch<ZoieIndexable> events) throws ZoieException {
+        if (events == null || events.size() == 0)
 			return;
+		int eventCount = events.size();
 
 		BaseSearchIndex<R> idx = getSearchIndex();
 
@@ -75,12 +89,11 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 		LongSet delSet =new LongOpenHashSet();
 		
 		try {
-		  for(DataEvent<ZoieIndexable> evt : events)
+		  for(int i = 0; i < eventCount; ++i)
 		  {
-		    if (evt == null) continue;
-    		    version = Math.max(version, evt.getVersion());
+    		    version = Math.max(version, events.getVersion(i));
     		    // interpret and get get the indexable instance
-    		    ZoieIndexable indexable = evt.getData();
+    		    ZoieIndexable indexable = events.getData(i);
     		    if (indexable == null || indexable.isSkip())
     		      continue;
     
@@ -118,11 +131,13 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 				docList.addAll(tmpList);
 			}
             idx.updateIndex(delSet, docList, _analyzer,_similarity);
-            propagateDeletes(delSet);
+            idx.prepareRefresh(); // warm up the new reader before memory indexing is held up
 			synchronized(_idxMgr)
 			{
+              propagateDeletes(delSet); // in the lock, memory shards propagate concurrently
               idx.refresh();
               commitPropagatedDeletes();
+              _idxMgr.publishReaders();
 			}
 		} catch (IOException ioe) {
 			log.error("Problem indexing batch: " + ioe.getMessage(), ioe);
@@ -145,17 +160,24 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 		}
 	}
 	
-    public void loadFromIndex(RAMSearchIndex<R> ramIndex) throws ZoieException
+    public void loadFromIndex(ShardedRAMSearchIndex<R> ramIndex) throws ZoieException
     {
       try
       {
         BaseSearchIndex<R> idx = getSearchIndex();
-        idx.loadFromIndex(ramIndex);
-        idx.clearDeletes(); // clear old deletes as deletes are written to the lucene index
-        idx.refresh(); // load the index reader
-        idx.markDeletes(ramIndex.getDelDocs()); // inherit deletes
-        idx.incrementEventCount(ramIndex.getEventsHandled());
-        idx.setVersion(Math.max(idx.getVersion(), ramIndex.getVersion()));
+        idx.loadFromIndexes(ramIndex.getShards()); // memory writes may go on during the copy
+        idx.prepareRefresh(); // and during the warm-up of the new reader
+        synchronized(_idxMgr)
+        {
+          // deletes propagated during the copy are still marked, the refresh re-marks them
+          idx.refresh(); // load the index reader
+          idx.markDeletes(ramIndex.getDelDocs()); // inherit deletes
+          idx.commitDeletes();
+          idx.incrementEventCount(ramIndex.getEventsHandled());
+          idx.setVersion(Math.max(idx.getVersion(), ramIndex.getVersion()));
+          // publish before leaving the lock, later deletes are only marked on the new reader
+          _idxMgr.publishFlushedMemoryIndex(ramIndex);
+        }
       }
       catch(IOException ioe)
       {
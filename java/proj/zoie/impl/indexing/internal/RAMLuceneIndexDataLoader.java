@@ -24,21 +24,29 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Similarity;
 
 public class RAMLuceneIndexDataLoader<R extends IndexReader> extends LuceneIndexDataLoader<R> {
+	private final int _shard;
 
 	public RAMLuceneIndexDataLoader(Analyzer analyzer, Similarity similarity,SearchIndexManager<R> idxMgr) {
+		this(analyzer, similarity, idxMgr, 0);
+	}
+
+	/**
+	 * @param shard the shard of the writable memory index this loader writes to
+	 */
+	public RAMLuceneIndexDataLoader(Analyzer analyzer, Similarity similarity,SearchIndexManager<R> idxMgr, int shard) {
 		super(analyzer, similarity,idxMgr);
+		_shard = shard;
 	}
 
 	@Override
 	protected BaseSearchIndex<R> getSearchIndex() {
-		return _idxMgr.getCurrentWritableMemoryIndex();
+		return _idxMgr.getCurrentWritableMemoryIndex().getShard(_shard);
 	}
 
 	@Override
 	protected void propagateDeletes(LongSet delDocs) throws IOException
 	{
-	  RAMSearchIndex<R> readOnlyMemoryIdx = _idxMgr.getCurrentReadOnlyMemoryIndex();
-	  if(readOnlyMemoryIdx != null)
+	  for(ShardedRAMSearchIndex<R> readOnlyMemoryIdx : _idxMgr.getSealedMemoryIndexes())
 	  {
 	    readOnlyMemoryIdx.markDeletes(delDocs);
 	  }
@@ -53,8 +61,7 @@ public class RAMLuceneIndexDataLoader<R extends IndexReader> extends LuceneIndex
 	@Override
 	protected void commitPropagatedDeletes() throws IOException
 	{
-	  RAMSearchIndex<R> readOnlyMemoryIdx = _idxMgr.getCurrentReadOnlyMemoryIndex();
-	  if(readOnlyMemoryIdx != null)
+	  for(ShardedRAMSearchIndex<R> readOnlyMemoryIdx : _idxMgr.getSealedMemoryIndexes())
 	  {
 	    readOnlyMemoryIdx.commitDeletes();
 	  }
@@ -19,6 +19,7 @@ package proj.zoie.impl.indexing.internal;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -27,24 +28,37 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.search.Similarity;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieMultiReader;
+import proj.zoie.api.impl.util.ByteBufferDirectory;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 
 public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	  private long         _version;
-	  private final RAMDirectory _directory;
+	  private final Directory _directory;
 	  private final IndexReaderDecorator<R> _decorator;
 	  
-	  // a consistent pair of reader and deleted set
+	  // a consistent pair of reader and deleted set, the index holds one reference on it
       private volatile ZoieIndexReader<R> _currentReader;
 	  
 	  public static final Logger log = Logger.getLogger(RAMSearchIndex.class);
 
 	  RAMSearchIndex(long version, IndexReaderDecorator<R> decorator)
 	  {
-	    _directory = new RAMDirectory();
+	    this(version, decorator, new RAMDirectory());
+	  }
+	  
+	  /**
+	   * @param directory an empty memory directory, closed with the index
+	   */
+	  RAMSearchIndex(long version, IndexReaderDecorator<R> decorator, Directory directory)
+	  {
+	    _directory = directory;
 	    _version = version;
 	    _decorator = decorator;
 	    _currentReader = null;
@@ -56,12 +70,47 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	  public void close()
 	  {
 	    super.close();
+	    synchronized(this)
+	    {
+	      releaseReader(_currentReader);
+	      _currentReader = null;
+	    }
 	    if (_directory!=null)
 	    {
-	      _directory.close();
+	      try
+	      {
+	        _directory.close();
+	      }
+	      catch(IOException e)
+	      {
+	        log.error(e.getMessage(),e);
+	      }
 	    }
 	  }
 	  
+	  /**
+	   * @return heap memory held by the directory in bytes
+	   */
+	  public long getHeapSizeInBytes()
+	  {
+	    try
+	    {
+	      return (_directory instanceof RAMDirectory) ? ((RAMDirectory)_directory).sizeInBytes() : 0L;
+	    }
+	    catch(AlreadyClosedException e)
+	    {
+	      return 0L;
+	    }
+	  }
+	  
+	  /**
+	   * @return direct memory held by the directory in bytes
+	   */
+	  public long getDirectSizeInBytes()
+	  {
+	    return (_directory instanceof ByteBufferDirectory) ? ((ByteBufferDirectory)_directory).sizeInBytes() : 0L;
+	  }
+	  
 	  public long getVersion()
 	  {
 	    return _version;
@@ -75,19 +124,17 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 
 	  public int getNumdocs()
 	  {
-		ZoieIndexReader<R> reader=null;
-	    try
-	    {
-	      reader=openIndexReader();
-	    }
-	    catch (IOException e)
-	    {
-	      log.error(e.getMessage(),e);
-	    }
-	    
+		ZoieIndexReader<R> reader=acquireIndexReader();
 	    if (reader!=null)
 	    {
-	      return reader.numDocs();
+	      try
+	      {
+	        return reader.numDocs();
+	      }
+	      finally
+	      {
+	        releaseReader(reader);
+	      }
 	    }
 	    else
 	    {
@@ -96,21 +143,44 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	  }
 	  
 	  @Override
-      public ZoieIndexReader<R> openIndexReader() throws IOException
+      public ZoieIndexReader<R> openIndexReader()
       {
         return _currentReader;
       }
       
-	  @Override
-	  protected IndexReader openIndexReaderForDelete() throws IOException {
-		if (IndexReader.indexExists(_directory)){
-		  return IndexReader.open(_directory,false);
-		}
-		else{
-			return null;
-		}
-	  }
-	  
+      /**
+       * Takes a reference on the current reader, it is not closed by later refreshes before it is
+       * given back with {@link #releaseReader(ZoieIndexReader)}.
+       * @return the current reader, null if none
+       */
+      public synchronized ZoieIndexReader<R> acquireIndexReader()
+      {
+        ZoieIndexReader<R> reader = _currentReader;
+        if (reader!=null)
+        {
+          reader.incRef();
+        }
+        return reader;
+      }
+      
+      /**
+       * Gives back a reference taken by {@link #acquireIndexReader()}, the reader is closed with the last one.
+       */
+      public static void releaseReader(IndexReader reader)
+      {
+        if (reader!=null)
+        {
+          try
+          {
+            reader.decRef();
+          }
+          catch(IOException e)
+          {
+            log.error(e.getMessage(),e);
+          }
+        }
+      }
+      
       private ZoieIndexReader<R> openIndexReaderInternal() throws IOException
       {
 	    if (IndexReader.indexExists(_directory))
@@ -160,13 +230,39 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	    return idxWriter;
 	  }
 	  
+	  /**
+	   * Applies the deletes and adds the documents through the writer without committing,
+	   * the changes become visible with the near real-time reader taken by {@link #refresh()}.
+	   */
+	  @Override
+	  public void updateIndex(LongSet delDocs, List<IndexingReq> insertDocs,Analyzer defaultAnalyzer,Similarity similarity)
+	      throws IOException
+	  {
+	    IndexWriter idxMod = openIndexWriter(defaultAnalyzer,similarity);
+	    deleteDocs(idxMod, delDocs); // only applies to documents added before, not to the updates below
+	    addDocuments(idxMod, insertDocs);
+	  }
+	  
 	  @Override
 	  public void refresh() throws IOException
 	  {
 	    synchronized(this)
 	    {
 	      ZoieIndexReader<R> reader = null;
-	      if (_currentReader==null)
+	      if (_indexWriter!=null)
+	      {
+	        // near real-time reader, only the segments flushed since the last refresh are wrapped
+	        IndexReader srcReader = _indexWriter.getReader();
+	        if (_currentReader==null)
+	        {
+	          reader = ZoieIndexReader.open(srcReader, _decorator);
+	        }
+	        else
+	        {
+	          reader = ((ZoieMultiReader<R>)_currentReader).reopen(srcReader);
+	        }
+	      }
+	      else if (_currentReader==null)
 	      {
 	        reader = openIndexReaderInternal();
 	      }
@@ -175,10 +271,17 @@ public class RAMSearchIndex<R extends IndexReader> extends BaseSearchIndex<R> {
 	        reader = (ZoieIndexReader<R>)_currentReader.reopen(true);
 	      }
 	      
+	      ZoieIndexReader<R> oldReader = _currentReader;
 	      _currentReader = reader;
 	      LongSet delDocs = _delDocs;
           clearDeletes();
           markDeletes(delDocs); // re-mark deletes
+          
+          // the old reader is closed once the snapshots using it are released
+          if (oldReader!=null && oldReader!=reader)
+          {
+            releaseReader(oldReader);
+          }
 	    }
 	  }
 }
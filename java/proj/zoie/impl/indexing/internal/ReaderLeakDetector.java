@@ -0,0 +1,220 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Collections;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the reader snapshots handed out to searches and reports the ones that
+ * are not returned within a deadline. A snapshot that is never returned keeps its readers,
+ * and their files, open. The acquiring stack is recorded when debug logging is on.
+ */
+public class ReaderLeakDetector
+{
+  private static final Logger log = Logger.getLogger(ReaderLeakDetector.class);
+
+  public static final long DEFAULT_LEAK_TIMEOUT = 5L * 60L * 1000L;
+
+  private final Set<Acquisition> _outstanding;
+  private final AtomicLong _reportedLeakCount;
+  private final AtomicInteger _leakedCount;     // reported and not returned yet
+  private final AtomicLong _acquiredCount;
+  private volatile long _leakTimeout;
+  private Timer _timer;
+  private TimerTask _checkTask;
+
+  /**
+   * A reader snapshot taken by a search.
+   */
+  static final class Acquisition
+  {
+    private final String _threadName;
+    private final long _time;
+    private final Throwable _stack;
+    private boolean _reported;  // guarded by the acquisition
+    private boolean _returned;
+
+    private Acquisition(String threadName, long time, Throwable stack)
+    {
+      _threadName = threadName;
+      _time = time;
+      _stack = stack;
+      _reported = false;
+      _returned = false;
+    }
+  }
+
+  public ReaderLeakDetector()
+  {
+    _outstanding = Collections.newSetFromMap(new ConcurrentHashMap<Acquisition,Boolean>());
+    _reportedLeakCount = new AtomicLong(0L);
+    _leakedCount = new AtomicInteger(0);
+    _acquiredCount = new AtomicLong(0L);
+    _timer = null;
+    _checkTask = null;
+    setLeakTimeout(DEFAULT_LEAK_TIMEOUT);
+  }
+
+  /**
+   * Sets the deadline for returning readers. Outstanding snapshots are checked in the background
+   * every half deadline.
+   * @param leakTimeout deadline in milliseconds, 0 or less to stop checking
+   */
+  public synchronized void setLeakTimeout(long leakTimeout)
+  {
+    _leakTimeout = leakTimeout;
+    if (_checkTask != null)
+    {
+      _checkTask.cancel();
+      _checkTask = null;
+    }
+    if (leakTimeout > 0)
+    {
+      if (_timer == null)
+      {
+        _timer = new Timer("zoie-reader-leak-detector", true);
+      }
+      _checkTask = new TimerTask()
+      {
+        @Override
+        public void run()
+        {
+          checkLeaks();
+        }
+      };
+      long period = Math.max(1L, leakTimeout / 2);
+      _timer.schedule(_checkTask, period, period);
+    }
+  }
+
+  public long getLeakTimeout()
+  {
+    return _leakTimeout;
+  }
+
+  Acquisition acquired()
+  {
+    Thread thread = Thread.currentThread();
+    Throwable stack = log.isDebugEnabled() ? new Throwable("readers acquired by " + thread.getName()) : null;
+    Acquisition acquisition = new Acquisition(thread.getName(), System.currentTimeMillis(), stack);
+    _outstanding.add(acquisition);
+    _acquiredCount.incrementAndGet();
+    return acquisition;
+  }
+
+  void released(Acquisition acquisition)
+  {
+    if (!_outstanding.remove(acquisition)) return;
+    boolean reported;
+    synchronized(acquisition)
+    {
+      acquisition._returned = true;
+      reported = acquisition._reported;
+    }
+    if (reported)
+    {
+      _leakedCount.decrementAndGet();
+      log.info("readers acquired by " + acquisition._threadName + " returned after " + (System.currentTimeMillis() - acquisition._time) + "ms");
+    }
+  }
+
+  /**
+   * Reports the snapshots held past the deadline, each one once.
+   * @return number of snapshots currently held past the deadline
+   */
+  public int checkLeaks()
+  {
+    long timeout = _leakTimeout;
+    if (timeout <= 0) return 0;
+
+    long now = System.currentTimeMillis();
+    int count = 0;
+    for (Acquisition acquisition : _outstanding)
+    {
+      long age = now - acquisition._time;
+      if (age < timeout) continue;
+
+      count++;
+      boolean report;
+      synchronized(acquisition)
+      {
+        report = !acquisition._reported && !acquisition._returned;
+        if (report)
+        {
+          acquisition._reported = true;
+          _leakedCount.incrementAndGet();
+        }
+      }
+      if (report)
+      {
+        _reportedLeakCount.incrementAndGet();
+        log.warn("readers acquired by " + acquisition._threadName + " " + age + "ms ago were not returned", acquisition._stack);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Does not check, the snapshots are checked in the background every half leak timeout.
+   * @return number of snapshots reported as leaked and not returned yet, 0 if not checking
+   */
+  public int getLeakedCount()
+  {
+    return _leakTimeout > 0 ? _leakedCount.get() : 0;
+  }
+
+  /**
+   * @return number of reader snapshots handed out and not returned yet
+   */
+  public int getOutstandingCount()
+  {
+    return _outstanding.size();
+  }
+
+  /**
+   * @return number of reader snapshots handed out since the start, i.e. the number of searches
+   */
+  public long getAcquiredCount()
+  {
+    return _acquiredCount.get();
+  }
+
+  /**
+   * @return number of snapshots reported as leaked since the start
+   */
+  public long getReportedLeakCount()
+  {
+    return _reportedLeakCount.get();
+  }
+
+  public synchronized void close()
+  {
+    if (_timer != null)
+    {
+      _timer.cancel();
+      _timer = null;
+    }
+    _checkTask = null;
+  }
+}
@@ -16,9 +16,7 @@ package proj.zoie.impl.indexing.internal;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Queue;
 
 import org.apache.log4j.Logger;
@@ -26,7 +24,7 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Similarity;
 
-import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
@@ -35,6 +33,9 @@ import proj.zoie.impl.indexing.IndexingEventListener;
 
 /**
  * Keeps track of the number of incoming data events.
+ * Incoming events go to the writable memory index, which is sealed once it holds a batch
+ * or the batch delay has passed. Up to {@link SearchIndexManager#getMaxSealedMemoryIndexes()}
+ * sealed memory indexes wait to be flushed to disk, oldest first, before writes are throttled.
  * 
  * @author ymatsuda, xgu
  *
@@ -42,7 +43,8 @@ import proj.zoie.impl.indexing.IndexingEventListener;
 public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIndexDataLoader<R,V>
 {
   private int _currentBatchSize;
-  private final DataConsumer<ZoieIndexable>  _ramConsumer;
+  private final LinkedList<Integer> _sealedBatchSizes; // event counts of the sealed memory indexes, oldest first
+  private final ShardedRAMIndexDataLoader<R> _ramConsumer;
   private final DiskLuceneIndexDataLoader<R> _luceneDataLoader;
   private final Analyzer                     _analyzer;
   private final Similarity                   _similarity;
@@ -60,46 +62,34 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
     _analyzer = analyzer;
     _similarity = similarity;
     _currentBatchSize = 0;
-    _ramConsumer = new RAMLuceneIndexDataLoader<R>(_analyzer, _similarity, _idxMgr);
+    _sealedBatchSizes = new LinkedList<Integer>();
+    _ramConsumer = new ShardedRAMIndexDataLoader<R>(_analyzer, _similarity, _idxMgr);
     _luceneDataLoader = dataLoader;
   }
   
   /* (non-Javadoc)
-   * @see proj.zoie.impl.indexing.internal.BatchedIndexDataLoader#consume(java.util.Collection)
+   * @see proj.zoie.impl.indexing.internal.BatchedIndexDataLoader#consume(proj.zoie.api.DataEventBatch)
    */
   @Override
-  public void consume(Collection<DataEvent<V>> events) throws ZoieException
+  public void consume(DataEventBatch<V> events) throws ZoieException
   {
     if (events != null)
     {
-      ArrayList<DataEvent<ZoieIndexable>> indexableList =
-          new ArrayList<DataEvent<ZoieIndexable>>(events.size());
-      Iterator<DataEvent<V>> iter = events.iterator();
-      while (iter.hasNext())
-      {
-        try
-        {
-          DataEvent<V> event = iter.next();
-          ZoieIndexable indexable =
-                ((ZoieIndexableInterpreter<V>) _interpreter).convertAndInterpret(event.getData());
-          
-          DataEvent<ZoieIndexable> newEvent =
-              new DataEvent<ZoieIndexable>(event.getVersion(), indexable);
-          indexableList.add(newEvent);
-        }
-        catch (Exception e)
-        {
-          log.error(e.getMessage(), e);
-        }
-      }
+      DataEventBatch<ZoieIndexable> indexableBatch = interpret(events);
 
-      synchronized (this) // this blocks the batch disk loader thread while indexing to RAM
+      synchronized (this) // this keeps the batch disk loader thread from swapping the memory index while indexing to RAM
       {
-        int size = indexableList.size();
-        _ramConsumer.consume(indexableList);// consumer clear the list!
+        int size = indexableBatch.size();
+        _ramConsumer.consume(indexableBatch);
+        indexableBatch.clear(); // reused by the next interpret
         _currentBatchSize += size;
         _eventCount += size;
         
+        if (_currentBatchSize >= _batchSize && _sealedBatchSizes.size() < _idxMgr.getMaxSealedMemoryIndexes())
+        {
+          sealMemoryIndex(); // absorbs bursts while the disk flush is behind
+        }
+        
         while (_currentBatchSize > _maxBatchSize)
         {
           // check if load manager thread is alive
@@ -123,52 +113,92 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
     }
   }
   
+  /**
+   * @return number of events in the writable memory index
+   */
   public synchronized int getCurrentBatchSize()
   {
     return _currentBatchSize;
   }
   
+  /**
+   * Seals the writable memory index and wakes up the flushing thread.
+   * This method needs to be called within a synchronized block on 'this'.
+   */
+  private void sealMemoryIndex()
+  {
+    _idxMgr.sealWritableMemoryIndex();
+    _sealedBatchSizes.addLast(_currentBatchSize);
+    _currentBatchSize = 0;
+    _lastFlushTime = System.currentTimeMillis();
+    notifyAll();
+  }
+  
   @Override
-  protected synchronized void processBatch()
+  public void shutdown()
   {
-    RAMSearchIndex<R> readOnlyMemIndex = null;
+    super.shutdown();
+    _ramConsumer.shutdown();
+  }
+  
+  /**
+   * Flushes the oldest sealed memory index to disk. Only capturing the memory index and
+   * accounting for the flushed events hold the monitor, so realtime writes to the memory
+   * index go on while the segments are copied.
+   */
+  @Override
+  protected void processBatch()
+  {
+    ShardedRAMSearchIndex<R> readOnlyMemIndex = null;
     long now = System.currentTimeMillis();
     long duration = now - _lastFlushTime;
     int eventCount = 0;
 
-    while(_currentBatchSize < _batchSize && !_stop && !_flush && duration < _delay)
+    synchronized(this)
     {
-      try
+      while(_sealedBatchSizes.isEmpty() && _currentBatchSize < _batchSize && !_stop && !_flush && duration < _delay)
       {
-        wait(_delay - duration);
+        try
+        {
+          wait(_delay - duration);
+        }
+        catch (InterruptedException e)
+        {
+          log.warn(e.getMessage());
+        }
+        now = System.currentTimeMillis();
+        duration = now - _lastFlushTime;
       }
-      catch (InterruptedException e)
+      _flush = false;
+
+      if (_sealedBatchSizes.isEmpty())
       {
-        log.warn(e.getMessage());
+        if (_currentBatchSize > 0)
+        {
+          sealMemoryIndex(); // the batch is full, the delay has passed or a flush is requested
+        }
+        else
+        {
+          _lastFlushTime = now;
+        }
       }
-      now = System.currentTimeMillis();
-      duration = now - _lastFlushTime;
-    }
-    _flush = false;
-    _lastFlushTime = now;
 
-    if (_currentBatchSize > 0)
-    {
-      // change the status and get the read only memory index
-      // this has to be done in the block synchronized on CopyingBatchIndexDataLoader
-      _idxMgr.setDiskIndexerStatus(SearchIndexManager.Status.Working);
-      readOnlyMemIndex = _idxMgr.getCurrentReadOnlyMemoryIndex();
-      eventCount = _currentBatchSize;
-      _currentBatchSize = 0;
+      if (!_sealedBatchSizes.isEmpty())
+      {
+        // change the status and get the oldest sealed memory index
+        // this has to be done in the block synchronized on RealtimeIndexDataLoader
+        _idxMgr.setDiskIndexerStatus(SearchIndexManager.Status.Working);
+        readOnlyMemIndex = _idxMgr.getCurrentReadOnlyMemoryIndex();
+        eventCount = _sealedBatchSizes.getFirst();
+      }
     }
 
-    if (eventCount > 0)
+    if (readOnlyMemIndex != null)
     {
       long t1=System.currentTimeMillis();
       try
       {
-        if(readOnlyMemIndex != null)
-          _luceneDataLoader.loadFromIndex(readOnlyMemIndex);
+        _luceneDataLoader.loadFromIndex(readOnlyMemIndex); // drops the memory index when done
       }
       catch (ZoieException e)
       {
@@ -177,11 +207,15 @@ public class RealtimeIndexDataLoader<R extends IndexReader, V> extends BatchedIn
       finally
       {
         long t2=System.currentTimeMillis();
-        _eventCount -= eventCount;
-        log.info(this+" flushed batch of "+eventCount+" events to disk indexer, took: "+(t2-t1)+" current event count: "+_eventCount);
-        IndexUpdatedEvent evt = new IndexUpdatedEvent(eventCount,t1,t2,_eventCount);
-        fireIndexingEvent(evt);
-        notifyAll();
+        synchronized(this)
+        {
+          _sealedBatchSizes.removeFirst();
+          _eventCount -= eventCount;
+          log.info(this+" flushed batch of "+eventCount+" events to disk indexer, took: "+(t2-t1)+" current event count: "+_eventCount);
+          IndexUpdatedEvent evt = new IndexUpdatedEvent(eventCount,t1,t2,_eventCount);
+          fireIndexingEvent(evt);
+          notifyAll();
+        }
       }
     }
     else
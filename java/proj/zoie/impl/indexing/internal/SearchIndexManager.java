@@ -21,15 +21,24 @@ import it.unimi.dsi.fastutil.longs.LongSet;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ZoieMergeScheduler;
 
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.impl.ZoieMergePolicy;
 import proj.zoie.api.impl.util.FileUtil;
 import proj.zoie.api.impl.util.LongSetAccelerator;
+import proj.zoie.api.indexing.DiskDirectoryFactory;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.MemoryDirectoryFactory;
+import proj.zoie.api.indexing.ReaderWarmer;
 import proj.zoie.impl.indexing.internal.IndexReaderDispenser.InternalIndexReader;
 
 public class SearchIndexManager<R extends IndexReader>{
@@ -46,6 +55,15 @@ public class SearchIndexManager<R extends IndexReader>{
 	  
 	  private volatile Status _diskIndexerStatus;
       private volatile Mem<R> _mem;
+      // the sealed memory index the disk indexer works on, until its flush is published
+      private volatile ShardedRAMSearchIndex<R> _flushingMemIndex = null;
+      private volatile int _numRamShards = 1;
+      private volatile int _maxSealedMemoryIndexes = 1;
+      private volatile MemoryDirectoryFactory _memoryDirectoryFactory = MemoryDirectoryFactory.HEAP;
+      // flushed memory indexes still used by searches, they are closed when the last search returns its readers
+      private final List<ShardedRAMSearchIndex<R>> _retiredMemoryIndexes = new ArrayList<ShardedRAMSearchIndex<R>>();
+      private final ReaderLeakDetector _leakDetector = new ReaderLeakDetector();
+      private volatile boolean _closed = false;
 
 	  
 	  /**
@@ -72,6 +90,88 @@ public class SearchIndexManager<R extends IndexReader>{
 	    return _location;
 	  }
 	  
+	  /**
+	   * Sets the number of shards of the memory index. It takes effect when the next memory index is created,
+	   * i.e. at the next flush to disk.
+	   * @param numRamShards number of shards
+	   */
+	  public void setNumRamShards(int numRamShards)
+	  {
+	    _numRamShards = Math.max(1, numRamShards);
+	  }
+	  
+	  public int getNumRamShards()
+	  {
+	    return _numRamShards;
+	  }
+	  
+	  /**
+	   * Sets the number of sealed memory indexes that may wait for the disk flush before writes
+	   * to the writable memory index are throttled. 1 is the classic A/B scheme.
+	   * @param maxSealedMemoryIndexes maximum number of sealed memory indexes
+	   */
+	  public void setMaxSealedMemoryIndexes(int maxSealedMemoryIndexes)
+	  {
+	    _maxSealedMemoryIndexes = Math.max(1, maxSealedMemoryIndexes);
+	  }
+	  
+	  public int getMaxSealedMemoryIndexes()
+	  {
+	    return _maxSealedMemoryIndexes;
+	  }
+	  
+	  /**
+	   * Sets the factory of the directories of the memory indexes. It takes effect when the next memory index is created.
+	   * @param memoryDirectoryFactory directory factory
+	   */
+	  public void setMemoryDirectoryFactory(MemoryDirectoryFactory memoryDirectoryFactory)
+	  {
+	    _memoryDirectoryFactory = (memoryDirectoryFactory == null ? MemoryDirectoryFactory.HEAP : memoryDirectoryFactory);
+	  }
+	  
+	  public MemoryDirectoryFactory getMemoryDirectoryFactory()
+	  {
+	    return _memoryDirectoryFactory;
+	  }
+	  
+	  /**
+	   * Sets how the disk index directory is opened. It takes effect at the next disk reader refresh.
+	   * @param diskDirectoryFactory directory factory
+	   */
+	  public void setDiskDirectoryFactory(DiskDirectoryFactory diskDirectoryFactory)
+	  {
+	    _diskIndex.setDirectoryFactory(diskDirectoryFactory);
+	  }
+	  
+	  public DiskDirectoryFactory getDiskDirectoryFactory()
+	  {
+	    return _diskIndex.getDirectoryFactory();
+	  }
+	  
+	  /**
+	   * Sets the warmer of the new segments of refreshed disk readers, it runs before a reader is published.
+	   * @param warmer reader warmer, null for none
+	   */
+	  public void setDiskReaderWarmer(ReaderWarmer<R> warmer)
+	  {
+	    _diskIndex.setReaderWarmer(warmer);
+	  }
+	  
+	  public ReaderWarmer<R> getDiskReaderWarmer()
+	  {
+	    return _diskIndex.getReaderWarmer();
+	  }
+	  
+	  public void setDiskReaderWarmUpBudget(long warmUpBudget)
+	  {
+	    _diskIndex.setWarmUpBudget(warmUpBudget);
+	  }
+	  
+	  public long getDiskReaderWarmUpBudget()
+	  {
+	    return _diskIndex.getWarmUpBudget();
+	  }
+	  
 	  public int getDiskSegmentCount() throws IOException{
 		  return _diskIndex.getSegmentCount();
 	  }
@@ -126,6 +226,54 @@ public class SearchIndexManager<R extends IndexReader>{
 		return _diskIndex._mergePolicyParams.getMaxMergeDocs();
 	  }
 	  
+	  public void setExpungeDeletedRatio(float expungeDeletedRatio)
+	  {
+		  _diskIndex._mergePolicyParams.setExpungeDeletedRatio(expungeDeletedRatio);
+	  }
+	  
+	  public float getExpungeDeletedRatio()
+	  {
+		return _diskIndex._mergePolicyParams.getExpungeDeletedRatio();
+	  }
+	  
+	  public void setMaxExpungeBytes(long maxExpungeBytes)
+	  {
+		  _diskIndex._mergePolicyParams.setMaxExpungeBytes(maxExpungeBytes);
+	  }
+	  
+	  public long getMaxExpungeBytes()
+	  {
+		return _diskIndex._mergePolicyParams.getMaxExpungeBytes();
+	  }
+	  
+	  public void setMergePolicyType(ZoieMergePolicy.MergePolicyType mergePolicyType)
+	  {
+		  _diskIndex._mergePolicyParams.setMergePolicyType(mergePolicyType);
+	  }
+	  
+	  public ZoieMergePolicy.MergePolicyType getMergePolicyType()
+	  {
+		return _diskIndex._mergePolicyParams.getMergePolicyType();
+	  }
+	  
+	  public void setMaxMergedSegmentBytes(long maxMergedSegmentBytes)
+	  {
+		  _diskIndex._mergePolicyParams.setMaxMergedSegmentBytes(maxMergedSegmentBytes);
+	  }
+	  
+	  public long getMaxMergedSegmentBytes()
+	  {
+		return _diskIndex._mergePolicyParams.getMaxMergedSegmentBytes();
+	  }
+	  
+	  /**
+	   * @return the scheduler running the merges of the disk index in the background
+	   */
+	  public ZoieMergeScheduler getDiskMergeScheduler()
+	  {
+		  return _diskIndex.getMergeScheduler();
+	  }
+	  
 	  public void setUseCompoundFile(boolean useCompoundFile)
 	  {
 		  _diskIndex._mergePolicyParams.setUseCompoundFile(useCompoundFile);
@@ -146,61 +294,111 @@ public class SearchIndexManager<R extends IndexReader>{
 	  }
 	  
 	  
+	  /**
+	   * Returns readers taken by {@link #getIndexReaders()}. Returning the same readers twice has no effect.
+	   * @param readers the list returned by getIndexReaders
+	   */
 	  public void returnReaders(List<ZoieIndexReader<R>> readers){
-		  _diskIndex.returnReaders(readers);
+		  if (readers instanceof ReaderList<?>){
+			  ((ReaderList<R>)readers).release(_leakDetector);
+		  }
+		  else if (readers != null){
+			  log.warn("readers not taken by getIndexReaders are not released");
+		  }
 	  }
 	  
+    /**
+     * Gets the readers of the current snapshot and takes a reference on the snapshot, the indexes
+     * it uses are not closed before the readers are handed back with {@link #returnReaders(List)}.
+     * This never blocks on the indexing threads.
+     * @return readers for the shards of the writable memory index, the shards of the sealed memory indexes
+     * from the newest to the oldest and the disk index, in that order
+     * @throws IOException
+     */
     public List<ZoieIndexReader<R>> getIndexReaders()
 	      throws IOException
 	{
-      ArrayList<ZoieIndexReader<R>> readers = new ArrayList<ZoieIndexReader<R>>();
-      ZoieIndexReader<R> reader = null;
-      
-      Mem<R> mem = _mem;
-      RAMSearchIndex<R> memIndexB = mem.get_memIndexB();
-      RAMSearchIndex<R> memIndexA = mem.get_memIndexA();
-      
+      while(true)
+      {
+        if (_closed) throw new IOException("index is closed");
+        Mem<R> mem = _mem;
+        if (mem.tryIncrementRef())
+        {
+          return new ReaderList<R>(mem, _leakDetector.acquired());
+        }
+        // the snapshot was just replaced and released, take the new one
+      }
+	}
+    
+    public ReaderLeakDetector getReaderLeakDetector()
+    {
+      return _leakDetector;
+    }
+    
+    /**
+     * Publishes a new snapshot and releases the reference of the manager on the old one.
+     * This method needs to be called within a synchronized block on 'this'.
+     */
+    private void swapMem(Mem<R> mem)
+    {
+      Mem<R> oldMem = _mem;
+      _mem = mem;
+      if (oldMem != null) oldMem.decrementRef();
+    }
+    
+    /**
+     * Republishes the reader snapshot with the current readers and committed deletes.
+     * Must be called by the indexing side whenever a reader is refreshed or deletes are committed.
+     * @throws IOException
+     */
+    public void publishReaders() throws IOException
+    {
       synchronized(this)
       {
-        if (memIndexB != null)                           // load memory index B
+        Mem<R> oldMem = _mem;
+        swapMem(new Mem<R>(oldMem.get_currentWritable(),
+                           oldMem.get_sealed(),
+                           oldMem.get_diskIndexReader()));
+      }
+    }
+    
+    /**
+     * Seals the writable memory index: it becomes the newest read only memory index, waiting to be
+     * flushed to disk, and a new writable memory index takes its place.
+     * Must be called by the indexing side while no writes to the memory index are in progress.
+     */
+    public void sealWritableMemoryIndex()
+    {
+      long version = _diskIndex.getVersion();
+      synchronized(this)
+      {
+        Mem<R> oldMem = _mem;
+        ShardedRAMSearchIndex<R> sealed = oldMem.get_currentWritable();
+        ArrayList<ShardedRAMSearchIndex<R>> sealedList = new ArrayList<ShardedRAMSearchIndex<R>>(oldMem.get_sealed());
+        sealedList.add(sealed);
+        ShardedRAMSearchIndex<R> writable = new ShardedRAMSearchIndex<R>(version, _indexReaderDecorator, _numRamShards, _memoryDirectoryFactory);
+        Mem<R> mem = null;
+        try
         {
-          reader = memIndexB.openIndexReader();            
-          if (reader != null)
-          {
-            reader.setDelDocIds();
-            readers.add(reader);
-          }
+          mem = new Mem<R>(writable, sealedList, oldMem.get_diskIndexReader());
         }
-        
-        if (memIndexA != null)                           // load memory index A
+        catch (IOException e)
         {
-          reader = memIndexA.openIndexReader();
-          if (reader != null)
-	      {
-            reader.setDelDocIds();
-            readers.add(reader);
-	      }
-	    }
-        
-	    if (_diskIndex != null)                           // load disk index
-	    {
-	      reader = mem.get_diskIndexReader();
-	      if (reader != null)
-	      {
-            reader.setDelDocIds();
-            readers.add(reader);
-	      }
-	    }
+          log.error(e.getMessage(),e);
+          writable.decrementRef();
+          return;
+        }
+        sealed.closeIndexWriter();
+        swapMem(mem);
       }
-      
-      return readers;
-	}
+      log.info("memory index sealed, "+getNumSealedMemoryIndexes()+" sealed memory index(es)");
+    }
 	  
 	  public void setDiskIndexerStatus(Status status)
 	  {
 	    
-	    // going from sleep to wake, disk index starts to index
-	    // which according to the spec, index B is created and it starts to collect data
+	    // going from sleep to wake, disk index starts to index the oldest sealed memory index,
+	    // the writable memory index is sealed first if there is none
 	    // IMPORTANT: do nothing if the status is not being changed.
 	    if (_diskIndexerStatus != status)
 	    {
@@ -209,41 +407,74 @@ public class SearchIndexManager<R extends IndexReader>{
 	      
 	      if (status == Status.Working)
 	      { // sleeping to working
-	        long version = _diskIndex.getVersion();
-	        
-            Mem<R> oldMem = _mem;
-            
-            RAMSearchIndex<R> memIndexA = oldMem.get_memIndexA();
-            if(memIndexA != null) memIndexA.closeIndexWriter();
-            
-            RAMSearchIndex<R> memIndexB = new RAMSearchIndex<R>(version, _indexReaderDecorator);
-            Mem<R> mem = new Mem<R>(memIndexA, memIndexB, memIndexB, memIndexA, oldMem.get_diskIndexReader());
-            _mem = mem;
-	        log.info("Current writable index is B, new B created");
+	        if (_mem.get_sealed().isEmpty())
+	        {
+	          sealWritableMemoryIndex();
+	        }
+	        _flushingMemIndex = getCurrentReadOnlyMemoryIndex();
 	      }
 	      else
 	      {
-	        // from working to sleep
-	        ZoieIndexReader<R> diskIndexReader = null;
+	        // from working to sleep, the oldest sealed memory index is flushed
 	        try
 	        {
-              // a new reader is already loaded in loadFromIndex
-              diskIndexReader = _diskIndex.openIndexReader();
+	          publishFlushedMemoryIndex(_flushingMemIndex);
 	        }
 	        catch (IOException e)
 	        {
-              log.error(e.getMessage(),e);
+	          log.error(e.getMessage(),e);
 	          return;
 	        }
-	        Mem<R> oldMem = _mem;
-	        Mem<R> mem = new Mem<R>(oldMem.get_memIndexB(), null, oldMem.get_memIndexB(), null, diskIndexReader);
-	        _mem = mem;
-	        log.info("Current writable index is A, B is flushed");
+	        log.info("oldest sealed memory index is flushed");
 	      }
 	      _diskIndexerStatus = status;
 	    }
 	  }
+	  
+	  /**
+	   * Publishes the disk reader loaded by a flush and drops the flushed memory index in one snapshot.
+	   * Must be called in the block synchronized on this manager that refreshed the disk index, as memory
+	   * writes propagate deletes to the new disk reader as soon as the block is left.
+	   * @param flushed the sealed memory index copied to disk, it is dropped only once
+	   * @throws IOException
+	   */
+	  public void publishFlushedMemoryIndex(ShardedRAMSearchIndex<R> flushed) throws IOException
+	  {
+	    synchronized(this)
+	    {
+	      // a new reader is already loaded in loadFromIndex
+	      ZoieIndexReader<R> diskIndexReader = _diskIndex.openIndexReader();
+	      Mem<R> oldMem = _mem;
+	      ArrayList<ShardedRAMSearchIndex<R>> sealed = new ArrayList<ShardedRAMSearchIndex<R>>(oldMem.get_sealed());
+	      boolean dropped = (flushed != null && flushed == _flushingMemIndex && sealed.remove(flushed));
+	      Mem<R> mem = new Mem<R>(oldMem.get_currentWritable(), sealed, diskIndexReader);
+	      swapMem(mem);
+	      if (dropped)
+	      {
+	        _flushingMemIndex = null;
+	        retireMemoryIndex(flushed);
+	      }
+	    }
+	  }
 
+	  /**
+	   * Releases the reference of the manager on a memory index that is no longer part of the current snapshot,
+	   * it is closed once searches still using it return their readers.
+	   * This method needs to be called within a synchronized block on 'this'.
+	   */
+	  private void retireMemoryIndex(ShardedRAMSearchIndex<R> memIndex)
+	  {
+	    Iterator<ShardedRAMSearchIndex<R>> iter = _retiredMemoryIndexes.iterator();
+	    while (iter.hasNext())
+	    {
+	      if (iter.next().isClosed()) iter.remove();
+	    }
+	    if (!memIndex.decrementRef())
+	    {
+	      _retiredMemoryIndexes.add(memIndex);
+	    }
+	  }
+	  
 	  /**
 	   * Initialization
 	   */
@@ -252,22 +483,22 @@ public class SearchIndexManager<R extends IndexReader>{
 		_diskIndexerStatus = Status.Sleep;
 	    _diskIndex = new DiskSearchIndex<R>(_location, _indexReaderDecorator); 
         ZoieIndexReader<R> diskIndexReader = null;
-	    if(_diskIndex != null)
+	    try
 	    {
-	      try
+	      if(_diskIndex != null)
 	      {
 	        diskIndexReader = _diskIndex.getNewReader();
 	      }
-          catch (IOException e)
-          {
-            log.error(e.getMessage(),e);
-            return;
-          }
+	      long version = _diskIndex.getVersion();
+          ShardedRAMSearchIndex<R> memIndexA = new ShardedRAMSearchIndex<R>(version, _indexReaderDecorator, _numRamShards, _memoryDirectoryFactory);
+	      Mem<R> mem = new Mem<R>(memIndexA, null, diskIndexReader);
+	      swapMem(mem);
 	    }
-	    long version = _diskIndex.getVersion();
-        RAMSearchIndex<R> memIndexA = new RAMSearchIndex<R>(version, _indexReaderDecorator);
-	    Mem<R> mem = new Mem<R>(memIndexA, null, memIndexA, null, diskIndexReader);
-	    _mem = mem;
+        catch (IOException e)
+        {
+          log.error(e.getMessage(),e);
+          return;
+        }
 	  }
 
 	  public DiskSearchIndex<R> getDiskIndex()
@@ -275,14 +506,31 @@ public class SearchIndexManager<R extends IndexReader>{
 	    return _diskIndex;
 	  }
 
-	  public RAMSearchIndex<R> getCurrentWritableMemoryIndex()
+	  public ShardedRAMSearchIndex<R> getCurrentWritableMemoryIndex()
 	  {
 	    return _mem.get_currentWritable();
 	  }
 	  
-	  public RAMSearchIndex<R> getCurrentReadOnlyMemoryIndex()
+	  /**
+	   * @return the oldest sealed memory index, the next one to be flushed to disk, null if there is none
+	   */
+	  public ShardedRAMSearchIndex<R> getCurrentReadOnlyMemoryIndex()
+	  {
+	    List<ShardedRAMSearchIndex<R>> sealed = _mem.get_sealed();
+	    return sealed.isEmpty() ? null : sealed.get(0);
+	  }
+	  
+	  /**
+	   * @return the sealed memory indexes from the oldest to the newest
+	   */
+	  public List<ShardedRAMSearchIndex<R>> getSealedMemoryIndexes()
+	  {
+	    return _mem.get_sealed();
+	  }
+	  
+	  public int getNumSealedMemoryIndexes()
 	  {
-	    return _mem.get_currentReadOnly();
+	    return _mem.get_sealed().size();
 	  }
 	  
 	  /**
@@ -293,15 +541,20 @@ public class SearchIndexManager<R extends IndexReader>{
 	    {
 	      _diskIndex.close();
 	    }
-	    Mem<R> mem = _mem;
-	    if (mem.get_memIndexA()!=null)
-	    {
-	      mem.get_memIndexA().close();
-	    }
-	    if (mem.get_memIndexB()!=null)
+	    synchronized(this)
 	    {
-	      mem.get_memIndexB().close();
+	      if (_closed) return;
+	      _closed = true;
+	      // indexes still used by searches are closed when the searches return their readers
+	      Mem<R> mem = _mem;
+	      mem.decrementRef();
+	      retireMemoryIndex(mem.get_currentWritable());
+	      for (ShardedRAMSearchIndex<R> sealed : mem.get_sealed())
+	      {
+	        retireMemoryIndex(sealed);
+	      }
 	    }
+	    _leakDetector.close();
 	  }
 
 	  
@@ -315,27 +568,72 @@ public class SearchIndexManager<R extends IndexReader>{
 	    return (_diskIndex==null) ? 0 : _diskIndex.getNumdocs();
 	  }
 	  
+	  /**
+	   * Memory index A is the oldest sealed memory index if there is one, the writable memory index otherwise.
+	   */
 	  public int getRamAIndexSize()
 	  {
-        RAMSearchIndex<R> memIndexA = _mem.get_memIndexA();
+        ShardedRAMSearchIndex<R> memIndexA = _mem.get_memIndexA();
 	    return (memIndexA==null) ? 0 : memIndexA.getNumdocs();
 	  }
 	  
 	  public long getRamAVersion()
 	  {
-        RAMSearchIndex<R> memIndexA = _mem.get_memIndexA();
+        ShardedRAMSearchIndex<R> memIndexA = _mem.get_memIndexA();
 	    return (memIndexA==null) ? 0L : memIndexA.getVersion();
 	  }
 	  
+	  /**
+	   * Memory index B is the writable memory index while there are sealed memory indexes.
+	   */
 	  public int getRamBIndexSize()
 	  {
-        RAMSearchIndex<R> memIndexB = _mem.get_memIndexB();
+        ShardedRAMSearchIndex<R> memIndexB = _mem.get_memIndexB();
 	    return (memIndexB==null) ? 0 : memIndexB.getNumdocs();
 	  }
 	  
+	  /**
+	   * @return heap memory held by the memory indexes in bytes
+	   */
+	  public long getRamIndexHeapBytes()
+	  {
+	    long size = 0L;
+	    for (ShardedRAMSearchIndex<R> memIndex : getMemoryIndexes())
+	    {
+	      size += memIndex.getHeapSizeInBytes();
+	    }
+	    return size;
+	  }
+	  
+	  /**
+	   * @return direct memory held by the memory indexes in bytes
+	   */
+	  public long getRamIndexDirectBytes()
+	  {
+	    long size = 0L;
+	    for (ShardedRAMSearchIndex<R> memIndex : getMemoryIndexes())
+	    {
+	      size += memIndex.getDirectSizeInBytes();
+	    }
+	    return size;
+	  }
+	  
+	  private List<ShardedRAMSearchIndex<R>> getMemoryIndexes()
+	  {
+	    ArrayList<ShardedRAMSearchIndex<R>> memIndexes = new ArrayList<ShardedRAMSearchIndex<R>>();
+	    Mem<R> mem = _mem;
+	    memIndexes.add(mem.get_currentWritable());
+	    memIndexes.addAll(mem.get_sealed());
+	    synchronized(this)
+	    {
+	      memIndexes.addAll(_retiredMemoryIndexes);
+	    }
+	    return memIndexes;
+	  }
+	  
 	  public long getRamBVersion()
 	  {
-	    RAMSearchIndex<R> memIndexB = _mem.get_memIndexB();
+	    ShardedRAMSearchIndex<R> memIndexB = _mem.get_memIndexB();
 	    return (memIndexB==null) ? 0L : memIndexB.getVersion();
 	  }
 	  
@@ -376,20 +674,76 @@ public class SearchIndexManager<R extends IndexReader>{
 	  {
 		log.info("purging index ...");
 		
+		if(_diskIndex != null) _diskIndex.closeIndexWriter(); // the writer stays open between batches
         FileUtil.rmDir(_location);
         
         if(_diskIndex != null)
 		{
           _diskIndex.clearDeletes();
           _diskIndex.refresh();
-          RAMSearchIndex<R> memIndexA = new RAMSearchIndex<R>(_diskIndex.getVersion(), _indexReaderDecorator);
-          Mem<R> mem = new Mem<R>(memIndexA, null, memIndexA, null, null);
-          _mem = mem;
+          ShardedRAMSearchIndex<R> memIndexA = new ShardedRAMSearchIndex<R>(_diskIndex.getVersion(), _indexReaderDecorator, _numRamShards, _memoryDirectoryFactory);
+          synchronized(this)
+          {
+            try
+            {
+              Mem<R> oldMem = _mem;
+              Mem<R> mem = new Mem<R>(memIndexA, null, null);
+              swapMem(mem);
+              retireMemoryIndex(oldMem.get_currentWritable());
+              for (ShardedRAMSearchIndex<R> sealed : oldMem.get_sealed())
+              {
+                retireMemoryIndex(sealed);
+              }
+            }
+            catch (IOException e)
+            {
+              log.error(e.getMessage(),e);
+              memIndexA.decrementRef();
+            }
+          }
 		}
 		
 		log.info("index purged");
 	  }
 	  
+	  /**
+	   * Switches the disk index to an index staged in the index location, e.g. by a snapshot import.
+	   * The previous index serves searches until the reader of the new one is published, the memory
+	   * indexes are reset as with a purge.
+	   */
+	  public void switchDiskIndex(IndexSignature sig) throws IOException
+	  {
+		log.info("switching disk index ...");
+		
+		File oldIndexDir = _diskIndex.switchIndexDirectory(sig);
+		_diskIndex.clearDeletes(); // marked on the previous index
+		ZoieIndexReader<R> diskIndexReader = _diskIndex.getNewReader();
+		ShardedRAMSearchIndex<R> memIndexA = new ShardedRAMSearchIndex<R>(_diskIndex.getVersion(), _indexReaderDecorator, _numRamShards, _memoryDirectoryFactory);
+		synchronized(this)
+		{
+		  try
+		  {
+		    Mem<R> oldMem = _mem;
+		    Mem<R> mem = new Mem<R>(memIndexA, null, diskIndexReader);
+		    swapMem(mem);
+		    retireMemoryIndex(oldMem.get_currentWritable());
+		    for (ShardedRAMSearchIndex<R> sealed : oldMem.get_sealed())
+		    {
+		      retireMemoryIndex(sealed);
+		    }
+		  }
+		  catch (IOException e)
+		  {
+		    memIndexA.decrementRef();
+		    throw e;
+		  }
+		}
+		
+		// searches still holding the previous reader keep their open files
+		if (oldIndexDir != null) FileUtil.rmDir(oldIndexDir);
+		log.info("disk index switched");
+	  }
+	  
 	  public void refreshDiskReader() throws IOException
 	  {
 		  log.info("refreshing disk reader ...");
@@ -403,59 +757,188 @@ public class SearchIndexManager<R extends IndexReader>{
           catch(IOException e)
           {
             log.error(e.getMessage(),e);
-            if(diskIndexReader != null) diskIndexReader.close();
             throw e;
           }
-          Mem<R> oldMem = _mem;
-          Mem<R> mem = new Mem<R>(oldMem.get_memIndexA(),
-                            oldMem.get_memIndexB(),
-                            oldMem.get_currentWritable(),
-                            oldMem.get_currentReadOnly(),
-                            diskIndexReader);
-          _mem = mem;
+          synchronized(this)
+          {
+            Mem<R> oldMem = _mem;
+            Mem<R> mem = new Mem<R>(oldMem.get_currentWritable(),
+                              oldMem.get_sealed(),
+                              diskIndexReader);
+            swapMem(mem);
+          }
 		  log.info("disk reader refreshed");
 	  }
 	  
+  /**
+   * The readers of a snapshot handed out by {@link SearchIndexManager#getIndexReaders()},
+   * holding a reference on the snapshot until they are returned.
+   */
+  private final static class ReaderList<R extends IndexReader> extends ArrayList<ZoieIndexReader<R>>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private final transient Mem<R> _mem;
+    private final transient ReaderLeakDetector.Acquisition _acquisition;
+    private final AtomicBoolean _returned = new AtomicBoolean(false);
+    
+    ReaderList(Mem<R> mem, ReaderLeakDetector.Acquisition acquisition)
+    {
+      super(mem.get_readers());
+      _mem = mem;
+      _acquisition = acquisition;
+    }
+    
+    void release(ReaderLeakDetector leakDetector)
+    {
+      if (_returned.compareAndSet(false, true))
+      {
+        leakDetector.released(_acquisition);
+        _mem.decrementRef();
+      }
+    }
+  }
+
+  /**
+   * An immutable snapshot of the memory and disk indexes together with reader views
+   * bound to the deletes committed at the time the snapshot was taken.
+   * Searchers only ever read the published instance, a new one is swapped in on every change.
+   */
   private final static class Mem<R extends IndexReader>
   {
-    private final RAMSearchIndex<R> _memIndexA;
-    private final RAMSearchIndex<R> _memIndexB;
-    private final RAMSearchIndex<R> _currentWritable;
-    private final RAMSearchIndex<R> _currentReadOnly;
+    private final ShardedRAMSearchIndex<R> _currentWritable;
+    private final List<ShardedRAMSearchIndex<R>> _sealed;
     private final ZoieIndexReader<R> _diskIndexReader;
-    Mem(RAMSearchIndex<R> a, RAMSearchIndex<R> b, RAMSearchIndex<R> w, 
-    	RAMSearchIndex<R> r, ZoieIndexReader<R> d)
+    private final List<ZoieIndexReader<R>> _readers;
+    private final List<ZoieIndexReader<R>> _memReaders;
+    // one reference for the manager while the snapshot is current, one per search holding its readers
+    private final AtomicInteger _refCount = new AtomicInteger(1);
+    
+    /**
+     * Creates a snapshot, it takes a reference on the indexes and the disk reader it uses.
+     * @param w writable memory index
+     * @param sealed sealed memory indexes from the oldest to the newest, may be null
+     * @param d disk index reader
+     * @throws IOException
+     */
+    Mem(ShardedRAMSearchIndex<R> w, List<ShardedRAMSearchIndex<R>> sealed, ZoieIndexReader<R> d) throws IOException
     {
-      _memIndexA = a;
-      _memIndexB = b;
       _currentWritable = w;
-      _currentReadOnly = r;
+      _sealed = (sealed == null || sealed.isEmpty()) ? Collections.<ShardedRAMSearchIndex<R>>emptyList() :
+                    Collections.unmodifiableList(new ArrayList<ShardedRAMSearchIndex<R>>(sealed));
       _diskIndexReader = d;
+      
+      if (d instanceof InternalIndexReader<?> && !((InternalIndexReader<R>)d).tryIncrementRef())
+      {
+        throw new IOException("disk reader is already closed");
+      }
+      
+      // the memory readers are held too, a refresh of the memory index only releases its own reference
+      ArrayList<ZoieIndexReader<R>> memReaders = new ArrayList<ZoieIndexReader<R>>();
+      ArrayList<ZoieIndexReader<R>> readers = new ArrayList<ZoieIndexReader<R>>();
+      try
+      {
+        memReaders.addAll(w.acquireIndexReaders());            // load the writable memory index
+        for (int i = _sealed.size() - 1; i >= 0; --i)          // load the sealed memory indexes, newest first
+        {
+          memReaders.addAll(_sealed.get(i).acquireIndexReaders());
+        }
+        for (ZoieIndexReader<R> reader : memReaders)
+        {
+          addReader(readers, reader);
+        }
+        addReader(readers, d);                                 // load disk index
+      }
+      catch (IOException e)
+      {
+        releaseReaders(memReaders, d);
+        throw e;
+      }
+      _memReaders = memReaders;
+      _readers = Collections.unmodifiableList(readers);
+      
+      w.incrementRef();
+      for (ShardedRAMSearchIndex<R> memIndex : _sealed)
+      {
+        memIndex.incrementRef();
+      }
+    }
+    
+    boolean tryIncrementRef()
+    {
+      while (true)
+      {
+        int count = _refCount.get();
+        if (count <= 0) return false;
+        if (_refCount.compareAndSet(count, count + 1)) return true;
+      }
     }
     
-    protected RAMSearchIndex<R> get_memIndexA()
+    /**
+     * Releases a reference, the references on the indexes and the disk reader go with the last one.
+     */
+    void decrementRef()
     {
-      return _memIndexA;
+      if (_refCount.decrementAndGet() == 0)
+      {
+        releaseReaders(_memReaders, _diskIndexReader);
+        _currentWritable.decrementRef();
+        for (ShardedRAMSearchIndex<R> memIndex : _sealed)
+        {
+          memIndex.decrementRef();
+        }
+      }
+    }
+    
+    private static <R extends IndexReader> void releaseReaders(List<ZoieIndexReader<R>> memReaders, ZoieIndexReader<R> d)
+    {
+      for (ZoieIndexReader<R> reader : memReaders)
+      {
+        RAMSearchIndex.releaseReader(reader);
+      }
+      if (d instanceof InternalIndexReader<?>)
+      {
+        ((InternalIndexReader<R>)d).decrementRef();
+      }
+    }
+    
+    private static <R extends IndexReader> void addReader(List<ZoieIndexReader<R>> readers, ZoieIndexReader<R> reader)
+      throws IOException
+    {
+      if (reader != null)
+      {
+        readers.add(reader.getCommittedView());
+      }
+    }
+    
+    protected ShardedRAMSearchIndex<R> get_memIndexA()
+    {
+      return _sealed.isEmpty() ? _currentWritable : _sealed.get(0);
     }
 
-    protected RAMSearchIndex<R> get_memIndexB()
+    protected ShardedRAMSearchIndex<R> get_memIndexB()
     {
-      return _memIndexB;
+      return _sealed.isEmpty() ? null : _currentWritable;
     }
 
-    protected RAMSearchIndex<R> get_currentWritable()
+    protected ShardedRAMSearchIndex<R> get_currentWritable()
     {
       return _currentWritable;
     }
 
-    protected RAMSearchIndex<R> get_currentReadOnly()
+    protected List<ShardedRAMSearchIndex<R>> get_sealed()
     {
-      return _currentReadOnly;
+      return _sealed;
     }
 
     protected ZoieIndexReader<R> get_diskIndexReader()
     {
       return _diskIndexReader;
     }
+    
+    protected List<ZoieIndexReader<R>> get_readers()
+    {
+      return _readers;
+    }
   }
 }
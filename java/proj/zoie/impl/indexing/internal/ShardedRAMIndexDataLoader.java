@@ -0,0 +1,189 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Similarity;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.indexing.ZoieIndexable;
+
+/**
+ * Writes batches to the shards of the writable memory index. A batch is split by UID hash and each
+ * part is indexed by the thread that owns the shard, the calling thread waits for all of them.
+ * With a single shard the batch is indexed on the calling thread.
+ * The caller must keep the writable memory index from being swapped while a batch is consumed.
+ */
+public class ShardedRAMIndexDataLoader<R extends IndexReader> implements DataConsumer<ZoieIndexable>
+{
+  private static final Logger log = Logger.getLogger(ShardedRAMIndexDataLoader.class);
+
+  private final Analyzer _analyzer;
+  private final Similarity _similarity;
+  private final SearchIndexManager<R> _idxMgr;
+  private final List<RAMLuceneIndexDataLoader<R>> _loaders;
+  private final List<ExecutorService> _shardThreads;
+  private final List<DataEventBatch<ZoieIndexable>> _shardBatches;
+
+  public ShardedRAMIndexDataLoader(Analyzer analyzer, Similarity similarity, SearchIndexManager<R> idxMgr)
+  {
+    _analyzer = analyzer;
+    _similarity = similarity;
+    _idxMgr = idxMgr;
+    _loaders = new ArrayList<RAMLuceneIndexDataLoader<R>>();
+    _shardThreads = new ArrayList<ExecutorService>();
+    _shardBatches = new ArrayList<DataEventBatch<ZoieIndexable>>();
+    _loaders.add(new RAMLuceneIndexDataLoader<R>(_analyzer, _similarity, _idxMgr, 0));
+  }
+
+  public void consume(Collection<DataEvent<ZoieIndexable>> events) throws ZoieException
+  {
+    if (events == null || events.size() == 0) return;
+    consume(new DataEventBatch<ZoieIndexable>(events));
+  }
+
+  public synchronized void consume(DataEventBatch<ZoieIndexable> events) throws ZoieException
+  {
+    if (events == null || events.size() == 0) return;
+
+    ShardedRAMSearchIndex<R> memIndex = _idxMgr.getCurrentWritableMemoryIndex();
+    int numShards = memIndex.getNumShards();
+    if (numShards == 1)
+    {
+      _loaders.get(0).consume(events);
+      return;
+    }
+
+    ensureShards(numShards);
+    try
+    {
+      // split the batch, keeping the version order within each shard
+      int size = events.size();
+      for (int i = 0; i < size; ++i)
+      {
+        ZoieIndexable indexable = events.getData(i);
+        int shard = (indexable == null ? 0 : memIndex.getShardIndex(indexable.getUID()));
+        _shardBatches.get(shard).add(events.getVersion(i), indexable);
+      }
+
+      List<Future<?>> futures = new ArrayList<Future<?>>(numShards);
+      for (int shard = 0; shard < numShards; ++shard)
+      {
+        final DataEventBatch<ZoieIndexable> shardBatch = _shardBatches.get(shard);
+        if (shardBatch.isEmpty()) continue;
+
+        final RAMLuceneIndexDataLoader<R> loader = _loaders.get(shard);
+        futures.add(_shardThreads.get(shard).submit(new Callable<Object>(){
+          public Object call() throws ZoieException
+          {
+            loader.consume(shardBatch);
+            return null;
+          }
+        }));
+      }
+
+      ZoieException error = null;
+      boolean interrupted = false;
+      for (Future<?> future : futures)
+      {
+        while (true)
+        {
+          try
+          {
+            future.get();
+            break;
+          }
+          catch (InterruptedException e)
+          {
+            interrupted = true; // the shards must be done before the memory index can be swapped
+          }
+          catch (ExecutionException e)
+          {
+            log.error(e.getMessage(), e.getCause());
+            if (error == null) error = new ZoieException(e.getCause().getMessage(), e.getCause());
+            break;
+          }
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+      if (error != null) throw error;
+    }
+    finally
+    {
+      for (DataEventBatch<ZoieIndexable> shardBatch : _shardBatches)
+      {
+        shardBatch.clear();
+      }
+    }
+  }
+
+  private void ensureShards(int numShards)
+  {
+    for (int shard = _loaders.size(); shard < numShards; ++shard)
+    {
+      _loaders.add(new RAMLuceneIndexDataLoader<R>(_analyzer, _similarity, _idxMgr, shard));
+    }
+    for (int shard = _shardThreads.size(); shard < numShards; ++shard)
+    {
+      _shardThreads.add(Executors.newSingleThreadExecutor(new ShardThreadFactory(shard)));
+      _shardBatches.add(new DataEventBatch<ZoieIndexable>());
+    }
+  }
+
+  /**
+   * Stops the shard threads.
+   */
+  public synchronized void shutdown()
+  {
+    for (ExecutorService shardThread : _shardThreads)
+    {
+      shardThread.shutdown();
+    }
+    _shardThreads.clear();
+    _shardBatches.clear();
+  }
+
+  private static class ShardThreadFactory implements ThreadFactory
+  {
+    private final int _shard;
+
+    ShardThreadFactory(int shard)
+    {
+      _shard = shard;
+    }
+
+    public Thread newThread(Runnable r)
+    {
+      Thread thread = new Thread(r, "zoie memory shard " + _shard);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
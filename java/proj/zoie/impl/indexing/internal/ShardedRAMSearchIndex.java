@@ -0,0 +1,260 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.IndexReader;
+
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.MemoryDirectoryFactory;
+
+/**
+ * A generation of the memory index split into shards, each shard is a {@link RAMSearchIndex}
+ * with its own writer, reader and deleted set. UIDs are routed to shards by hash, so within
+ * a generation a UID only ever lives in one shard and updates never cross shards.
+ * The number of shards is fixed for the life of the generation.
+ * <p>
+ * The index is reference counted: the index manager holds a reference until the index is flushed
+ * and every published reader snapshot holds one, the index is closed with the last reference.
+ */
+public class ShardedRAMSearchIndex<R extends IndexReader>
+{
+  private final List<RAMSearchIndex<R>> _shards;
+  private final AtomicInteger _refCount = new AtomicInteger(1);
+
+  ShardedRAMSearchIndex(long version, IndexReaderDecorator<R> decorator, int numShards)
+  {
+    this(version, decorator, numShards, MemoryDirectoryFactory.HEAP);
+  }
+
+  ShardedRAMSearchIndex(long version, IndexReaderDecorator<R> decorator, int numShards, MemoryDirectoryFactory dirFactory)
+  {
+    numShards = Math.max(1, numShards);
+    ArrayList<RAMSearchIndex<R>> shards = new ArrayList<RAMSearchIndex<R>>(numShards);
+    for (int i = 0; i < numShards; ++i)
+    {
+      shards.add(new RAMSearchIndex<R>(version, decorator, dirFactory.newDirectory()));
+    }
+    _shards = Collections.unmodifiableList(shards);
+  }
+
+  public int getNumShards()
+  {
+    return _shards.size();
+  }
+
+  public RAMSearchIndex<R> getShard(int shard)
+  {
+    return _shards.get(shard);
+  }
+
+  public List<RAMSearchIndex<R>> getShards()
+  {
+    return _shards;
+  }
+
+  /**
+   * @param uid UID of a document
+   * @return the shard the document goes to
+   */
+  public int getShardIndex(long uid)
+  {
+    return getShardIndex(uid, _shards.size());
+  }
+
+  public static int getShardIndex(long uid, int numShards)
+  {
+    if (numShards <= 1) return 0;
+    // spread the bits, consecutive uids are common
+    long h = uid * 0x9E3779B97F4A7C15L;
+    return (int)((h >>> 33) % numShards);
+  }
+
+  /**
+   * @return the largest version of the shards
+   */
+  public long getVersion()
+  {
+    long version = 0L;
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      version = Math.max(version, shard.getVersion());
+    }
+    return version;
+  }
+
+  public void setVersion(long version) throws IOException
+  {
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      shard.setVersion(version);
+    }
+  }
+
+  public int getNumdocs()
+  {
+    int numDocs = 0;
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      numDocs += shard.getNumdocs();
+    }
+    return numDocs;
+  }
+
+  public long getHeapSizeInBytes()
+  {
+    long size = 0L;
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      size += shard.getHeapSizeInBytes();
+    }
+    return size;
+  }
+
+  public long getDirectSizeInBytes()
+  {
+    long size = 0L;
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      size += shard.getDirectSizeInBytes();
+    }
+    return size;
+  }
+
+  public int getEventsHandled()
+  {
+    int count = 0;
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      count += shard.getEventsHandled();
+    }
+    return count;
+  }
+
+  /**
+   * @return the UIDs deleted from all the shards
+   */
+  public LongSet getDelDocs()
+  {
+    if (_shards.size() == 1) return _shards.get(0).getDelDocs();
+
+    LongOpenHashSet delDocs = new LongOpenHashSet();
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      delDocs.addAll(shard.getDelDocs());
+    }
+    return delDocs;
+  }
+
+  /**
+   * Marks deletes in every shard. A shard only marks the UIDs it holds.
+   * @param delDocs UIDs to delete
+   * @throws IOException
+   */
+  public void markDeletes(LongSet delDocs) throws IOException
+  {
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      shard.markDeletes(delDocs);
+    }
+  }
+
+  public void commitDeletes() throws IOException
+  {
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      shard.commitDeletes();
+    }
+  }
+
+  /**
+   * @return the current readers of the shards that have an index
+   */
+  public List<ZoieIndexReader<R>> openIndexReaders()
+  {
+    ArrayList<ZoieIndexReader<R>> readers = new ArrayList<ZoieIndexReader<R>>(_shards.size());
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      ZoieIndexReader<R> reader = shard.openIndexReader();
+      if (reader != null) readers.add(reader);
+    }
+    return readers;
+  }
+
+  /**
+   * Takes a reference on the current readers of the shards, see {@link RAMSearchIndex#acquireIndexReader()}.
+   * @return the readers of the shards that have an index
+   */
+  public List<ZoieIndexReader<R>> acquireIndexReaders()
+  {
+    ArrayList<ZoieIndexReader<R>> readers = new ArrayList<ZoieIndexReader<R>>(_shards.size());
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      ZoieIndexReader<R> reader = shard.acquireIndexReader();
+      if (reader != null) readers.add(reader);
+    }
+    return readers;
+  }
+
+  public void closeIndexWriter()
+  {
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      shard.closeIndexWriter();
+    }
+  }
+
+  void incrementRef()
+  {
+    _refCount.incrementAndGet();
+  }
+
+  /**
+   * Releases a reference, the index is closed with the last one.
+   * @return true if the index was closed
+   */
+  boolean decrementRef()
+  {
+    if (_refCount.decrementAndGet() == 0)
+    {
+      close();
+      return true;
+    }
+    return false;
+  }
+
+  boolean isClosed()
+  {
+    return _refCount.get() <= 0;
+  }
+
+  public void close()
+  {
+    for (RAMSearchIndex<R> shard : _shards)
+    {
+      shard.close();
+    }
+  }
+}
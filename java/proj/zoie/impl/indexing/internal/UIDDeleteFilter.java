@@ -0,0 +1,88 @@
+package proj.zoie.impl.indexing.internal;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+
+import proj.zoie.api.UIDDocIdSet;
+import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieSegmentReader;
+
+/**
+ * Matches the documents of a set of uids in the segments of an IndexWriter, so that deletes can
+ * be handed to {@link org.apache.lucene.index.IndexWriter#deleteDocuments(Query)} and applied by the
+ * writer. Segments known to the given reader are resolved with their docid mappers, segments flushed
+ * since are scanned.
+ */
+class UIDDeleteFilter extends Filter
+{
+  private static final long serialVersionUID = 1L;
+
+  private final long[] _uids;
+  private final LongSet _uidSet;
+  private final Map<String,ZoieSegmentReader<?>> _segments;
+
+  /**
+   * @param uids uids to delete, must not change until the writer applied the deletes
+   * @param reader the latest reader of the index, may be null
+   */
+  UIDDeleteFilter(LongSet uids, ZoieIndexReader<?> reader)
+  {
+    _uidSet = uids;
+    _uids = uids.toLongArray();
+    _segments = new HashMap<String,ZoieSegmentReader<?>>();
+    ZoieIndexReader<?>[] subReaders = (reader == null ? null : reader.getSequentialSubReaders());
+    if (subReaders != null)
+    {
+      for (ZoieIndexReader<?> subReader : subReaders)
+      {
+        ZoieSegmentReader<?> segmentReader = (ZoieSegmentReader<?>)subReader;
+        _segments.put(segmentReader.getSegmentName(), segmentReader);
+      }
+    }
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(IndexReader reader) throws IOException
+  {
+    ZoieSegmentReader<?> segmentReader = null;
+    if (reader instanceof SegmentReader)
+    {
+      segmentReader = _segments.get(((SegmentReader)reader).getSegmentName());
+    }
+    if (segmentReader != null && segmentReader.maxDoc() == reader.maxDoc())
+    {
+      return new UIDDocIdSet(_uids, segmentReader.getDocIDMaper());
+    }
+    return new UIDDocIdSet(ZoieSegmentReader.findDocIDs(reader, _uidSet));
+  }
+
+  static Query getDeleteQuery(LongSet uids, ZoieIndexReader<?> reader)
+  {
+    return new ConstantScoreQuery(new UIDDeleteFilter(uids, reader));
+  }
+}
@@ -20,12 +20,17 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexDeletionPolicy;
+import org.apache.lucene.index.ZoieMergeScheduler;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
+import proj.zoie.api.impl.util.UIDArrayFile;
+
 /**
  * @author ymatsuda
  *
@@ -50,11 +55,12 @@ public class ZoieIndexDeletionPolicy implements IndexDeletionPolicy
     processCommits(commits);
   }
   
-  private synchronized void processCommits(List commits)
+  private synchronized void processCommits(List commits) throws IOException
   {
     int size = commits.size();
     if(size == 0) return;
     
+    HashSet<String> liveFiles = new HashSet<String>();
     IndexCommit indexCommit = null;
     for(Object commit : commits)
     {
@@ -63,8 +69,33 @@ public class ZoieIndexDeletionPolicy implements IndexDeletionPolicy
       {
         indexCommit.delete();
       }
+      else
+      {
+        @SuppressWarnings("unchecked")
+        Collection<String> fileNames = (Collection<String>)indexCommit.getFileNames();
+        liveFiles.addAll(fileNames);
+      }
     }
     _lastCommit = indexCommit;
+    
+    // uid files of merged away segments are not known to lucene, remove them here
+    FSDirectory dir = getFSDirectory(indexCommit.getDirectory());
+    if(dir != null)
+    {
+      UIDArrayFile.purge(dir.getFile(), liveFiles);
+    }
+  }
+  
+  /**
+   * @return the file system directory under the writer's directory, null if there is none
+   */
+  private static FSDirectory getFSDirectory(Directory dir)
+  {
+    if(dir instanceof ZoieMergeScheduler.ThrottledDirectory)
+    {
+      dir = ((ZoieMergeScheduler.ThrottledDirectory)dir).getDelegate();
+    }
+    return (dir instanceof FSDirectory) ? (FSDirectory)dir : null;
   }
   
   public synchronized Snapshot getSnapshot()
@@ -98,7 +129,7 @@ public class ZoieIndexDeletionPolicy implements IndexDeletionPolicy
     public Snapshot(IndexCommit commit)
     {
       _commit = commit;
-      FSDirectory fsdir = (FSDirectory)commit.getDirectory();
+      FSDirectory fsdir = getFSDirectory(commit.getDirectory());
       _dir = fsdir.getFile();
       _refcount = 1;
     }
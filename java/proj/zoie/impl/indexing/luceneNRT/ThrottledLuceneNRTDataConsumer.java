@@ -24,6 +24,7 @@ import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.ZoieIndexable;
@@ -96,6 +97,10 @@ public class ThrottledLuceneNRTDataConsumer<V> implements DataConsumer<V>,IndexR
 		}
 	}
 	
+	public void consume(DataEventBatch<V> events) throws ZoieException {
+		consume(events.toDataEvents());
+	}
+	
 	public void consume(Collection<proj.zoie.api.DataConsumer.DataEvent<V>> events)
 			throws ZoieException {
 		if (_writer == null){
@@ -0,0 +1,90 @@
+package proj.zoie.mbean;
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import proj.zoie.api.indexing.LoadAwareOptimizeScheduler;
+
+public class ZoieLoadAwareOptimizeSchedulerAdmin implements ZoieLoadAwareOptimizeSchedulerAdminMBean {
+	private final LoadAwareOptimizeScheduler _optimizeScheduler;
+	
+	public ZoieLoadAwareOptimizeSchedulerAdmin(LoadAwareOptimizeScheduler optimizeScheduler){
+		_optimizeScheduler = optimizeScheduler;
+	}
+
+	public float getDeletedRatioThreshold() {
+		return _optimizeScheduler.getDeletedRatioThreshold();
+	}
+
+	public void setDeletedRatioThreshold(float threshold) {
+		_optimizeScheduler.setDeletedRatioThreshold(threshold);
+	}
+
+	public double getMaxSearchRate() {
+		return _optimizeScheduler.getMaxSearchRate();
+	}
+
+	public void setMaxSearchRate(double maxSearchRate) {
+		_optimizeScheduler.setMaxSearchRate(maxSearchRate);
+	}
+
+	public int getMaxBacklog() {
+		return _optimizeScheduler.getMaxBacklog();
+	}
+
+	public void setMaxBacklog(int maxBacklog) {
+		_optimizeScheduler.setMaxBacklog(maxBacklog);
+	}
+
+	public long getMinSliceInterval() {
+		return _optimizeScheduler.getMinSliceInterval();
+	}
+
+	public void setMinSliceInterval(long minSliceInterval) {
+		_optimizeScheduler.setMinSliceInterval(minSliceInterval);
+	}
+
+	public int getOptimizeWindowStartHour() {
+		return _optimizeScheduler.getOptimizeWindowStartHour();
+	}
+
+	public int getOptimizeWindowEndHour() {
+		return _optimizeScheduler.getOptimizeWindowEndHour();
+	}
+
+	public void setOptimizeWindow(int startHour, int endHour) {
+		_optimizeScheduler.setOptimizeWindow(startHour, endHour);
+	}
+
+	public double getSearchRate() {
+		return _optimizeScheduler.getSearchRate();
+	}
+
+	public float getDeletedRatio() {
+		return _optimizeScheduler.getDeletedRatio();
+	}
+
+	public int getBacklog() {
+		return _optimizeScheduler.getBacklog();
+	}
+
+	public long getSliceCount() {
+		return _optimizeScheduler.getSliceCount();
+	}
+
+	public long getDeferredCount() {
+		return _optimizeScheduler.getDeferredCount();
+	}
+}
@@ -94,6 +94,138 @@ public class ZoieSystemAdmin implements ZoieSystemAdminMBean {
 		_internalMBean.setMaxBatchSize(maxBatchSize);
 	}
 
+	public int getInterpreterParallelism() {
+		return _internalMBean.getInterpreterParallelism();
+	}
+
+	public void setInterpreterParallelism(int parallelism) {
+		_internalMBean.setInterpreterParallelism(parallelism);
+	}
+
+	public int getNumRamShards() {
+		return _internalMBean.getNumRamShards();
+	}
+
+	public void setNumRamShards(int numRamShards) {
+		_internalMBean.setNumRamShards(numRamShards);
+	}
+
+	public int getMaxSealedRamIndexes() {
+		return _internalMBean.getMaxSealedRamIndexes();
+	}
+
+	public void setMaxSealedRamIndexes(int maxSealedRamIndexes) {
+		_internalMBean.setMaxSealedRamIndexes(maxSealedRamIndexes);
+	}
+
+	public int getSealedRamIndexCount() {
+		return _internalMBean.getSealedRamIndexCount();
+	}
+
+	public long getRamIndexHeapBytes() {
+		return _internalMBean.getRamIndexHeapBytes();
+	}
+
+	public long getRamIndexDirectBytes() {
+		return _internalMBean.getRamIndexDirectBytes();
+	}
+
+	public boolean isWarmUpDiskReaders() {
+		return _internalMBean.isWarmUpDiskReaders();
+	}
+
+	public void setWarmUpDiskReaders(boolean warmUp) {
+		_internalMBean.setWarmUpDiskReaders(warmUp);
+	}
+
+	public long getDiskReaderWarmUpBudget() {
+		return _internalMBean.getDiskReaderWarmUpBudget();
+	}
+
+	public void setDiskReaderWarmUpBudget(long warmUpBudget) {
+		_internalMBean.setDiskReaderWarmUpBudget(warmUpBudget);
+	}
+
+	public long getDiskReaderWarmUpCount() {
+		return _internalMBean.getDiskReaderWarmUpCount();
+	}
+
+	public long getDiskReaderWarmUpTotalTime() {
+		return _internalMBean.getDiskReaderWarmUpTotalTime();
+	}
+
+	public long getLastDiskReaderWarmUpTime() {
+		return _internalMBean.getLastDiskReaderWarmUpTime();
+	}
+
+	public int getLastDiskReaderWarmedSegments() {
+		return _internalMBean.getLastDiskReaderWarmedSegments();
+	}
+
+	public int getLastDiskReaderColdSegments() {
+		return _internalMBean.getLastDiskReaderColdSegments();
+	}
+
+	public int getMaxMergeThreadCount() {
+		return _internalMBean.getMaxMergeThreadCount();
+	}
+
+	public void setMaxMergeThreadCount(int maxThreadCount) {
+		_internalMBean.setMaxMergeThreadCount(maxThreadCount);
+	}
+
+	public double getMaxMergeMBPerSec() {
+		return _internalMBean.getMaxMergeMBPerSec();
+	}
+
+	public void setMaxMergeMBPerSec(double mbPerSec) {
+		_internalMBean.setMaxMergeMBPerSec(mbPerSec);
+	}
+
+	public int getPendingMergeCount() {
+		return _internalMBean.getPendingMergeCount();
+	}
+
+	public int getRunningMergeCount() {
+		return _internalMBean.getRunningMergeCount();
+	}
+
+	public long getCompletedMergeCount() {
+		return _internalMBean.getCompletedMergeCount();
+	}
+
+	public double getMergeThroughput() {
+		return _internalMBean.getMergeThroughput();
+	}
+
+	public long getMergeThrottleTime() {
+		return _internalMBean.getMergeThrottleTime();
+	}
+
+	public long getSearchCount() {
+		return _internalMBean.getSearchCount();
+	}
+
+	public float getMaxDiskSegmentDeletedRatio() {
+		return _internalMBean.getMaxDiskSegmentDeletedRatio();
+	}
+
+	public long getReaderLeakTimeout() {
+		return _internalMBean.getReaderLeakTimeout();
+	}
+
+	public void setReaderLeakTimeout(long leakTimeout) {
+		_internalMBean.setReaderLeakTimeout(leakTimeout);
+	}
+
+	public int getOutstandingReaderCount() {
+		return _internalMBean.getOutstandingReaderCount();
+	}
+
+	public int getLeakedReaderCount() {
+		return _internalMBean.getLeakedReaderCount();
+	}
+
 	public String getIndexDir() {
 		return _internalMBean.getIndexDir();
 	}
@@ -120,6 +252,34 @@ public class ZoieSystemAdmin implements ZoieSystemAdminMBean {
 		_internalMBean.expungeDeletes();
 	}
 
+	public void setExpungeDeletedRatio(float expungeDeletedRatio) {
+		_internalMBean.setExpungeDeletedRatio(expungeDeletedRatio);
+	}
+
+	public float getExpungeDeletedRatio() {
+		return _internalMBean.getExpungeDeletedRatio();
+	}
+
+	public void setMaxExpungeBytes(long maxExpungeBytes) {
+		_internalMBean.setMaxExpungeBytes(maxExpungeBytes);
+	}
+
+	public long getMaxExpungeBytes() {
+		return _internalMBean.getMaxExpungeBytes();
+	}
+
+	public int getExpungeSegmentCount() throws IOException {
+		return _internalMBean.getExpungeSegmentCount();
+	}
+
+	public long getExpungeRewriteBytes() throws IOException {
+		return _internalMBean.getExpungeRewriteBytes();
+	}
+
+	public long getExpungeReclaimBytes() throws IOException {
+		return _internalMBean.getExpungeReclaimBytes();
+	}
+
 	public int getMaxMergeDocs() {
 		return _internalMBean.getMaxBatchSize();
 	}
@@ -132,6 +292,22 @@ public class ZoieSystemAdmin implements ZoieSystemAdminMBean {
 		_internalMBean.setMaxMergeDocs(maxMergeDocs);
 	}
 
+	public void setMergePolicyType(String mergePolicyType) {
+		_internalMBean.setMergePolicyType(mergePolicyType);
+	}
+
+	public String getMergePolicyType() {
+		return _internalMBean.getMergePolicyType();
+	}
+
+	public void setMaxMergedSegmentBytes(long maxMergedSegmentBytes) {
+		_internalMBean.setMaxMergedSegmentBytes(maxMergedSegmentBytes);
+	}
+
+	public long getMaxMergedSegmentBytes() {
+		return _internalMBean.getMaxMergedSegmentBytes();
+	}
+
 	public void setMergeFactor(int mergeFactor) {
 		_internalMBean.setMergeFactor(mergeFactor);
 	}
@@ -63,6 +63,99 @@ public interface ZoieSystemAdminMBean {
 	  
 	void setMaxBatchSize(int maxBatchSize);  
 	
+	int getInterpreterParallelism();
+	
+	void setInterpreterParallelism(int parallelism);
+	
+	int getNumRamShards();
+	
+	void setNumRamShards(int numRamShards);
+	
+	int getMaxSealedRamIndexes();
+	
+	void setMaxSealedRamIndexes(int maxSealedRamIndexes);
+	
+	int getSealedRamIndexCount();
+	
+	long getRamIndexHeapBytes();
+	
+	long getRamIndexDirectBytes();
+	
+	boolean isWarmUpDiskReaders();
+	
+	void setWarmUpDiskReaders(boolean warmUp);
+	
+	long getDiskReaderWarmUpBudget();
+	
+	void setDiskReaderWarmUpBudget(long warmUpBudget);
+	
+	long getDiskReaderWarmUpCount();
+	
+	long getDiskReaderWarmUpTotalTime();
+	
+	long getLastDiskReaderWarmUpTime();
+	
+	int getLastDiskReaderWarmedSegments();
+	
+	int getLastDiskReaderColdSegments();
+	
+	int getMaxMergeThreadCount();
+	
+	/**
+	 * @param maxThreadCount largest number of disk index merges running at once, 0 to merge in the indexing thread
+	 */
+	void setMaxMergeThreadCount(int maxThreadCount);
+	
+	double getMaxMergeMBPerSec();
+	
+	/**
+	 * @param mbPerSec largest rate merges write at in MB per second, 0 or less for no limit
+	 */
+	void setMaxMergeMBPerSec(double mbPerSec);
+	
+	/**
+	 * @return disk index merges waiting for a merge thread
+	 */
+	int getPendingMergeCount();
+	
+	int getRunningMergeCount();
+	
+	long getCompletedMergeCount();
+	
+	/**
+	 * @return merged MB per second of merge time
+	 */
+	double getMergeThroughput();
+	
+	/**
+	 * @return time merges were held back by the rate limit in milliseconds
+	 */
+	long getMergeThrottleTime();
+	
+	long getReaderLeakTimeout();
+	
+	/**
+	 * @return number of reader sets taken by searches since the start
+	 */
+	long getSearchCount();
+	
+	/**
+	 * @return largest share of deleted documents in a disk index segment
+	 */
+	float getMaxDiskSegmentDeletedRatio();
+	
+	void setReaderLeakTimeout(long leakTimeout);
+	
+	/**
+	 * @return number of reader sets taken by searches and not returned yet
+	 */
+	int getOutstandingReaderCount();
+	
+	/**
+	 * @return number of reader sets found held past the leak timeout by the last background check
+	 */
+	int getLeakedReaderCount();
+	
 	void setMergeFactor(int mergeFactor);
 	
 	int getMergeFactor();
@@ -71,8 +164,54 @@ public interface ZoieSystemAdminMBean {
 	
 	int getMaxMergeDocs();
 	
+	/**
+	 * Selects the merge policy of the disk index, BALANCED or TIERED.
+	 * @param mergePolicyType name of the merge policy type
+	 */
+	void setMergePolicyType(String mergePolicyType);
+	
+	String getMergePolicyType();
+	
+	/**
+	 * @param maxMergedSegmentBytes largest segment the tiered merge policy builds
+	 */
+	void setMaxMergedSegmentBytes(long maxMergedSegmentBytes);
+	
+	long getMaxMergedSegmentBytes();
+	
 	void expungeDeletes() throws IOException;
 	
+	/**
+	 * Makes expungeDeletes only rewrite the disk segments with at least this share of deleted documents.
+	 * @param expungeDeletedRatio deleted ratio between 0 and 1, 0 rewrites every segment with deletes
+	 */
+	void setExpungeDeletedRatio(float expungeDeletedRatio);
+	
+	float getExpungeDeletedRatio();
+	
+	/**
+	 * Caps the bytes expungeDeletes rewrites in one pass, the segment with the most deletes is always rewritten.
+	 * @param maxExpungeBytes bytes rewritten per pass
+	 */
+	void setMaxExpungeBytes(long maxExpungeBytes);
+	
+	long getMaxExpungeBytes();
+	
+	/**
+	 * @return number of segments the next expungeDeletes would rewrite
+	 */
+	int getExpungeSegmentCount() throws IOException;
+	
+	/**
+	 * @return bytes the next expungeDeletes would rewrite
+	 */
+	long getExpungeRewriteBytes() throws IOException;
+	
+	/**
+	 * @return bytes the next expungeDeletes is expected to reclaim
+	 */
+	long getExpungeReclaimBytes() throws IOException;
+	
 	void setUseCompoundFile(boolean useCompoundFile);
 	
 	boolean isUseCompoundFile();
@@ -3,20 +3,37 @@ package proj.zoie.test;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
@@ -26,19 +43,47 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 
+import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.UIDDocIdSet;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieSegmentReader;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.DataConsumer.DataEvent;
+import proj.zoie.api.impl.CompositeDocIDMapper;
 import proj.zoie.api.impl.DocIDMapperImpl;
+import proj.zoie.api.impl.ZoieMergePolicy;
+import proj.zoie.api.impl.util.ByteBufferDirectory;
+import proj.zoie.api.impl.util.CRC32C;
+import proj.zoie.api.impl.util.DelDocIdSet;
+import proj.zoie.api.impl.util.DirectBufferPool;
+import proj.zoie.api.impl.util.LZ4Block;
+import proj.zoie.api.impl.util.UIDArrayFile;
+import proj.zoie.api.indexing.DefaultReaderWarmer;
+import proj.zoie.api.indexing.LoadAwareOptimizeScheduler;
+import proj.zoie.api.indexing.DiskDirectoryFactory;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.MemoryDirectoryFactory;
 import proj.zoie.impl.indexing.AsyncDataConsumer;
 import proj.zoie.impl.indexing.MemoryStreamDataProvider;
 import proj.zoie.impl.indexing.ZoieSystem;
+import proj.zoie.impl.indexing.internal.DiskIndexSnapshot;
+import proj.zoie.impl.indexing.internal.DiskSearchIndex;
 import proj.zoie.impl.indexing.internal.IndexReaderDispenser;
 import proj.zoie.impl.indexing.internal.IndexSignature;
+import proj.zoie.impl.indexing.internal.SearchIndexManager;
+import proj.zoie.impl.indexing.internal.ShardedRAMSearchIndex;
+import proj.zoie.mbean.ZoieSystemAdminMBean;
 import proj.zoie.test.data.TestData;
 import proj.zoie.test.data.TestDataInterpreter;
 import proj.zoie.test.mock.MockDataLoader;
@@ -125,31 +170,77 @@ public class ZoieTest extends ZoieTestCase
    */
   private static int countHits(ZoieSystem<IndexReader,String> idxSystem, Query q) throws IOException
   {
-    Searcher searcher = null;
     List<ZoieIndexReader<IndexReader>> readers = null;
     try
     {
       readers=idxSystem.getIndexReaders();
-      MultiReader reader=new MultiReader(readers.toArray(new IndexReader[readers.size()]),false);
-
-      searcher=new IndexSearcher(reader);
+      return countHits(readers, q);
+    }
+    finally
+    {
+      idxSystem.returnIndexReaders(readers);
+    }
+  }
 
+  private static int countHits(List<ZoieIndexReader<IndexReader>> readers, Query q) throws IOException
+  {
+    MultiReader reader=new MultiReader(readers.toArray(new IndexReader[readers.size()]),false);
+    Searcher searcher=new IndexSearcher(reader);
+    try
+    {
       TopDocs hits = searcher.search(q,10);
-
       return hits.totalHits;
     }
     finally
     {
-      try{
-        if (searcher != null){
-          searcher.close();
-          searcher = null;
-        }
-      }
-      finally{
-        idxSystem.returnIndexReaders(readers);
+      searcher.close();
+    }
+  }
+
+  /**
+   * @return the deleted docids of each reader
+   */
+  private static List<HashSet<Integer>> getDeletedDocs(List<ZoieIndexReader<IndexReader>> readers)
+  {
+    List<HashSet<Integer>> deletedDocs = new ArrayList<HashSet<Integer>>(readers.size());
+    for (ZoieIndexReader<IndexReader> reader : readers)
+    {
+      HashSet<Integer> deleted = new HashSet<Integer>();
+      for (int docid = 0; docid < reader.maxDoc(); ++docid)
+      {
+        if (reader.isDeleted(docid)) deleted.add(docid);
       }
+      deletedDocs.add(deleted);
+    }
+    return deletedDocs;
+  }
+
+  /**
+   * Indexes uids 0 to numUIDs - 1 as "old" and flushes them to disk.
+   */
+  private static void indexOld(ZoieSystem<IndexReader,String> idxSystem, int numUIDs) throws ZoieException
+  {
+    List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+    for (int i = 0; i < numUIDs; ++i)
+    {
+      list.add(new DataEvent<String>(i,"old " + i));
+    }
+    idxSystem.consume(list);
+    idxSystem.flushEvents(100000);
+  }
+
+  /**
+   * Updates the first half of the uids indexed by {@link #indexOld} as "new", in memory.
+   */
+  private static void updateHalf(ZoieSystem<IndexReader,String> idxSystem, int numUIDs) throws ZoieException
+  {
+    List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+    for (int i = 0; i < numUIDs / 2; ++i)
+    {
+      list.add(new DataEvent<String>(numUIDs + i,"new " + i));
     }
+    idxSystem.consume(list);
+    idxSystem.syncWthVersion(100000, numUIDs + numUIDs / 2 - 1);
   }
 
   public void testIndexWithAnalyzer() throws ZoieException,IOException{
@@ -365,6 +456,79 @@ public class ZoieTest extends ZoieTestCase
     }
   }
 
+  public void testAsyncDataConsumerMultiProducer() throws Exception
+  {
+    final int numProducers = 8;
+    final int countPerProducer = 2000;
+    final long timeout = 30000L;
+
+    for(AsyncDataConsumer.WaitStrategy strategy : AsyncDataConsumer.WaitStrategy.values())
+    {
+      MockDataLoader<Integer> mockLoader=new MockDataLoader<Integer>();
+      mockLoader.setDelay(0L);
+
+      // a small ring, so the producers wrap around it and wait for room
+      final AsyncDataConsumer<Integer> asyncConsumer = new AsyncDataConsumer<Integer>(100);
+      assertEquals("ring size not rounded up", 128, asyncConsumer.getRingSize());
+      asyncConsumer.setDataConsumer(mockLoader);
+      asyncConsumer.setBatchSize(50);
+      asyncConsumer.setWaitStrategy(strategy);
+      asyncConsumer.start();
+      try
+      {
+        final Exception[] errors = new Exception[numProducers];
+        Thread[] producers = new Thread[numProducers];
+        for(int i = 0; i < numProducers; ++i)
+        {
+          final int producer = i;
+          producers[i] = new Thread()
+          {
+            public void run()
+            {
+              try
+              {
+                for(int j = 0; j < countPerProducer; j += 10)
+                {
+                  List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>(10);
+                  for(int k = j; k < j + 10; ++k)
+                  {
+                    int version = k * numProducers + producer;
+                    list.add(new DataEvent<Integer>(version, version));
+                  }
+                  asyncConsumer.consume(list);
+                }
+              }
+              catch(Exception e)
+              {
+                errors[producer] = e;
+              }
+            }
+          };
+          producers[i].start();
+        }
+        for(Thread producer : producers)
+        {
+          producer.join();
+        }
+        for(Exception e : errors)
+        {
+          if (e != null) throw e;
+        }
+
+        // the highest version may be consumed before events of other producers, wait for all of them
+        asyncConsumer.flushEvents(timeout);
+        assertTrue("version not synced", asyncConsumer.getCurrentVersion() >= (long)(numProducers * countPerProducer - 1));
+        assertEquals("strategy="+strategy, numProducers * countPerProducer, mockLoader.getCount());
+        assertEquals("strategy="+strategy, 0, asyncConsumer.getCurrentBatchSize());
+        assertTrue("batch larger than the ring", mockLoader.getMaxBatch() <= asyncConsumer.getRingSize());
+      }
+      finally
+      {
+        asyncConsumer.stop();
+      }
+    }
+  }
+
   private class QueryThread extends Thread
   {
     public volatile boolean stop = false;
@@ -373,6 +537,376 @@ public class ZoieTest extends ZoieTestCase
     public Exception exception = null;
   }
 
+  public void testInterpreterParallelism() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    idxSystem.setInterpreterParallelism(4);
+    assertEquals("parallelism mismatch", 4, idxSystem.getAdminMBean().getInterpreterParallelism());
+    idxSystem.start();
+    try
+    {
+      // three rounds of updates of the same 100 uids in one batch, the last round must win
+      int numUIDs = 100;
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>(numUIDs * 3);
+      for (int i=0;i<numUIDs * 3;++i)
+      {
+        list.add(new DataEvent<String>(i,"round" + (i / numUIDs) + " " + (i % numUIDs)));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+
+      assertEquals("round0 count mismatch", 0, countHits(idxSystem, new TermQuery(new Term("contents","round0"))));
+      assertEquals("round1 count mismatch", 0, countHits(idxSystem, new TermQuery(new Term("contents","round1"))));
+      assertEquals("round2 count mismatch", numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","round2"))));
+
+      // back to serial interpretation
+      idxSystem.getAdminMBean().setInterpreterParallelism(1);
+      list.clear();
+      for (int i=0;i<numUIDs;++i)
+      {
+        list.add(new DataEvent<String>(numUIDs * 3 + i,"round3 " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+      assertEquals("round2 count mismatch", 0, countHits(idxSystem, new TermQuery(new Term("contents","round2"))));
+      assertEquals("round3 count mismatch", numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","round3"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testRamShards() throws ZoieException, IOException
+  {
+    assertEquals("routing not stable", ShardedRAMSearchIndex.getShardIndex(12345L, 4), ShardedRAMSearchIndex.getShardIndex(12345L, 4));
+    int[] counts = new int[4];
+    for (long uid = 0; uid < 400; ++uid)
+    {
+      counts[ShardedRAMSearchIndex.getShardIndex(uid, 4)]++;
+    }
+    for (int count : counts)
+    {
+      assertTrue("uids not spread over the shards", count > 0);
+    }
+
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    idxSystem.setNumRamShards(4);
+    assertEquals("shard count mismatch", 4, idxSystem.getAdminMBean().getNumRamShards());
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 100;
+      long version = 0;
+      for (int round = 0; round < 4; ++round)
+      {
+        // each round updates every uid twice in one batch, the second update must win
+        List<DataEvent<String>> list=new ArrayList<DataEvent<String>>(numUIDs * 2);
+        for (int i=0;i<numUIDs * 2;++i)
+        {
+          String text = (i < numUIDs ? "stale" : "round" + round);
+          list.add(new DataEvent<String>(version++,text + " " + (i % numUIDs)));
+        }
+        idxSystem.consume(list);
+        idxSystem.syncWthVersion(100000, version - 1);
+
+        assertEquals("stale count mismatch in round " + round, 0, countHits(idxSystem, new TermQuery(new Term("contents","stale"))));
+        for (int r = 0; r <= round; ++r)
+        {
+          int expected = (r == round ? numUIDs : 0);
+          assertEquals("round" + r + " count mismatch in round " + round, expected, countHits(idxSystem, new TermQuery(new Term("contents","round" + r))));
+        }
+        if (round == 1)
+        {
+          // the memory index created by the flush has 4 shards
+          idxSystem.flushEvents(100000);
+        }
+      }
+
+      List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+      try
+      {
+        assertTrue("memory shards not searched, readers: " + readers.size(), readers.size() > 2);
+      }
+      finally
+      {
+        idxSystem.returnIndexReaders(readers);
+      }
+
+      // all the shards are merged into the disk index
+      idxSystem.flushEvents(100000);
+      assertEquals("disk index size mismatch", numUIDs, idxSystem.getAdminMBean().getDiskIndexSize());
+      assertEquals("round3 count mismatch", numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","round3"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testRAMNearRealtimeRefresh() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    // keep everything in memory
+    idxSystem.setMaxBatchSize(100000);
+    idxSystem.getAdminMBean().setBatchSize(100000);
+    idxSystem.getAdminMBean().setBatchDelay(1000000L);
+    idxSystem.start();
+    try
+    {
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+      for (int i=0;i<10;++i)
+      {
+        list.add(new DataEvent<String>(i,"first " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.syncWthVersion(100000, 9);
+
+      // the consumer may split or merge batches, so segments are told apart by name
+      List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+      Map<String,long[]> firstUIDs = new HashMap<String,long[]>();
+      for (ZoieIndexReader<IndexReader> subReader : readers.get(0).getSequentialSubReaders())
+      {
+        ZoieSegmentReader<IndexReader> segmentReader = (ZoieSegmentReader<IndexReader>)subReader;
+        firstUIDs.put(segmentReader.getSegmentName(), segmentReader.getUIDArray());
+      }
+      List<ZoieIndexReader<IndexReader>> firstReaders = readers; // held over the next refresh
+      assertEquals("first count mismatch", 10, countHits(idxSystem, new TermQuery(new Term("contents","first"))));
+
+      // updates of half of the uids are deleted in the writer, the first segments are not wrapped again
+      list.clear();
+      for (int i=0;i<5;++i)
+      {
+        list.add(new DataEvent<String>(10 + i,"second " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.syncWthVersion(100000, 14);
+
+      // a replaced memory reader is closed once the last search using it is done
+      ZoieIndexReader<IndexReader> firstReader = firstReaders.get(0);
+      assertFalse("first reader still current", firstReader.isCurrent());
+      idxSystem.returnIndexReaders(firstReaders);
+      try
+      {
+        firstReader.isCurrent();
+        fail("first reader not closed");
+      }
+      catch (AlreadyClosedException e)
+      {
+        // expected
+      }
+
+      readers = idxSystem.getIndexReaders();
+      int reused = 0;
+      int firstDocs = 0;
+      for (ZoieIndexReader<IndexReader> subReader : readers.get(0).getSequentialSubReaders())
+      {
+        ZoieSegmentReader<IndexReader> segmentReader = (ZoieSegmentReader<IndexReader>)subReader;
+        long[] uids = firstUIDs.get(segmentReader.getSegmentName());
+        if (uids != null)
+        {
+          assertSame("segment reloaded: " + segmentReader.getSegmentName(), uids, segmentReader.getUIDArray());
+          reused++;
+          firstDocs += segmentReader.numDocs();
+        }
+      }
+      idxSystem.returnIndexReaders(readers);
+      assertEquals("first segments not reused", firstUIDs.size(), reused);
+      assertEquals("deletes not applied by the writer", 5, firstDocs);
+
+      assertEquals("first count mismatch", 5, countHits(idxSystem, new TermQuery(new Term("contents","first"))));
+      assertEquals("second count mismatch", 5, countHits(idxSystem, new TermQuery(new Term("contents","second"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testDiskUpdates() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    // not realtime, batches go straight to the disk index
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 100;
+      long version = 0;
+      for (int round = 0; round < 3; ++round)
+      {
+        // the first round adds, later rounds update the odd uids then all of them
+        List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+        for (int i=0;i<numUIDs;++i)
+        {
+          if (round == 1 && i % 2 == 0) continue;
+          list.add(new DataEvent<String>(version++,"round" + round + " " + i));
+        }
+        idxSystem.consume(list);
+        idxSystem.flushEvents(100000);
+
+        int[] expected = (round == 0 ? new int[]{ numUIDs, 0, 0 } :
+                          round == 1 ? new int[]{ numUIDs / 2, numUIDs / 2, 0 } : new int[]{ 0, 0, numUIDs });
+        for (int r = 0; r < 3; ++r)
+        {
+          assertEquals("round" + r + " count mismatch after round " + round, expected[r],
+                       countHits(idxSystem, new TermQuery(new Term("contents","round" + r))));
+        }
+        assertEquals("disk index size mismatch after round " + round, numUIDs, idxSystem.getAdminMBean().getDiskIndexSize());
+      }
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testRealtimeUpdatesDuringFlush() throws ZoieException, IOException, InterruptedException
+  {
+    File idxDir=getIdxDir();
+    final ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    // holds the disk flush open, the new disk reader is warmed up before it is published
+    final CountDownLatch flushing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    idxSystem.setDiskReaderWarmer(new DefaultReaderWarmer<IndexReader>()
+    {
+      @Override
+      public void warm(ZoieIndexReader<IndexReader> segmentReader) throws IOException
+      {
+        super.warm(segmentReader);
+        flushing.countDown();
+        try
+        {
+          release.await(60, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+          throw new IOException(e.getMessage());
+        }
+      }
+    });
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 50;
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+      for (int i = 0; i < numUIDs; ++i)
+      {
+        list.add(new DataEvent<String>(i,"before " + i));
+      }
+      idxSystem.consume(list);
+      assertTrue("disk flush not started", flushing.await(60, TimeUnit.SECONDS));
+
+      // update every uid while the flush is held open
+      final List<DataEvent<String>> updates=new ArrayList<DataEvent<String>>();
+      for (int i = 0; i < numUIDs; ++i)
+      {
+        updates.add(new DataEvent<String>(numUIDs + i,"during " + i));
+      }
+      final ZoieException[] error = new ZoieException[1];
+      Thread consumer = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            idxSystem.consume(updates);
+          }
+          catch (ZoieException e)
+          {
+            error[0] = e;
+          }
+        }
+      });
+      consumer.start();
+      consumer.join(10000);
+      assertFalse("consume blocked by the disk flush", consumer.isAlive());
+      if (error[0] != null) throw error[0];
+      idxSystem.syncWthVersion(10000, 2 * numUIDs - 1);
+      assertEquals("flush released early", 1, release.getCount());
+      assertEquals("updates not visible during the flush", numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","during"))));
+      assertEquals("old versions visible during the flush", 0, countHits(idxSystem, new TermQuery(new Term("contents","before"))));
+
+      release.countDown();
+      idxSystem.flushEvents(100000);
+      assertEquals("updates lost by the flush", numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","during"))));
+      assertEquals("old versions back after the flush", 0, countHits(idxSystem, new TermQuery(new Term("contents","before"))));
+    }
+    finally
+    {
+      release.countDown();
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testSealedRamIndexes() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    idxSystem.setMaxSealedRamIndexes(3);
+    idxSystem.setNumRamShards(2);
+    idxSystem.start();
+    try
+    {
+      assertEquals(3, idxSystem.getAdminMBean().getMaxSealedRamIndexes());
+      realtimeUpdates(idxSystem, 3);
+      assertEquals(0, idxSystem.getAdminMBean().getSealedRamIndexCount());
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  /**
+   * Updates the same uids in rounds without waiting for the disk flush, every round must
+   * replace the previous one, in memory and once flushed.
+   */
+  private void realtimeUpdates(ZoieSystem<IndexReader,String> idxSystem, int maxSealed) throws ZoieException, IOException
+  {
+    int numUIDs = 200;
+    int numRounds = 10;
+    long version = 0;
+    for (int round = 0; round < numRounds; ++round)
+    {
+      for (int i = 0; i < numUIDs; i += 20)
+      {
+        List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+        for (int j = i; j < i + 20; ++j)
+        {
+          list.add(new DataEvent<String>(version++,"round" + round + " " + j));
+        }
+        idxSystem.consume(list);
+        assertTrue("too many sealed memory indexes", idxSystem.getAdminMBean().getSealedRamIndexCount() <= maxSealed);
+      }
+      idxSystem.syncWthVersion(100000, version - 1);
+
+      assertEquals("round" + round + " not visible", numUIDs,
+                   countHits(idxSystem, new TermQuery(new Term("contents","round" + round))));
+      if (round > 0)
+      {
+        assertEquals("round" + (round - 1) + " not deleted", 0,
+                     countHits(idxSystem, new TermQuery(new Term("contents","round" + (round - 1)))));
+      }
+    }
+
+    idxSystem.flushEvents(100000);
+    for (int round = 0; round < numRounds; ++round)
+    {
+      assertEquals("round" + round + " count mismatch after flush", round == numRounds - 1 ? numUIDs : 0,
+                   countHits(idxSystem, new TermQuery(new Term("contents","round" + round))));
+    }
+  }
+
   public void testDelSet() throws ZoieException
   {
     for(int i=0; i<50; i++)
@@ -804,15 +1338,342 @@ public class ZoieTest extends ZoieTestCase
     }
   }
 
-  public void testUIDDocIdSet() throws IOException{
-    LongOpenHashSet uidset = new LongOpenHashSet();
-    int count = 100;
-    Random rand = new Random();
-    int id;
-    for (int i=0;i<count;++i){
-      do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id));
-      uidset.add(id);
-    }
+  public void testDeltaExportImport() throws ZoieException, IOException
+  {
+    File srcDir=getIdxDir();
+    File destDir=getIdxDir();
+    ZoieSystem<IndexReader,String> srcSystem=createZoie(srcDir,true);
+    ZoieSystem<IndexReader,String> destSystem=createZoie(destDir,true);
+    srcSystem.start();
+    destSystem.start();
+
+    File exportFile = new File(getTmpDir(), "zoie_delta_export.dat");
+    File manifestFile = new File(getTmpDir(), "zoie_manifest.dat");
+    Query q = new TermQuery(new Term("contents","expunge"));
+    try
+    {
+      addDocs(srcSystem, 0, 100);
+      // snapshots of the previous format are still read
+      writeSnapshotV1(srcDir, exportFile);
+      importSnapshot(destSystem, exportFile);
+      assertEquals(100, countHits(destSystem, q));
+
+      // the first segment does not change
+      addDocs(srcSystem, 100, 10);
+      long fullBytes = exportSnapshot(srcSystem, exportFile, null);
+
+      RandomAccessFile raf = new RandomAccessFile(manifestFile, "rw");
+      destSystem.writeSnapshotManifest(raf.getChannel());
+      raf.close();
+      long deltaBytes = exportSnapshot(srcSystem, exportFile, manifestFile);
+      assertTrue("delta of " + deltaBytes + " bytes, full snapshot of " + fullBytes, deltaBytes < fullBytes / 2);
+
+      importSnapshot(destSystem, exportFile);
+      assertEquals(110, countHits(destSystem, q));
+      assertEquals(IndexReaderDispenser.getCurrentIndexSignature(srcDir).getVersion(), IndexReaderDispenser.getCurrentIndexSignature(destDir).getVersion());
+    }
+    finally
+    {
+      srcSystem.shutdown();
+      destSystem.shutdown();
+      deleteDirectory(srcDir);
+      deleteDirectory(destDir);
+      exportFile.delete();
+      manifestFile.delete();
+    }
+  }
+
+  public void testImportKeepsServing() throws ZoieException, IOException
+  {
+    File srcDir=getIdxDir();
+    File destDir=getIdxDir();
+    ZoieSystem<IndexReader,String> srcSystem=createZoie(srcDir,true);
+    final ZoieSystem<IndexReader,String> destSystem=createZoie(destDir,true);
+    srcSystem.start();
+    destSystem.start();
+
+    File exportFile = new File(getTmpDir(), "zoie_staged_export.dat");
+    final Query q = new TermQuery(new Term("contents","expunge"));
+    try
+    {
+      addDocs(srcSystem, 0, 100);
+      addDocs(destSystem, 0, 30);
+      exportSnapshot(srcSystem, exportFile, null);
+      String oldIndexPath = IndexReaderDispenser.getCurrentIndexSignature(destDir).getIndexPath();
+
+      // searches half way through the transfer
+      final int[] hitsDuringImport = new int[] { -1 };
+      RandomAccessFile raf = new RandomAccessFile(exportFile, "r");
+      final FileChannel fc = raf.getChannel();
+      ReadableByteChannel channel = new ReadableByteChannel()
+      {
+        public int read(ByteBuffer dst) throws IOException
+        {
+          if (hitsDuringImport[0] < 0 && fc.position() > fc.size() / 2)
+          {
+            hitsDuringImport[0] = countHits(destSystem, q);
+          }
+          return fc.read(dst);
+        }
+
+        public boolean isOpen()
+        {
+          return fc.isOpen();
+        }
+
+        public void close() throws IOException
+        {
+          fc.close();
+        }
+      };
+      try
+      {
+        destSystem.importSnapshot(channel);
+      }
+      finally
+      {
+        raf.close();
+      }
+
+      assertEquals("the previous index should serve during the import", 30, hitsDuringImport[0]);
+      assertEquals(100, countHits(destSystem, q));
+      IndexSignature sig = IndexReaderDispenser.getCurrentIndexSignature(destDir);
+      assertEquals(IndexReaderDispenser.getCurrentIndexSignature(srcDir).getVersion(), sig.getVersion());
+      assertFalse("index directory not switched", oldIndexPath.equals(sig.getIndexPath()));
+      assertFalse("previous index not removed", new File(destDir, oldIndexPath).exists());
+
+      // indexing goes on in the imported index
+      addDocs(destSystem, 100, 10);
+      assertEquals(110, countHits(destSystem, q));
+    }
+    finally
+    {
+      srcSystem.shutdown();
+      destSystem.shutdown();
+      deleteDirectory(srcDir);
+      deleteDirectory(destDir);
+      exportFile.delete();
+    }
+  }
+
+  public void testSnapshotCodecs() throws IOException
+  {
+    CRC32C crc = new CRC32C();
+    byte[] check = "123456789".getBytes("US-ASCII");
+    crc.update(check, 0, check.length);
+    assertEquals(0xE3069283L, crc.getValue());
+
+    LZ4Block compressor = new LZ4Block();
+    Random rand = new Random(1);
+    for (int len : new int[] { 0, 1, 12, 13, 100, 65536 })
+    {
+      byte[] noise = new byte[len];
+      rand.nextBytes(noise);
+      byte[] text = new byte[len];
+      for (int i=0;i<len;++i)
+      {
+        text[i] = (byte)("zoie " + (i / 7)).charAt(i % 5);
+      }
+      for (byte[] src : new byte[][] { noise, text })
+      {
+        byte[] compressed = new byte[LZ4Block.maxCompressedLength(len)];
+        int compressedLen = compressor.compress(src, 0, len, compressed, 0);
+        byte[] dest = new byte[len];
+        assertEquals(len, LZ4Block.decompress(compressed, 0, compressedLen, dest, 0, len));
+        assertTrue(Arrays.equals(src, dest));
+        if (src == text && len >= 100) assertTrue("not compressed: " + compressedLen, compressedLen < len / 2);
+      }
+    }
+  }
+
+  public void testChecksummedSnapshot() throws ZoieException, IOException
+  {
+    File srcDir=getIdxDir();
+    File destDir=getIdxDir();
+    ZoieSystem<IndexReader,String> srcSystem=createZoie(srcDir,true);
+    ZoieSystem<IndexReader,String> destSystem=createZoie(destDir,true);
+    // files compress unless they are compound files
+    srcSystem.getAdminMBean().setUseCompoundFile(false);
+    srcSystem.start();
+    destSystem.start();
+
+    File exportFile = new File(getTmpDir(), "zoie_checksummed_export.dat");
+    Query q = new TermQuery(new Term("contents","expunge"));
+    try
+    {
+      addDocs(srcSystem, 0, 100);
+      long plainBytes = exportSnapshot(srcSystem, exportFile, null, DiskIndexSnapshot.Encoding.PLAIN);
+      long compressedBytes = exportSnapshot(srcSystem, exportFile, null, DiskIndexSnapshot.Encoding.COMPRESSED);
+      assertTrue("compressed " + compressedBytes + " bytes, plain " + plainBytes, compressedBytes < plainBytes);
+
+      importSnapshot(destSystem, exportFile);
+      assertEquals(100, countHits(destSystem, q));
+      IndexSignature sig = IndexReaderDispenser.getCurrentIndexSignature(destDir);
+
+      // a corrupt or truncated transfer fails before the import switches over
+      exportSnapshot(srcSystem, exportFile, null, DiskIndexSnapshot.Encoding.CHECKSUMMED);
+      byte[] data = readFile(exportFile);
+      data[data.length / 2] ^= 0x5A;
+      writeFile(exportFile, data, data.length);
+      assertImportFails(destSystem, exportFile);
+      data[data.length / 2] ^= 0x5A;
+      writeFile(exportFile, data, data.length - 10);
+      assertImportFails(destSystem, exportFile);
+
+      assertEquals(100, countHits(destSystem, q));
+      assertEquals(sig.getIndexPath(), IndexReaderDispenser.getCurrentIndexSignature(destDir).getIndexPath());
+      assertEquals("staged directories left", 1, destDir.listFiles(new FileFilter()
+      {
+        public boolean accept(File file)
+        {
+          return file.isDirectory();
+        }
+      }).length);
+
+      writeFile(exportFile, data, data.length);
+      importSnapshot(destSystem, exportFile);
+      assertEquals(100, countHits(destSystem, q));
+    }
+    finally
+    {
+      srcSystem.shutdown();
+      destSystem.shutdown();
+      deleteDirectory(srcDir);
+      deleteDirectory(destDir);
+      exportFile.delete();
+    }
+  }
+
+  private static void assertImportFails(ZoieSystem<IndexReader,String> idxSystem, File exportFile)
+  {
+    try
+    {
+      importSnapshot(idxSystem, exportFile);
+      fail("corrupt snapshot imported");
+    }
+    catch (IOException e)
+    {
+      // expected
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      byte[] data = new byte[(int)raf.length()];
+      raf.readFully(data);
+      return data;
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private static void writeFile(File file, byte[] data, int len) throws IOException
+  {
+    file.delete();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      raf.write(data, 0, len);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private static long exportSnapshot(ZoieSystem<IndexReader,String> idxSystem, File exportFile, File manifestFile) throws IOException
+  {
+    return exportSnapshot(idxSystem, exportFile, manifestFile, DiskIndexSnapshot.Encoding.PLAIN);
+  }
+
+  private static long exportSnapshot(ZoieSystem<IndexReader,String> idxSystem, File exportFile, File manifestFile, DiskIndexSnapshot.Encoding encoding) throws IOException
+  {
+    exportFile.delete();
+    RandomAccessFile raf = new RandomAccessFile(exportFile, "rw");
+    RandomAccessFile manifest = (manifestFile != null ? new RandomAccessFile(manifestFile, "r") : null);
+    try
+    {
+      idxSystem.exportSnapshot(raf.getChannel(), manifest != null ? manifest.getChannel() : null, encoding);
+    }
+    finally
+    {
+      raf.close();
+      if (manifest != null) manifest.close();
+    }
+    return exportFile.length();
+  }
+
+  private static void importSnapshot(ZoieSystem<IndexReader,String> idxSystem, File exportFile) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(exportFile, "r");
+    try
+    {
+      idxSystem.importSnapshot(raf.getChannel());
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes a snapshot of format version 1:
+   * <1> <sig_len> <sig_data> <num_files> { <idx_file_name_len> <idx_file_name> <idx_file_len> <idx_file_data> }...
+   */
+  private static void writeSnapshotV1(File idxDir, File exportFile) throws IOException
+  {
+    ByteArrayOutputStream sig = new ByteArrayOutputStream();
+    IndexReaderDispenser.getCurrentIndexSignature(idxDir).save(sig);
+    FSDirectory dir = DiskSearchIndex.getIndexDir(idxDir);
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(exportFile));
+    try
+    {
+      SegmentInfos infos = new SegmentInfos();
+      infos.read(dir);
+      Collection<String> fileNames = infos.files(dir, true);
+      out.writeInt(1);
+      out.writeLong(sig.size());
+      sig.writeTo(out);
+      out.writeInt(fileNames.size());
+      for (String fileName : fileNames)
+      {
+        out.writeInt(fileName.length());
+        out.writeChars(fileName);
+        RandomAccessFile raf = new RandomAccessFile(new File(dir.getFile(), fileName), "r");
+        try
+        {
+          byte[] data = new byte[(int)raf.length()];
+          raf.readFully(data);
+          out.writeLong(data.length);
+          out.write(data);
+        }
+        finally
+        {
+          raf.close();
+        }
+      }
+    }
+    finally
+    {
+      out.close();
+      dir.close();
+    }
+  }
+
+  public void testUIDDocIdSet() throws IOException{
+    LongOpenHashSet uidset = new LongOpenHashSet();
+    int count = 100;
+    Random rand = new Random();
+    int id;
+    for (int i=0;i<count;++i){
+      do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id));
+      uidset.add(id);
+    }
 
     long[] uidArray = uidset.toLongArray();
 
@@ -854,4 +1715,1080 @@ public class ZoieTest extends ZoieTestCase
     int[] answer = new int[]{0,1,10,11,20,21,30,31,40,41,50,51,60,61,70,71,80,81,90,91};
     assertTrue("wrong result from mix of next and skip",Arrays.equals(answer, intList.toIntArray()));
   }
+
+  public void testDelDocIdSet() throws IOException
+  {
+    int maxDoc = 100000;
+    Random rand = new Random();
+    int[] sizes = { 0, 1, 10, maxDoc / DelDocIdSet.DENSE_RATIO - 1, maxDoc / DelDocIdSet.DENSE_RATIO, 5000 };
+    for (int size : sizes)
+    {
+      DelDocIdSet.Builder builder = new DelDocIdSet.Builder(maxDoc);
+      java.util.TreeSet<Integer> expected = new java.util.TreeSet<Integer>();
+      while (expected.size() < size)
+      {
+        int docid = rand.nextInt(maxDoc);
+        assertEquals("add result mismatch", !expected.contains(docid), builder.add(docid));
+        expected.add(docid);
+      }
+      assertEquals("builder size mismatch", size, builder.size());
+
+      DelDocIdSet delSet = builder.build();
+      assertEquals("set size mismatch", size, delSet.size());
+
+      int[] ans = new int[expected.size()];
+      int i = 0;
+      for (int docid : expected) ans[i++] = docid;
+      assertTrue("wrong result from toIntArray", Arrays.equals(ans, delSet.toIntArray()));
+
+      for (int docid = 0; docid < maxDoc; ++docid)
+      {
+        assertEquals("isDeleted mismatch: " + docid, expected.contains(docid), delSet.isDeleted(docid));
+      }
+
+      IntArrayList intList = new IntArrayList();
+      DocIdSetIterator iter = delSet.iterator();
+      int docid;
+      while ((docid = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+      {
+        intList.add(docid);
+      }
+      assertTrue("wrong result from iter", Arrays.equals(ans, intList.toIntArray()));
+
+      iter = delSet.iterator();
+      for (int target = 0; target < maxDoc; target += 997)
+      {
+        Integer next = expected.ceiling(target);
+        docid = iter.advance(target);
+        if (next == null)
+        {
+          assertEquals("advance past the end", DocIdSetIterator.NO_MORE_DOCS, docid);
+          break;
+        }
+        assertEquals("advance mismatch", next.intValue(), docid);
+        target = docid;
+      }
+
+      // the built set must not see later additions
+      builder.add(maxDoc - 1);
+      builder.add(0);
+      assertEquals("built set changed", size, delSet.size());
+      assertEquals("built set changed", expected.contains(0), delSet.isDeleted(0));
+    }
+
+    // dense sets built one commit after another share their bits, the later docids are kept aside
+    DelDocIdSet.Builder builder = new DelDocIdSet.Builder(maxDoc);
+    java.util.TreeSet<Integer> expected = new java.util.TreeSet<Integer>();
+    List<DelDocIdSet> built = new ArrayList<DelDocIdSet>();
+    List<int[]> builtDocids = new ArrayList<int[]>();
+    for (int commit = 0; commit < 20; ++commit)
+    {
+      int size = maxDoc / DelDocIdSet.DENSE_RATIO + commit * 50;
+      while (expected.size() < size)
+      {
+        int docid = rand.nextInt(maxDoc);
+        builder.add(docid);
+        expected.add(docid);
+      }
+      DelDocIdSet delSet = builder.build();
+      int[] ans = new int[expected.size()];
+      int i = 0;
+      for (int docid : expected) ans[i++] = docid;
+      built.add(delSet);
+      builtDocids.add(ans);
+
+      IntArrayList intList = new IntArrayList();
+      DocIdSetIterator iter = delSet.iterator();
+      int docid;
+      while ((docid = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+      {
+        intList.add(docid);
+      }
+      assertTrue("wrong result from iter in commit " + commit, Arrays.equals(ans, intList.toIntArray()));
+      iter = delSet.iterator();
+      int target = ans[ans.length / 2 - 1] + 1;
+      assertEquals("advance mismatch in commit " + commit, ans[ans.length / 2], iter.advance(target));
+    }
+    for (int commit = 0; commit < built.size(); ++commit)
+    {
+      DelDocIdSet delSet = built.get(commit);
+      int[] ans = builtDocids.get(commit);
+      assertEquals("set size mismatch in commit " + commit, ans.length, delSet.size());
+      assertTrue("wrong result from toIntArray in commit " + commit, Arrays.equals(ans, delSet.toIntArray()));
+      HashSet<Integer> members = new HashSet<Integer>();
+      for (int docid : ans) members.add(docid);
+      for (int docid = 0; docid < maxDoc; ++docid)
+      {
+        assertEquals("isDeleted mismatch in commit " + commit + ": " + docid, members.contains(docid), delSet.isDeleted(docid));
+      }
+    }
+  }
+
+  public void testUIDArrayFile() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true);
+    idxSystem.start();
+    try
+    {
+      int count=TestData.testdata.length;
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>(count);
+      for (int i=0;i<count;++i)
+      {
+        list.add(new DataEvent<String>(i,TestData.testdata[i]));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+    }
+    finally
+    {
+      idxSystem.shutdown();
+    }
+
+    try
+    {
+      FSDirectory dir = DiskSearchIndex.getIndexDir(idxDir);
+
+      // the first open scans the payloads and saves the uid files
+      ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+      ZoieIndexReader<IndexReader>[] subReaders = reader.getSequentialSubReaders();
+      long[][] scanned = new long[subReaders.length][];
+      for (int i = 0; i < subReaders.length; ++i)
+      {
+        ZoieSegmentReader<IndexReader> segReader = (ZoieSegmentReader<IndexReader>)subReaders[i];
+        scanned[i] = segReader.getUIDArray();
+        assertTrue("no uid file for " + segReader.getSegmentName(),
+                   UIDArrayFile.getFile(dir.getFile(), segReader.getSegmentName()).exists());
+      }
+      reader.close();
+
+      // the second open loads them
+      reader = ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+      subReaders = reader.getSequentialSubReaders();
+      assertEquals("segment count mismatch", scanned.length, subReaders.length);
+      int numDocs = 0;
+      for (int i = 0; i < subReaders.length; ++i)
+      {
+        ZoieSegmentReader<IndexReader> segReader = (ZoieSegmentReader<IndexReader>)subReaders[i];
+        assertTrue("uid array mismatch", Arrays.equals(scanned[i], segReader.getUIDArray()));
+        for (int docid = 0; docid < segReader.maxDoc(); ++docid)
+        {
+          long uid = segReader.getUID(docid);
+          if (uid == ZoieIndexReader.DELETED_UID) continue;
+          assertTrue("uid out of range", segReader.getMinUID() <= uid && uid <= segReader.getMaxUID());
+          assertEquals("docid mismatch", docid, segReader.getDocIDMaper().getDocID(uid));
+          numDocs++;
+        }
+      }
+      assertEquals("doc count mismatch", TestData.testdata.length, numDocs);
+      reader.close();
+
+      // a file of the wrong size is ignored
+      String segName = ((ZoieSegmentReader<IndexReader>)subReaders[0]).getSegmentName();
+      RandomAccessFile raf = new RandomAccessFile(UIDArrayFile.getFile(dir.getFile(), segName), "rw");
+      raf.setLength(raf.length() - 8);
+      raf.close();
+      assertNull("corrupted uid file loaded", UIDArrayFile.load(dir.getFile(), segName, scanned[0].length));
+      reader = ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+      assertTrue("uid array mismatch", Arrays.equals(scanned[0], ((ZoieSegmentReader<IndexReader>)reader.getSequentialSubReaders()[0]).getUIDArray()));
+      reader.close();
+
+      // so is a stale file of the right size that only differs after the first uid
+      long[] stale = scanned[0].clone();
+      int last = stale.length - 1;
+      while (stale[last] == ZoieIndexReader.DELETED_UID) last--;
+      assertTrue("segment too small", last > 0);
+      stale[last] = stale[last] + 1000000L;
+      UIDArrayFile.save(dir.getFile(), segName, stale, Long.MIN_VALUE, Long.MAX_VALUE);
+      reader = ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+      assertTrue("stale uid file loaded", Arrays.equals(scanned[0], ((ZoieSegmentReader<IndexReader>)reader.getSequentialSubReaders()[0]).getUIDArray()));
+      reader.close();
+    }
+    finally
+    {
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testByteBufferDirectory() throws IOException
+  {
+    // small pages, so files span many pages
+    DirectBufferPool pool = new DirectBufferPool(1024, 8 * 1024);
+    ByteBufferDirectory dir = new ByteBufferDirectory(pool);
+
+    IndexOutput out = dir.createOutput("test");
+    byte[] bytes = new byte[5000];
+    for (int i = 0; i < bytes.length; ++i) bytes[i] = (byte)i;
+    out.writeBytes(bytes, bytes.length);
+    out.writeLong(Long.MAX_VALUE);
+    out.seek(1024);
+    out.writeInt(42); // rewrite in place
+    out.close();
+    assertEquals("file length", 5008, dir.fileLength("test"));
+
+    IndexInput in = dir.openInput("test");
+    assertEquals((byte)0, in.readByte());
+    in.seek(1020);
+    byte[] buf = new byte[8];
+    in.readBytes(buf, 0, 8);
+    assertEquals("read across pages", (byte)1020, buf[0]);
+    assertEquals("overwritten int", 42, ((buf[4] & 0xff) << 24) | ((buf[5] & 0xff) << 16) | ((buf[6] & 0xff) << 8) | (buf[7] & 0xff));
+    IndexInput clone = (IndexInput)in.clone();
+    in.seek(5000);
+    assertEquals(Long.MAX_VALUE, in.readLong());
+    assertEquals("clone moved", 1028, clone.getFilePointer());
+    assertEquals((byte)1028, clone.readByte());
+    try
+    {
+      in.readByte();
+      fail("read past EOF");
+    }
+    catch(IOException e)
+    {
+    }
+    in.close();
+    dir.deleteFile("test");
+    assertFalse(dir.fileExists("test"));
+    assertEquals("deleted files are kept until the directory is closed", 5 * 1024, dir.sizeInBytes());
+
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, MaxFieldLength.UNLIMITED);
+    for (int i = 0; i < 500; ++i)
+    {
+      Document doc = new Document();
+      doc.add(new Field("id", String.valueOf(i), Field.Store.YES, Field.Index.NOT_ANALYZED));
+      doc.add(new Field("contents", (i % 2 == 0 ? "even" : "odd") + " doc " + i, Field.Store.NO, Field.Index.ANALYZED));
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    IndexReader reader = IndexReader.open(dir, true);
+    assertEquals(500, reader.numDocs());
+    IndexSearcher searcher = new IndexSearcher(reader);
+    assertEquals(250, searcher.search(new TermQuery(new Term("contents", "even")), 10).totalHits);
+    TopDocs docs = searcher.search(new TermQuery(new Term("id", "123")), 10);
+    assertEquals(1, docs.totalHits);
+    assertEquals("123", reader.document(docs.scoreDocs[0].doc).get("id"));
+    searcher.close();
+    reader.close();
+
+    assertTrue("no direct memory used", pool.getUsedBytes() > 0);
+    assertEquals(pool.getUsedBytes(), dir.sizeInBytes());
+    dir.close();
+    assertEquals("pages not released", 0, pool.getUsedBytes());
+  }
+
+  public void testDirectMemoryIndex() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    MemoryDirectoryFactory.DirectMemoryDirectoryFactory dirFactory = new MemoryDirectoryFactory.DirectMemoryDirectoryFactory();
+    idxSystem.setMemoryDirectoryFactory(dirFactory);
+    idxSystem.start();
+    try
+    {
+      realtimeUpdates(idxSystem, 1);
+      DirectBufferPool pool = dirFactory.getPool();
+      assertTrue("memory indexes not in direct memory", pool.getAllocatedBytes() > 0);
+      // only memory indexes not yet closed hold pages
+      assertEquals(pool.getUsedBytes(), idxSystem.getAdminMBean().getRamIndexDirectBytes());
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testMMapDiskIndex() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    // small chunks, so the files span several mappings
+    idxSystem.setDiskDirectoryFactory(new DiskDirectoryFactory.MMapDirectoryFactory(4096, false));
+    idxSystem.setWarmUpDiskReaders(true);
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 200;
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+      for (int i=0;i<numUIDs;++i)
+      {
+        list.add(new DataEvent<String>(i,"mmap " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+      assertEquals(numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","mmap"))));
+      assertTrue("disk reader not memory mapped", getDiskDirectory(idxSystem) instanceof MMapDirectory);
+
+      // the next refresh opens the reader from scratch with the new factory
+      idxSystem.setDiskDirectoryFactory(DiskDirectoryFactory.NIO);
+      idxSystem.refreshDiskReader();
+      assertTrue("disk reader not reopened", getDiskDirectory(idxSystem) instanceof NIOFSDirectory);
+      assertEquals(numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","mmap"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  private static Directory getDiskDirectory(ZoieSystem<IndexReader,String> idxSystem) throws IOException
+  {
+    List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+    try
+    {
+      return readers.get(readers.size() - 1).directory(); // the disk reader comes last
+    }
+    finally
+    {
+      idxSystem.returnIndexReaders(readers);
+    }
+  }
+
+  public void testReaderWarmer() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    final List<String> warmed = new ArrayList<String>();
+    final long[] delay = new long[]{ 0L };
+    idxSystem.setDiskReaderWarmer(new DefaultReaderWarmer<IndexReader>()
+    {
+      @Override
+      public void warm(ZoieIndexReader<IndexReader> segmentReader) throws IOException
+      {
+        super.warm(segmentReader);
+        warmed.add(((ZoieSegmentReader<IndexReader>)segmentReader).getSegmentName());
+        try
+        {
+          Thread.sleep(delay[0]);
+        }
+        catch (InterruptedException e)
+        {
+          throw new IOException(e.getMessage());
+        }
+      }
+    });
+    idxSystem.getAdminMBean().setMergeFactor(100);
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 50;
+      for (int round = 0; round < 3; ++round)
+      {
+        List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+        for (int i=0;i<numUIDs;++i)
+        {
+          int uid = round * numUIDs + i;
+          list.add(new DataEvent<String>(uid,"warm " + uid));
+        }
+        idxSystem.consume(list);
+        idxSystem.flushEvents(100000);
+      }
+      assertEquals(3 * numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","warm"))));
+
+      // every segment of the disk reader was warmed up once, when it was new
+      List<String> segments = getDiskSegmentNames(idxSystem);
+      assertTrue("disk index has a single segment", segments.size() > 1);
+      assertTrue("segments not warmed up: " + segments + " / " + warmed, warmed.containsAll(segments));
+      assertEquals("segments warmed up more than once: " + warmed, new HashSet<String>(warmed).size(), warmed.size());
+      ZoieSystemAdminMBean admin = idxSystem.getAdminMBean();
+      assertTrue(admin.getDiskReaderWarmUpCount() >= 3);
+      assertEquals(0, admin.getLastDiskReaderColdSegments());
+
+      // a reader opened from scratch has only new segments, the budget runs out after the first
+      warmed.clear();
+      delay[0] = 50L;
+      admin.setDiskReaderWarmUpBudget(10L);
+      idxSystem.setDiskDirectoryFactory(DiskDirectoryFactory.NIO);
+      idxSystem.refreshDiskReader();
+      assertEquals(1, warmed.size());
+      assertEquals(1, admin.getLastDiskReaderWarmedSegments());
+      assertEquals(segments.size() - 1, admin.getLastDiskReaderColdSegments());
+      assertEquals(3 * numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","warm"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testReaderRefCount() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    idxSystem.start();
+    try
+    {
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+      for (int i=0;i<20;++i)
+      {
+        list.add(new DataEvent<String>(i,"held " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+
+      ZoieSystemAdminMBean admin = idxSystem.getAdminMBean();
+      List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+      assertEquals(1, admin.getOutstandingReaderCount());
+      ZoieIndexReader<IndexReader> diskReader = readers.get(readers.size() - 1);
+      Term term = new Term("contents","held");
+      assertEquals(20, diskReader.docFreq(term));
+
+      // a new disk reader is published, the held one stays open until it is returned
+      idxSystem.setDiskDirectoryFactory(DiskDirectoryFactory.NIO);
+      idxSystem.refreshDiskReader();
+      assertEquals(20, countHits(idxSystem, new TermQuery(term)));
+      assertEquals(20, diskReader.docFreq(term));
+
+      // readers held past the timeout are reported
+      idxSystem.setReaderLeakTimeout(10L);
+      try
+      {
+        Thread.sleep(50L);
+      }
+      catch (InterruptedException e)
+      {
+        fail(e.getMessage());
+      }
+      assertEquals(1, admin.getLeakedReaderCount());
+
+      idxSystem.returnIndexReaders(readers);
+      idxSystem.returnIndexReaders(readers);
+      assertEquals(0, admin.getOutstandingReaderCount());
+      assertEquals(0, admin.getLeakedReaderCount());
+      try
+      {
+        diskReader.docFreq(term);
+        fail("released disk reader is still open");
+      }
+      catch (AlreadyClosedException e)
+      {
+        // closed with the last reference
+      }
+      assertEquals(20, countHits(idxSystem, new TermQuery(term)));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testGetIndexReadersDuringRefresh() throws ZoieException, IOException, InterruptedException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    idxSystem.start();
+    List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+    for (int i=0;i<20;++i)
+    {
+      list.add(new DataEvent<String>(i,"held " + i));
+    }
+    idxSystem.consume(list);
+    idxSystem.flushEvents(100000);
+    idxSystem.shutdown();
+
+    final SearchIndexManager<IndexReader> idxMgr = new SearchIndexManager<IndexReader>(idxDir, new TestIndexReaderDecorator());
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch unlock = new CountDownLatch(1);
+    // holds the manager lock the way the indexing side does while it refreshes the readers
+    Thread refresher = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        synchronized(idxMgr)
+        {
+          locked.countDown();
+          try
+          {
+            unlock.await(60, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException e)
+          {
+            // let go of the lock
+          }
+        }
+      }
+    });
+    refresher.start();
+    try
+    {
+      assertTrue("lock not taken", locked.await(60, TimeUnit.SECONDS));
+      final int[] hits = new int[]{ -1 };
+      final Exception[] error = new Exception[1];
+      Thread searcher = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            List<ZoieIndexReader<IndexReader>> readers = idxMgr.getIndexReaders();
+            try
+            {
+              hits[0] = countHits(readers, new TermQuery(new Term("contents","held")));
+            }
+            finally
+            {
+              idxMgr.returnReaders(readers);
+            }
+          }
+          catch (Exception e)
+          {
+            error[0] = e;
+          }
+        }
+      });
+      searcher.start();
+      searcher.join(10000);
+      assertFalse("getIndexReaders blocked by the refresh", searcher.isAlive());
+      assertNull("search failed", error[0]);
+      assertEquals(20, hits[0]);
+      assertTrue("refresh released early", refresher.isAlive());
+    }
+    finally
+    {
+      unlock.countDown();
+      refresher.join();
+      idxMgr.close();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testSnapshotDeletesStable() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 20;
+      indexOld(idxSystem, numUIDs);
+
+      List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+      try
+      {
+        List<HashSet<Integer>> deletedDocs = getDeletedDocs(readers);
+
+        // later batches delete the old copies of the updated uids, in memory and then on disk
+        updateHalf(idxSystem, numUIDs);
+        assertEquals(numUIDs / 2, countHits(idxSystem, new TermQuery(new Term("contents","old"))));
+        assertEquals("deletes leaked into a held snapshot", deletedDocs, getDeletedDocs(readers));
+        assertEquals(numUIDs, countHits(readers, new TermQuery(new Term("contents","old"))));
+        assertEquals(0, countHits(readers, new TermQuery(new Term("contents","new"))));
+
+        idxSystem.flushEvents(100000);
+        assertEquals(numUIDs / 2, countHits(idxSystem, new TermQuery(new Term("contents","old"))));
+        assertEquals("deletes leaked into a held snapshot", deletedDocs, getDeletedDocs(readers));
+        assertEquals(numUIDs, countHits(readers, new TermQuery(new Term("contents","old"))));
+      }
+      finally
+      {
+        idxSystem.returnIndexReaders(readers);
+      }
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testReaderViewsAcrossThreads() throws ZoieException, IOException, InterruptedException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,true,0);
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 20;
+      indexOld(idxSystem, numUIDs);
+      updateHalf(idxSystem, numUIDs);
+
+      final List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+      try
+      {
+        List<HashSet<Integer>> deletedDocs = getDeletedDocs(readers);
+        int numDeleted = 0;
+        for (HashSet<Integer> deleted : deletedDocs)
+        {
+          numDeleted += deleted.size();
+        }
+        assertEquals("old copies not deleted", numUIDs / 2, numDeleted);
+        assertEquals(numUIDs / 2, countHits(readers, new TermQuery(new Term("contents","old"))));
+        assertEquals(numUIDs / 2, countHits(readers, new TermQuery(new Term("contents","new"))));
+
+        // the readers are handed to another thread, as a search pool would do
+        final Object[] result = new Object[3];
+        Thread searcher = new Thread(new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              result[0] = getDeletedDocs(readers);
+              result[1] = countHits(readers, new TermQuery(new Term("contents","old")));
+              result[2] = countHits(readers, new TermQuery(new Term("contents","new")));
+            }
+            catch (IOException e)
+            {
+              result[0] = e;
+            }
+          }
+        });
+        searcher.start();
+        searcher.join(10000);
+        assertFalse("search did not finish", searcher.isAlive());
+        assertEquals("deleted docs differ across threads", deletedDocs, result[0]);
+        assertEquals(numUIDs / 2, result[1]);
+        assertEquals(numUIDs / 2, result[2]);
+      }
+      finally
+      {
+        idxSystem.returnIndexReaders(readers);
+      }
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testMergeScheduler() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    ZoieSystemAdminMBean admin = idxSystem.getAdminMBean();
+    admin.setMergeFactor(2);
+    admin.setMaxMergeThreadCount(2);
+    admin.setMaxMergeMBPerSec(0.5);
+    idxSystem.start();
+    try
+    {
+      int numUIDs = 100;
+      for (int round = 0; round < 16; ++round)
+      {
+        List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+        for (int i=0;i<numUIDs;++i)
+        {
+          int uid = round * numUIDs + i;
+          list.add(new DataEvent<String>(uid,"merge " + uid));
+        }
+        idxSystem.consume(list);
+        idxSystem.flushEvents(100000);
+      }
+      assertEquals(16 * numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","merge"))));
+
+      // merges finish in the background
+      waitForMerges(admin);
+      assertTrue("no merge", admin.getCompletedMergeCount() > 0);
+      assertTrue(admin.getMergeThroughput() > 0.0);
+
+      // merges in the indexing thread
+      admin.setMaxMergeThreadCount(0);
+      admin.setMaxMergeMBPerSec(0.0);
+      long completed = admin.getCompletedMergeCount();
+      for (int round = 16; round < 32; ++round)
+      {
+        List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+        for (int i=0;i<numUIDs;++i)
+        {
+          int uid = round * numUIDs + i;
+          list.add(new DataEvent<String>(uid,"merge " + uid));
+        }
+        idxSystem.consume(list);
+        idxSystem.flushEvents(100000);
+      }
+      assertTrue(admin.getCompletedMergeCount() > completed);
+      assertEquals(0, admin.getPendingMergeCount());
+      assertEquals(32 * numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","merge"))));
+      idxSystem.refreshDiskReader();
+      assertEquals(32 * numUIDs, countHits(idxSystem, new TermQuery(new Term("contents","merge"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testLoadAwareOptimizeScheduler() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    ZoieSystemAdminMBean admin = idxSystem.getAdminMBean();
+    idxSystem.start();
+    try
+    {
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+      for (int i=0;i<100;++i)
+      {
+        list.add(new DataEvent<String>(i,"expunge " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+
+      LoadAwareOptimizeScheduler scheduler = new LoadAwareOptimizeScheduler(admin);
+      scheduler.setDeletedRatioThreshold(0.2f);
+      scheduler.setMaxSearchRate(1.0);
+      idxSystem.setOptimizeScheduler(scheduler);
+
+      // updates leave half of the first segment deleted
+      list=new ArrayList<DataEvent<String>>();
+      for (int i=0;i<50;++i)
+      {
+        list.add(new DataEvent<String>(100 + i,"expunge " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+      assertEquals(100, countHits(idxSystem, new TermQuery(new Term("contents","expunge"))));
+      assertTrue(admin.getMaxDiskSegmentDeletedRatio() > 0.2f);
+
+      // searching hard, the slice is put off
+      long end = System.currentTimeMillis() + 1200L;
+      while (System.currentTimeMillis() < end)
+      {
+        countHits(idxSystem, new TermQuery(new Term("contents","expunge")));
+      }
+      addDocs(idxSystem, 200, 10);
+      assertTrue(scheduler.getSearchRate() > 1.0);
+      assertEquals(1, scheduler.getDeferredCount());
+      assertEquals(0, scheduler.getSliceCount());
+
+      // idle, one segment is expunged, the next slice is not due before a minute
+      scheduler.setMaxSearchRate(0.0);
+      scheduler.setMinSliceInterval(60000L);
+      addDocs(idxSystem, 210, 10);
+      assertEquals(1, scheduler.getSliceCount());
+      waitForMerges(admin);
+      addDocs(idxSystem, 220, 10);
+      assertTrue("deletes not expunged: " + admin.getMaxDiskSegmentDeletedRatio(), admin.getMaxDiskSegmentDeletedRatio() <= 0.2f);
+      assertEquals(1, scheduler.getSliceCount());
+      assertEquals(130, countHits(idxSystem, new TermQuery(new Term("contents","expunge"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testTargetedExpunge() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    ZoieSystemAdminMBean admin = idxSystem.getAdminMBean();
+    idxSystem.start();
+    try
+    {
+      // three segments, updates delete 60% of the first one and 10% of the second one
+      addDocs(idxSystem, 0, 100);
+      addDocs(idxSystem, 100, 100);
+      addDocs(idxSystem, 200, 100);
+      List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+      for (int i=0;i<60;++i)
+      {
+        list.add(new DataEvent<String>(300 + i,"expunge " + i));
+      }
+      for (int i=100;i<110;++i)
+      {
+        list.add(new DataEvent<String>(300 + i,"expunge " + i));
+      }
+      idxSystem.consume(list);
+      idxSystem.flushEvents(100000);
+      assertEquals(4, admin.getDiskIndexSegmentCount());
+      assertEquals(2, admin.getExpungeSegmentCount());
+
+      // only the hot segment is over the threshold
+      admin.setExpungeDeletedRatio(0.5f);
+      assertEquals(1, admin.getExpungeSegmentCount());
+      long rewrite = admin.getExpungeRewriteBytes();
+      long reclaim = admin.getExpungeReclaimBytes();
+      assertTrue(rewrite > 0L && reclaim > rewrite / 2 && reclaim < rewrite);
+
+      // both segments are over this one, the cap lets the most deleted one through
+      admin.setExpungeDeletedRatio(0.05f);
+      admin.setMaxExpungeBytes(1L);
+      assertEquals(1, admin.getExpungeSegmentCount());
+      assertEquals(rewrite, admin.getExpungeRewriteBytes());
+      admin.expungeDeletes();
+      assertEquals(4, admin.getDiskIndexSegmentCount());
+      assertEquals(0.1f, admin.getMaxDiskSegmentDeletedRatio(), 0.001f);
+      assertEquals(300, countHits(idxSystem, new TermQuery(new Term("contents","expunge"))));
+
+      admin.setMaxExpungeBytes(ZoieMergePolicy.DEFAULT_MAX_EXPUNGE_BYTES);
+      assertEquals(1, admin.getExpungeSegmentCount());
+      admin.expungeDeletes();
+      assertEquals(0, admin.getExpungeSegmentCount());
+      assertEquals(0.0f, admin.getMaxDiskSegmentDeletedRatio());
+      assertEquals(300, countHits(idxSystem, new TermQuery(new Term("contents","expunge"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  public void testTieredMergePolicy() throws ZoieException, IOException
+  {
+    File idxDir=getIdxDir();
+    ZoieSystem<IndexReader,String> idxSystem=createZoie(idxDir,false,0);
+    ZoieSystemAdminMBean admin = idxSystem.getAdminMBean();
+    idxSystem.start();
+    try
+    {
+      addDocs(idxSystem, 0, 50);
+      SegmentInfos infos = getDiskSegmentInfos(idxDir);
+      assertEquals(1, infos.size());
+      long segmentBytes = infos.info(0).sizeInBytes();
+
+      // the writer in use switches to the tiered policy with the next batch
+      admin.setMergeFactor(3);
+      admin.setMergePolicyType(ZoieMergePolicy.MergePolicyType.TIERED.name());
+      long maxMergedBytes = segmentBytes * 9 / 2;
+      admin.setMaxMergedSegmentBytes(maxMergedBytes);
+      int numBatches = 20;
+      for (int i=1;i<numBatches;++i)
+      {
+        addDocs(idxSystem, 50 * i, 50);
+      }
+      waitForMerges(admin);
+
+      infos = getDiskSegmentInfos(idxDir);
+      assertTrue("no merge", infos.size() < numBatches);
+      for (int i=0;i<infos.size();++i)
+      {
+        assertTrue("segment over the cap: " + infos.info(i).sizeInBytes(), infos.info(i).sizeInBytes() <= maxMergedBytes);
+      }
+      assertTrue(admin.getCompletedMergeCount() > 0);
+      assertEquals(50 * numBatches, countHits(idxSystem, new TermQuery(new Term("contents","expunge"))));
+    }
+    finally
+    {
+      idxSystem.shutdown();
+      deleteDirectory(idxDir);
+    }
+  }
+
+  private static SegmentInfos getDiskSegmentInfos(File idxDir) throws IOException
+  {
+    Directory dir = DiskSearchIndex.getIndexDir(idxDir);
+    try
+    {
+      SegmentInfos infos = new SegmentInfos();
+      infos.read(dir);
+      for (int i=0;i<infos.size();++i)
+      {
+        infos.info(i).sizeInBytes(); // computed while the directory is open
+      }
+      return infos;
+    }
+    finally
+    {
+      dir.close();
+    }
+  }
+
+  private static void addDocs(ZoieSystem<IndexReader,String> idxSystem, int firstUID, int numDocs) throws ZoieException
+  {
+    List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+    for (int i=0;i<numDocs;++i)
+    {
+      list.add(new DataEvent<String>(firstUID + i,"expunge " + (firstUID + i)));
+    }
+    idxSystem.consume(list);
+    idxSystem.flushEvents(100000);
+  }
+
+  private static void waitForMerges(ZoieSystemAdminMBean admin)
+  {
+    long end = System.currentTimeMillis() + 60000L;
+    while (admin.getPendingMergeCount() + admin.getRunningMergeCount() > 0 && System.currentTimeMillis() < end)
+    {
+      try
+      {
+        Thread.sleep(50L);
+      }
+      catch (InterruptedException e)
+      {
+        fail(e.getMessage());
+      }
+    }
+    assertEquals(0, admin.getPendingMergeCount());
+    assertEquals(0, admin.getRunningMergeCount());
+  }
+
+  private static List<String> getDiskSegmentNames(ZoieSystem<IndexReader,String> idxSystem) throws IOException
+  {
+    List<ZoieIndexReader<IndexReader>> readers = idxSystem.getIndexReaders();
+    try
+    {
+      List<String> names = new ArrayList<String>();
+      for (IndexReader subReader : readers.get(readers.size() - 1).getSequentialSubReaders())
+      {
+        names.add(((ZoieSegmentReader<IndexReader>)subReader).getSegmentName());
+      }
+      return names;
+    }
+    finally
+    {
+      idxSystem.returnIndexReaders(readers);
+    }
+  }
+
+  public void testDocIDMapperReuse() throws IOException
+  {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, MaxFieldLength.UNLIMITED);
+    for (int i = 0; i < 100; ++i)
+    {
+      Document doc = new Document();
+      ZoieSegmentReader.fillDocumentID(doc, i);
+      doc.add(new Field("id", String.valueOf(i), Field.Store.NO, Field.Index.NOT_ANALYZED));
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    ZoieIndexReader<IndexReader> reader = ZoieIndexReader.open(dir, new TestIndexReaderDecorator());
+    ZoieIndexReader<IndexReader>[] subReaders = reader.getSequentialSubReaders();
+    assertEquals("segment count", 1, subReaders.length);
+    long[] uidArray = ((ZoieSegmentReader<IndexReader>)subReaders[0]).getUIDArray();
+    DocIDMapper mapper = subReaders[0].getDocIDMaper();
+    for (int i = 0; i < 100; ++i)
+    {
+      assertEquals("docid mismatch", i, mapper.getDocID(i));
+    }
+
+    // update uid 10, the new copy goes to a new segment
+    IndexReader delReader = IndexReader.open(dir, false);
+    delReader.deleteDocuments(new Term("id", "10"));
+    delReader.close();
+    writer = new IndexWriter(dir, new WhitespaceAnalyzer(), false, MaxFieldLength.UNLIMITED);
+    Document doc = new Document();
+    ZoieSegmentReader.fillDocumentID(doc, 10);
+    doc.add(new Field("id", "10", Field.Store.NO, Field.Index.NOT_ANALYZED));
+    writer.addDocument(doc);
+    writer.close();
+
+    ZoieIndexReader<IndexReader> newReader = (ZoieIndexReader<IndexReader>)reader.reopen(true);
+    assertNotSame("reader not reopened", reader, newReader);
+    subReaders = newReader.getSequentialSubReaders();
+    assertEquals("numDocs mismatch", 99, subReaders[0].numDocs());
+    assertSame("uids reloaded on a deletion only reopen", uidArray, ((ZoieSegmentReader<IndexReader>)subReaders[0]).getUIDArray());
+    ZoieIndexReader<IndexReader> view = subReaders[0].getCommittedView();
+    mapper = subReaders[0].getDocIDMaper();
+    assertSame("committed view rebuilt the uid mapper", mapper, view.getDocIDMaper());
+    assertSame("later committed view rebuilt the uid mapper", mapper, subReaders[0].getCommittedView().getDocIDMaper());
+    assertEquals("deleted doc still mapped", DocIDMapper.NOT_FOUND, mapper.getDocID(10));
+    assertEquals("docid mismatch", 50, mapper.getDocID(50));
+    assertEquals("docid mismatch", 50, newReader.getDocIDMaper().getDocID(50));
+    assertEquals("updated uid not mapped to the live copy", 100, newReader.getDocIDMaper().getDocID(10));
+    newReader.close();
+    reader.close();
+  }
+
+  public void testCompositeDocIDMapper()
+  {
+    Random rand = new Random();
+    int numSegments = 10;
+    int segSize = 1000;
+    for (int round = 0; round < 2; ++round)
+    {
+      boolean disjoint = (round == 0);
+      DocIDMapper[] mappers = new DocIDMapper[numSegments];
+      long[] minUIDs = new long[numSegments];
+      long[] maxUIDs = new long[numSegments];
+      int[] starts = new int[numSegments + 1];
+      long[] allUIDs = new long[numSegments * segSize];
+      LongOpenHashSet uidset = new LongOpenHashSet();
+      for (int i = 0; i < numSegments; ++i)
+      {
+        long[] uidArray = new long[segSize];
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int j = 0; j < segSize; ++j)
+        {
+          long uid;
+          do
+          {
+            // disjoint ranges for time ordered uids, segments in reverse to test the routing
+            uid = disjoint ? ((numSegments - i) * segSize * 10L + rand.nextInt(segSize * 10)) : rand.nextInt(numSegments * segSize * 10);
+          } while (uidset.contains(uid));
+          uidset.add(uid);
+          uidArray[j] = uid;
+          if (uid < min) min = uid;
+          if (uid > max) max = uid;
+        }
+        mappers[i] = new DocIDMapperImpl(uidArray);
+        minUIDs[i] = min;
+        maxUIDs[i] = max;
+        starts[i] = i * segSize;
+        System.arraycopy(uidArray, 0, allUIDs, starts[i], segSize);
+      }
+      starts[numSegments] = numSegments * segSize;
+
+      DocIDMapper mapper = new CompositeDocIDMapper(mappers, minUIDs, maxUIDs, starts);
+      for (int docid = 0; docid < allUIDs.length; ++docid)
+      {
+        assertEquals("docid mismatch", docid, mapper.getDocID(allUIDs[docid]));
+      }
+      for (int i = 0; i < 10000; ++i)
+      {
+        long uid = rand.nextInt(numSegments * segSize * 20);
+        if (!uidset.contains(uid))
+        {
+          assertEquals("found a missing uid", DocIDMapper.NOT_FOUND, mapper.getDocID(uid));
+        }
+      }
+    }
+  }
+
+  public void testDataEventBatch()
+  {
+    DataEventBatch<String> batch = new DataEventBatch<String>(2);
+    assertTrue("new batch not empty", batch.isEmpty());
+    assertEquals("max version of an empty batch", -1L, batch.getMaxVersion());
+
+    List<DataEvent<String>> list = new ArrayList<DataEvent<String>>();
+    for (int i = 0; i < 10; ++i)
+    {
+      list.add(new DataEvent<String>(i, String.valueOf(i)));
+    }
+    batch.addAll(list);
+    batch.add(10, "10");
+    assertEquals("size mismatch", 11, batch.size());
+    assertEquals("max version mismatch", 10L, batch.getMaxVersion());
+
+    DataEventBatch<String> copy = new DataEventBatch<String>();
+    copy.addAll(batch);
+    batch.clear();
+    assertTrue("cleared batch not empty", batch.isEmpty());
+    assertEquals("max version of a cleared batch", -1L, batch.getMaxVersion());
+    assertEquals("copy changed by clear", 11, copy.size());
+
+    List<DataEvent<String>> events = copy.toDataEvents();
+    for (int i = 0; i < 11; ++i)
+    {
+      assertEquals("version mismatch", (long)i, copy.getVersion(i));
+      assertEquals("data mismatch", String.valueOf(i), copy.getData(i));
+      assertEquals("event version mismatch", (long)i, events.get(i).getVersion());
+      assertEquals("event data mismatch", String.valueOf(i), events.get(i).getData());
+    }
+
+    // the cleared batch is reused
+    batch.add(20, "20");
+    assertEquals("size mismatch after reuse", 1, batch.size());
+    assertEquals("data mismatch after reuse", "20", batch.getData(0));
+    try
+    {
+      batch.getData(1);
+      fail("read past the end of the batch");
+    }
+    catch(IndexOutOfBoundsException e)
+    {
+    }
+  }
 }
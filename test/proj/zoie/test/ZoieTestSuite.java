@@ -12,7 +12,11 @@ public class ZoieTestSuite extends TestSuite {
   public static List<String> allTests = Arrays.asList(new String[]{"testStreamDataProvider",
       "testRealtime", "testAsyncDataConsumer", "testAsyncDataConsumer", "testDelSet",
       "testIndexWithAnalyzer", "testUpdates", "testIndexSignature", "testDocIDMapper",
-      "testUIDDocIdSet", "testExportImport"});
+      "testUIDDocIdSet", "testExportImport", "testDelDocIdSet", "testUIDArrayFile", "testDocIDMapperReuse", "testCompositeDocIDMapper", "testDataEventBatch",
+      "testAsyncDataConsumerMultiProducer", "testInterpreterParallelism",
+      "testRamShards", "testRAMNearRealtimeRefresh",
+      "testDiskUpdates", "testRealtimeUpdatesDuringFlush",
+      "testSealedRamIndexes", "testByteBufferDirectory", "testDirectMemoryIndex", "testMMapDiskIndex", "testReaderWarmer", "testReaderRefCount", "testGetIndexReadersDuringRefresh", "testSnapshotDeletesStable", "testReaderViewsAcrossThreads", "testMergeScheduler", "testLoadAwareOptimizeScheduler", "testTargetedExpunge", "testTieredMergePolicy", "testDeltaExportImport", "testImportKeepsServing", "testSnapshotCodecs", "testChecksummedSnapshot"});
 
   public static Test suite()
   {
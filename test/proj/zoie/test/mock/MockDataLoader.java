@@ -5,6 +5,7 @@ import java.util.Collection;
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataEventBatch;
 import proj.zoie.api.ZoieException;
 
 public class MockDataLoader<V> implements DataConsumer<V> {
@@ -70,6 +71,11 @@ public class MockDataLoader<V> implements DataConsumer<V> {
         }
 	}
 	
+	public void consume(DataEventBatch<V> data) throws ZoieException
+	{
+		consume(data == null ? null : data.toDataEvents());
+	}
+	
 	public int getNumCalls()
 	{
 	  return _numCalls;